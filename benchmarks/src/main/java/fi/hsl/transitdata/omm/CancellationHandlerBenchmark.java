@@ -0,0 +1,115 @@
+package fi.hsl.transitdata.omm;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.h2.tools.SimpleResultSet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Benchmarks for the hot path of a poll cycle with in-memory result sets and a producer that acknowledges immediately.
+ *
+ * Run with -prof gc to see the allocation rate. Each operation handles a whole result set, so rows per second is
+ * the throughput multiplied by the number of rows.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "-Dlogback.configurationFile=logback-benchmark.xml"})
+public class CancellationHandlerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Rows {
+        @Param({"1000", "10000", "100000", "500000"})
+        int rows;
+        @Param({"0.1"})
+        double duplicateRatio;
+        @Param({"0.2"})
+        double cancelOfCancelRatio;
+
+        SimpleResultSet resultSet;
+        List<OmmCancellationHandler.CancellationData> parsed;
+        OmmCancellationHandler parser;
+
+        @Setup(Level.Trial)
+        public void setUp() throws SQLException {
+            resultSet = SyntheticCancellations.toResultSet(
+                    new SyntheticCancellations(42, duplicateRatio, cancelOfCancelRatio, 20).rows(rows));
+            parser = newHandler(false, false);
+            parsed = parser.parseData(resultSet);
+        }
+
+        // Result sets have at least 1000 rows, so rewinding per invocation does not distort the results
+        @Setup(Level.Invocation)
+        public void rewind() throws SQLException {
+            resultSet.beforeFirst();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            parser.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Handler {
+        @Param({"false", "true"})
+        boolean pipeline;
+
+        OmmCancellationHandler handler;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            // Change tracking is disabled so that every cycle publishes all cancellations
+            handler = newHandler(pipeline, false);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            handler.close();
+        }
+    }
+
+    static OmmCancellationHandler newHandler(boolean pipeline, boolean changeTracking) {
+        final Map<String, Object> overrides = new HashMap<>();
+        overrides.put("omm.pipeline.enabled", pipeline);
+        overrides.put("omm.changeTracking.enabled", changeTracking);
+        // Measures publishing without writing failed sends to disk
+        overrides.put("omm.outbox.file", "");
+        final Config config = ConfigFactory.parseMap(overrides).withFallback(ConfigFactory.load("environment.conf"));
+        return new OmmCancellationHandler(StubProducers.acknowledging(new LongAdder()), config, CancellationSourceType.FROM_NOW);
+    }
+
+    @Benchmark
+    public List<OmmCancellationHandler.CancellationData> parseData(Rows rows) throws SQLException {
+        return rows.parser.parseData(rows.resultSet);
+    }
+
+    @Benchmark
+    public List<OmmCancellationHandler.CancellationData> filterDuplicates(Rows rows) {
+        return OmmCancellationHandler.filterDuplicates(rows.parsed);
+    }
+
+    @Benchmark
+    public void serialize(Rows rows, Blackhole blackhole) {
+        for (OmmCancellationHandler.CancellationData data : rows.parsed) {
+            blackhole.consume(data.payload.toByteArray());
+        }
+    }
+
+    /**
+     * Whole cycle from the ResultSet to the producer, including logging the change counts
+     */
+    @Benchmark
+    public void handleAndSend(Rows rows, Handler handler) throws Exception {
+        handler.handler.handleAndSend(rows.resultSet);
+    }
+}
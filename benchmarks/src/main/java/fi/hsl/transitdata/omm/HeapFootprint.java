@@ -0,0 +1,39 @@
+package fi.hsl.transitdata.omm;
+
+import org.h2.tools.SimpleResultSet;
+
+import java.util.List;
+
+/**
+ * Measures the heap retained by the parsed cancellations of a large disruption, where each deviation case
+ * (bulletin) cancels many departures.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar fi.hsl.transitdata.omm.HeapFootprint [rows] [departuresPerDeviationCase]
+ */
+public class HeapFootprint {
+    public static void main(String[] args) throws Exception {
+        final int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        final int departuresPerDeviationCase = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+
+        final SimpleResultSet resultSet = SyntheticCancellations.toResultSet(
+                new SyntheticCancellations(42, 0.1, 0.2, departuresPerDeviationCase).rows(rows));
+        final OmmCancellationHandler parser = CancellationHandlerBenchmark.newHandler(false, false);
+
+        final long before = usedHeap();
+        final List<OmmCancellationHandler.CancellationData> parsed = parser.parseData(resultSet);
+        final long retained = usedHeap() - before;
+
+        System.out.printf("%d cancellations of %d deviation cases retain %.1f MB, %d bytes per cancellation%n",
+                parsed.size(), Math.max(1, rows / departuresPerDeviationCase), retained / 1e6, retained / Math.max(1, parsed.size()));
+        parser.close();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
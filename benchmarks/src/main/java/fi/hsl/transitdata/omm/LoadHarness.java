@@ -0,0 +1,161 @@
+package fi.hsl.transitdata.omm;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import fi.hsl.common.pulsar.PulsarApplicationContext;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.ProducerStats;
+import org.apache.pulsar.client.api.PulsarClient;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs OmmConnector end to end against {@link OmmStandIn} filled by {@link OmmDataGenerator}, publishing to
+ * a producer that acknowledges immediately, and reports the cycle time, rows per second and heap use of each poll.
+ *
+ * With harness.pulsar the cancellations are published to that Pulsar cluster with the producer settings of
+ * omm.producer, and the messages, broker messages (batches) and bytes sent after compression are read from
+ * the producer stats. Without it every message counts as a broker message and the uncompressed payload as sent.
+ *
+ * Parameters are system properties:
+ * <ul>
+ *     <li>harness.departures: affected departures, default 100000</li>
+ *     <li>harness.departuresPerDeviationCase: bulletin fan-out, default 200</li>
+ *     <li>harness.cancelOfCancelRatio: share of cancellations of cancellations, default 0.2</li>
+ *     <li>harness.churn: share of affected departures toggled between cycles, default 0.01</li>
+ *     <li>harness.operatingDays: operating days the departures are spread over, default 3</li>
+ *     <li>harness.cycles: poll cycles, default 10</li>
+ *     <li>harness.source: CANCELLATIONS_FROM_TIME, default NOW</li>
+ *     <li>harness.pulsar: Pulsar service URL, f.ex. pulsar://localhost:6650, default none</li>
+ * </ul>
+ * Application settings can be overridden as well, f.ex. -Domm.pipeline.enabled=false.
+ */
+public class LoadHarness {
+    private static final long STATS_INTERVAL_SECS = 1;
+
+    public static void main(String[] args) throws Exception {
+        final int departures = Integer.getInteger("harness.departures", 100_000);
+        final int departuresPerDeviationCase = Integer.getInteger("harness.departuresPerDeviationCase", 200);
+        final double cancelOfCancelRatio = Double.parseDouble(System.getProperty("harness.cancelOfCancelRatio", "0.2"));
+        final double churn = Double.parseDouble(System.getProperty("harness.churn", "0.01"));
+        final int operatingDays = Integer.getInteger("harness.operatingDays", 3);
+        final int cycles = Integer.getInteger("harness.cycles", 10);
+        final CancellationSourceType sourceType = CancellationSourceType.fromString(System.getProperty("harness.source", "NOW"));
+
+        final String pulsarUrl = System.getProperty("harness.pulsar", "");
+
+        // Failed sends are not written to disk, so that the harness measures publishing only
+        final Config config = ConfigFactory.parseMap(Collections.singletonMap("omm.outbox.file", ""))
+                .withFallback(ConfigFactory.load("environment.conf"));
+        final LongAdder sentMessages = new LongAdder();
+        final LongAdder sentBytes = new LongAdder();
+        final List<Producer<byte[]>> producers = new CopyOnWriteArrayList<>();
+        final PulsarClient client = pulsarUrl.isEmpty()
+                ? StubProducers.client(StubProducers.acknowledging(sentMessages, sentBytes))
+                : StubProducers.recording(PulsarClient.builder().serviceUrl(pulsarUrl).statsInterval(STATS_INTERVAL_SECS, TimeUnit.SECONDS).build(), producers);
+        final WireCounter wire = pulsarUrl.isEmpty()
+                ? () -> new long[] { sentMessages.sum(), sentMessages.sum(), sentBytes.sum() }
+                : () -> producerStats(producers);
+        final PulsarApplicationContext context = new PulsarApplicationContext() {
+            @Override
+            public Config getConfig() {
+                return config;
+            }
+
+            @Override
+            public PulsarClient getClient() {
+                return client;
+            }
+        };
+
+        try (OmmStandIn database = new OmmStandIn(); Connection connection = database.connection()) {
+            final OmmDataGenerator generator = new OmmDataGenerator(42, departures, departuresPerDeviationCase, cancelOfCancelRatio, operatingDays);
+            long startTime = System.currentTimeMillis();
+            generator.populate(connection);
+            System.out.printf("Generated %d affected departures in %d deviation cases in %d ms%n",
+                    departures, generator.deviationCases(), System.currentTimeMillis() - startTime);
+
+            final OmmConnector connector = OmmConnector.newInstance(context, OmmStandIn.JDBC_URL, sourceType);
+            final int pollInterval = config.getInt("omm.interval");
+            System.out.println("cycle  changed      ms     rows    rows/s  messages   batches    MB sent  peak heap MB  retained heap MB");
+            for (int cycle = 0; cycle < cycles; cycle++) {
+                final int changed = cycle == 0 ? 0 : generator.churn(connection, cycle, churn);
+                final double rowsBefore = OmmMetrics.ROWS_READ.get();
+                final long[] sentBefore = wire.sent();
+                resetPeakHeap();
+
+                startTime = System.nanoTime();
+                connector.queryAndProcessResults(pollInterval);
+                final double elapsedSecs = OmmMetrics.secondsSince(startTime);
+
+                final long peakHeap = peakHeap();
+                final double rows = OmmMetrics.ROWS_READ.get() - rowsBefore;
+                final long[] sent = wire.sent();
+                System.out.printf("%5d %8d %7.0f %8.0f %9.0f %9d %9d %10.2f %13.0f %17.0f%n",
+                        cycle, changed, elapsedSecs * 1000, rows, rows / elapsedSecs,
+                        sent[0] - sentBefore[0], sent[1] - sentBefore[1], (sent[2] - sentBefore[2]) / 1e6,
+                        peakHeap / 1e6, retainedHeap() / 1e6);
+            }
+            connector.close();
+        } finally {
+            client.close();
+        }
+    }
+
+    private interface WireCounter {
+        /**
+         * @return Messages, broker messages and bytes sent so far
+         */
+        long[] sent() throws InterruptedException;
+    }
+
+    /**
+     * Producer stats are updated every stats interval, so waits for the stats of the messages sent so far
+     */
+    private static long[] producerStats(List<Producer<byte[]>> producers) throws InterruptedException {
+        Thread.sleep(TimeUnit.SECONDS.toMillis(STATS_INTERVAL_SECS) + 500);
+        final long[] sent = new long[3];
+        for (Producer<byte[]> producer : producers) {
+            final ProducerStats stats = producer.getStats();
+            sent[0] += stats.getTotalMsgsSent();
+            // Each batch is acknowledged once
+            sent[1] += stats.getTotalAcksReceived();
+            sent[2] += stats.getTotalBytesSent();
+        }
+        return sent;
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        final List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        pools.removeIf(pool -> pool.getType() != MemoryType.HEAP);
+        return pools;
+    }
+
+    private static void resetPeakHeap() {
+        heapPools().forEach(MemoryPoolMXBean::resetPeakUsage);
+    }
+
+    /**
+     * Sum of the peaks of the heap pools, an upper bound of the heap used during the cycle
+     */
+    private static long peakHeap() {
+        return heapPools().stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+    }
+
+    private static long retainedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,138 @@
+package fi.hsl.transitdata.omm;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Random;
+
+/**
+ * Fills {@link OmmStandIn} with a disruption of the given size and changes a share of it between poll cycles.
+ *
+ * Departures are spread over the operating days from today onwards and cancelled by deviation cases of
+ * departuresPerDeviationCase departures each (bulletin fan-out). Each deviation case has its own bulletin.
+ * A share of the affected departures are cancellations of cancellations (deleted).
+ */
+class OmmDataGenerator {
+    private static final int BATCH_SIZE = 10_000;
+    private static final long FIRST_DVJ_ID = 7_000_000_000_000_000L;
+    private static final long DIRECTION_1_GID = 9011201000010001L;
+    private static final long DIRECTION_2_GID = 9011201000020001L;
+    private static final int ROUTES = 500;
+    private static final String DESCRIPTION = "Linjan vuoro on peruttu kuljettajapulan vuoksi. Tarkista reittiopas ennen matkaa. ";
+
+    private final Random random;
+    private final int departures;
+    private final int departuresPerDeviationCase;
+    private final double cancelOfCancelRatio;
+    private final int operatingDays;
+
+    OmmDataGenerator(long seed, int departures, int departuresPerDeviationCase, double cancelOfCancelRatio, int operatingDays) {
+        this.random = new Random(seed);
+        this.departures = departures;
+        this.departuresPerDeviationCase = Math.max(1, departuresPerDeviationCase);
+        this.cancelOfCancelRatio = cancelOfCancelRatio;
+        this.operatingDays = Math.max(1, operatingDays);
+    }
+
+    int deviationCases() {
+        return (departures + departuresPerDeviationCase - 1) / departuresPerDeviationCase;
+    }
+
+    void populate(Connection connection) throws SQLException {
+        final LocalDateTime now = LocalDateTime.now();
+        final LocalDate today = now.toLocalDate();
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("INSERT INTO PTDOI4_DBO.ObjectType VALUES (1, 'VehicleJourney')");
+            statement.execute("INSERT INTO PTDOI4_DBO.KeyType VALUES (1, 'RouteName', 1)");
+            statement.execute("INSERT INTO PTDOI4_DBO.KeyVariantType VALUES (1, 1)");
+            statement.execute("INSERT INTO PTDOI4_DBO.VehicleJourneyTemplate VALUES (1, " + DIRECTION_1_GID + "), (2, " + DIRECTION_2_GID + ")");
+        }
+
+        // One vehicle journey per departure, so that each departure has its own start time
+        try (PreparedStatement vehicleJourney = connection.prepareStatement("INSERT INTO PTDOI4_DBO.VehicleJourney VALUES (?, ?)");
+             PreparedStatement keyVariantValue = connection.prepareStatement("INSERT INTO PTDOI4_T.KeyVariantValue VALUES (?, 1, ?)");
+             PreparedStatement datedVehicleJourney = connection.prepareStatement("INSERT INTO PTDOI4_DBO.DatedVehicleJourney VALUES (?, ?, ?, ?, NULL)");
+             PreparedStatement affectedDeparture = connection.prepareStatement("INSERT INTO OMM_DBO.affected_departures VALUES (?, ?, ?, ?, 'CANCEL_ENTIRE_DEPARTURE', ?)")) {
+            for (int i = 0; i < departures; i++) {
+                final long dvjId = FIRST_DVJ_ID + i;
+                vehicleJourney.setLong(1, i);
+                // Start times from 04:00 to 28:00, i.e. past midnight
+                vehicleJourney.setTimestamp(2, Timestamp.valueOf(LocalDateTime.of(1900, 1, 1, 4, 0).plusMinutes(random.nextInt(24 * 60))));
+                vehicleJourney.addBatch();
+                keyVariantValue.setLong(1, i);
+                keyVariantValue.setString(2, Integer.toString(1000 + random.nextInt(ROUTES)));
+                keyVariantValue.addBatch();
+                datedVehicleJourney.setLong(1, dvjId);
+                datedVehicleJourney.setLong(2, i);
+                datedVehicleJourney.setLong(3, 1 + random.nextInt(2));
+                datedVehicleJourney.setDate(4, Date.valueOf(today.plusDays(i % operatingDays)));
+                datedVehicleJourney.addBatch();
+                affectedDeparture.setLong(1, i);
+                affectedDeparture.setLong(2, i / departuresPerDeviationCase);
+                affectedDeparture.setLong(3, dvjId);
+                affectedDeparture.setString(4, random.nextDouble() < cancelOfCancelRatio ? "deleted" : "active");
+                affectedDeparture.setTimestamp(5, Timestamp.valueOf(now.minusSeconds(random.nextInt(3600))));
+                affectedDeparture.addBatch();
+                if ((i + 1) % BATCH_SIZE == 0) {
+                    executeBatches(vehicleJourney, keyVariantValue, datedVehicleJourney, affectedDeparture);
+                    connection.commit();
+                }
+            }
+            executeBatches(vehicleJourney, keyVariantValue, datedVehicleJourney, affectedDeparture);
+        }
+
+        try (PreparedStatement deviationCase = connection.prepareStatement("INSERT INTO OMM_DBO.deviation_cases VALUES (?, ?, ?, ?, 'CANCEL_DEPARTURE', ?)");
+             PreparedStatement bulletin = connection.prepareStatement("INSERT INTO OMM_DBO.bulletins VALUES (?, 'STAFF_DEFICIT', 'NO_SUB_CATEGORY')");
+             PreparedStatement message = connection.prepareStatement("INSERT INTO OMM_DBO.bulletin_localized_messages VALUES (?, 'fi', ?, ?)")) {
+            for (int i = 0; i < deviationCases(); i++) {
+                deviationCase.setLong(1, i);
+                deviationCase.setLong(2, i);
+                deviationCase.setTimestamp(3, Timestamp.valueOf(now.minusHours(1)));
+                deviationCase.setTimestamp(4, Timestamp.valueOf(today.plusDays(operatingDays + 1).atStartOfDay()));
+                deviationCase.setTimestamp(5, Timestamp.valueOf(now.minusHours(1)));
+                deviationCase.addBatch();
+                bulletin.setLong(1, i);
+                bulletin.addBatch();
+                message.setLong(1, i);
+                message.setString(2, "Vuoroja peruttu " + i);
+                message.setString(3, DESCRIPTION + DESCRIPTION + i);
+                message.addBatch();
+                if ((i + 1) % BATCH_SIZE == 0) {
+                    executeBatches(deviationCase, bulletin, message);
+                    connection.commit();
+                }
+            }
+            executeBatches(deviationCase, bulletin, message);
+        }
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+
+    /**
+     * Toggles the status of every period:th affected departure, as happens when cancellations are cancelled and made again
+     *
+     * @return Number of affected departures changed
+     */
+    int churn(Connection connection, int cycle, double churnRatio) throws SQLException {
+        if (churnRatio <= 0) {
+            return 0;
+        }
+        final int period = Math.max(1, (int) Math.round(1 / churnRatio));
+        try (PreparedStatement statement = connection.prepareStatement(
+                "UPDATE OMM_DBO.affected_departures " +
+                        "SET status = CASE WHEN status = 'active' THEN 'deleted' ELSE 'active' END, last_modified = ? " +
+                        "WHERE MOD(affected_departure_id + ?, ?) = 0")) {
+            statement.setTimestamp(1, Timestamp.valueOf(LocalDateTime.now()));
+            statement.setInt(2, cycle);
+            statement.setInt(3, period);
+            return statement.executeUpdate();
+        }
+    }
+
+    private static void executeBatches(PreparedStatement... statements) throws SQLException {
+        for (PreparedStatement statement : statements) {
+            statement.executeBatch();
+        }
+    }
+}
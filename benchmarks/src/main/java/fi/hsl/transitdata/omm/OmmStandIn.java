@@ -0,0 +1,139 @@
+package fi.hsl.transitdata.omm;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * In-memory H2 database with the tables of OMM_Community and ptDOI4_Community that the queries use.
+ *
+ * H2 has only one catalog per database, so the stand-in is reached through its own JDBC URL (jdbc:omm-standin:),
+ * whose connections rewrite the queries for H2: three-part names are mapped to schemas of the same database
+ * and COUNT_BIG is turned into COUNT. The rest of T-SQL used by the queries is handled by the MSSQLServer
+ * compatibility mode of H2.
+ */
+class OmmStandIn implements AutoCloseable {
+    static final String JDBC_URL = "jdbc:omm-standin:";
+
+    private static final String H2_URL = "jdbc:h2:mem:omm;MODE=MSSQLServer;CASE_INSENSITIVE_IDENTIFIERS=TRUE;DB_CLOSE_DELAY=-1";
+
+    private static final String[] SCHEMA = {
+            "CREATE SCHEMA OMM_DBO",
+            "CREATE SCHEMA PTDOI4_DBO",
+            "CREATE SCHEMA PTDOI4_T",
+            "CREATE TABLE OMM_DBO.deviation_cases (deviation_case_id BIGINT PRIMARY KEY, bulletin_id BIGINT, valid_from DATETIME, " +
+                    "valid_to DATETIME, type VARCHAR(64), last_modified DATETIME)",
+            "CREATE TABLE OMM_DBO.affected_departures (affected_departure_id BIGINT PRIMARY KEY, deviation_case_id BIGINT, " +
+                    "departure_id BIGINT, status VARCHAR(16), type VARCHAR(64), last_modified DATETIME)",
+            "CREATE INDEX affected_departures_deviation_case ON OMM_DBO.affected_departures (deviation_case_id)",
+            "CREATE TABLE OMM_DBO.bulletins (bulletins_id BIGINT PRIMARY KEY, category VARCHAR(64), sub_category VARCHAR(64))",
+            "CREATE TABLE OMM_DBO.bulletin_localized_messages (bulletins_id BIGINT, language_code VARCHAR(8), " +
+                    "title VARCHAR(256), description VARCHAR(4000))",
+            "CREATE INDEX bulletin_localized_messages_bulletin ON OMM_DBO.bulletin_localized_messages (bulletins_id)",
+            "CREATE TABLE PTDOI4_DBO.DatedVehicleJourney (Id BIGINT PRIMARY KEY, IsBasedOnVehicleJourneyId BIGINT, " +
+                    "IsBasedOnVehicleJourneyTemplateId BIGINT, OperatingDayDate DATE, IsReplacedById BIGINT)",
+            "CREATE INDEX dated_vehicle_journey_operating_day ON PTDOI4_DBO.DatedVehicleJourney (OperatingDayDate)",
+            "CREATE TABLE PTDOI4_DBO.VehicleJourney (Id BIGINT PRIMARY KEY, PlannedStartOffsetDateTime DATETIME)",
+            "CREATE TABLE PTDOI4_DBO.VehicleJourneyTemplate (Id BIGINT PRIMARY KEY, IsWorkedOnDirectionOfLineGid BIGINT)",
+            "CREATE TABLE PTDOI4_T.KeyVariantValue (IsForObjectId BIGINT, IsOfKeyVariantTypeId BIGINT, StringValue VARCHAR(64))",
+            "CREATE INDEX key_variant_value_object ON PTDOI4_T.KeyVariantValue (IsForObjectId)",
+            "CREATE TABLE PTDOI4_DBO.KeyVariantType (Id BIGINT PRIMARY KEY, IsForKeyTypeId BIGINT)",
+            "CREATE TABLE PTDOI4_DBO.KeyType (Id BIGINT PRIMARY KEY, Name VARCHAR(64), ExtendsObjectTypeNumber INT)",
+            "CREATE TABLE PTDOI4_DBO.ObjectType (Number INT PRIMARY KEY, Name VARCHAR(64))"
+    };
+
+    private final Connection keepAlive;
+    private final Driver driver;
+
+    OmmStandIn() throws SQLException {
+        keepAlive = DriverManager.getConnection(H2_URL);
+        try (Statement statement = keepAlive.createStatement()) {
+            for (String ddl : SCHEMA) {
+                statement.execute(ddl);
+            }
+        }
+        driver = new RewritingDriver();
+        DriverManager.registerDriver(driver);
+    }
+
+    Connection connection() throws SQLException {
+        return DriverManager.getConnection(H2_URL);
+    }
+
+    /**
+     * Rewrites a query of this service for the stand-in
+     */
+    static String toH2(String sql) {
+        String rewritten = sql.trim();
+        if (rewritten.endsWith(";")) {
+            rewritten = rewritten.substring(0, rewritten.length() - 1);
+        }
+        rewritten = rewritten
+                .replace("[OMM_Community].[dbo].", "OMM_DBO.")
+                .replace("OMM_Community.dbo.", "OMM_DBO.")
+                .replace("ptDOI4_Community.dbo.", "PTDOI4_DBO.")
+                .replace("ptDOI4_Community.T.", "PTDOI4_T.")
+                .replace("COUNT_BIG(", "COUNT(")
+                .replace("'1900-01-01'", "TIMESTAMP '1900-01-01 00:00:00'");
+        return rewritten;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        DriverManager.deregisterDriver(driver);
+        keepAlive.close();
+    }
+
+    private static final class RewritingDriver implements Driver {
+        @Override
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            final Connection connection = DriverManager.getConnection(H2_URL);
+            return (Connection) Proxy.newProxyInstance(OmmStandIn.class.getClassLoader(), new Class[] { Connection.class },
+                    (proxy, method, args) -> {
+                        if (method.getName().equals("prepareStatement") && args != null && args[0] instanceof String) {
+                            args[0] = toH2((String) args[0]);
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url != null && url.startsWith(JDBC_URL);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
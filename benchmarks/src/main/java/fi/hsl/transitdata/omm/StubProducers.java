@@ -0,0 +1,117 @@
+package fi.hsl.transitdata.omm;
+
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.ProducerBuilder;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Producer that acknowledges every message immediately without sending it anywhere, and clients for creating
+ * the producers of the application in the benchmarks
+ */
+class StubProducers {
+    private StubProducers() {}
+
+    static Producer<byte[]> acknowledging(LongAdder sentBytes) {
+        return acknowledging(new LongAdder(), sentBytes);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Producer<byte[]> acknowledging(LongAdder sentMessages, LongAdder sentBytes) {
+        final TypedMessageBuilder<byte[]> builder = (TypedMessageBuilder<byte[]>) Proxy.newProxyInstance(
+                StubProducers.class.getClassLoader(),
+                new Class[] { TypedMessageBuilder.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "value":
+                            sentBytes.add(((byte[]) args[0]).length);
+                            return proxy;
+                        case "sendAsync":
+                            sentMessages.increment();
+                            return CompletableFuture.completedFuture(null);
+                        case "send":
+                            sentMessages.increment();
+                            return null;
+                        default:
+                            return proxy;
+                    }
+                });
+        return (Producer<byte[]>) Proxy.newProxyInstance(
+                StubProducers.class.getClassLoader(),
+                new Class[] { Producer.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "newMessage":
+                            return builder;
+                        case "flushAsync":
+                        case "closeAsync":
+                            return CompletableFuture.completedFuture(null);
+                        case "isConnected":
+                            return true;
+                        case "getTopic":
+                            return "omm-cancellations";
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /**
+     * Client whose producers are all the given producer, whatever they are configured with
+     */
+    @SuppressWarnings("unchecked")
+    static PulsarClient client(Producer<byte[]> producer) {
+        final ProducerBuilder<byte[]> builder = (ProducerBuilder<byte[]>) Proxy.newProxyInstance(
+                StubProducers.class.getClassLoader(),
+                new Class[] { ProducerBuilder.class },
+                (proxy, method, args) -> method.getName().equals("create") ? producer : proxy);
+        return (PulsarClient) Proxy.newProxyInstance(
+                StubProducers.class.getClassLoader(),
+                new Class[] { PulsarClient.class },
+                (proxy, method, args) -> method.getName().equals("newProducer") ? builder : null);
+    }
+
+    /**
+     * Client that adds the producers created with it to created, so that their stats can be read
+     */
+    @SuppressWarnings("unchecked")
+    static PulsarClient recording(PulsarClient client, List<Producer<byte[]>> created) {
+        return (PulsarClient) Proxy.newProxyInstance(
+                StubProducers.class.getClassLoader(),
+                new Class[] { PulsarClient.class },
+                (proxy, method, args) -> {
+                    final Object result = invoke(client, method, args);
+                    return method.getName().equals("newProducer") ? recording((ProducerBuilder<byte[]>) result, created) : result;
+                });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ProducerBuilder<byte[]> recording(ProducerBuilder<byte[]> builder, List<Producer<byte[]>> created) {
+        return (ProducerBuilder<byte[]>) Proxy.newProxyInstance(
+                StubProducers.class.getClassLoader(),
+                new Class[] { ProducerBuilder.class },
+                (proxy, method, args) -> {
+                    final Object result = invoke(builder, method, args);
+                    if (method.getName().equals("create")) {
+                        created.add((Producer<byte[]>) result);
+                        return result;
+                    }
+                    return result == builder ? proxy : result;
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
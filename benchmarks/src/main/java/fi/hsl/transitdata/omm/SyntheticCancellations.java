@@ -0,0 +1,103 @@
+package fi.hsl.transitdata.omm;
+
+import org.h2.tools.SimpleResultSet;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates cancellation rows with the columns of cancellations_current_future.sql, ordered like the query
+ * by dvjId and deviation case ID.
+ *
+ * Each departure gets one row that is either active or a cancellation of cancellation (deleted). A share of the
+ * departures also get a duplicate deleted row with an earlier timestamp, as happens in OMM when a cancellation
+ * has been cancelled and then made again.
+ */
+class SyntheticCancellations {
+    static final String[] COLUMNS = { "deviation_case_id", "ROUTE_NAME", "DIRECTION_OF_LINE_GID", "OPERATING_DAY_DATE", "START_MINUTES",
+            "AFFECTED_DEPARTURES_STATUS", "DVJ_ID", "DEVIATION_CASES_TYPE", "AFFECTED_DEPARTURES_TYPE", "TITLE",
+            "DESCRIPTION", "CATEGORY", "SUB_CATEGORY", "AFFECTED_DEPARTURES_LAST_MODIFIED" };
+    private static final int[] COLUMN_TYPES = { Types.BIGINT, Types.VARCHAR, Types.BIGINT, Types.DATE, Types.INTEGER,
+            Types.VARCHAR, Types.BIGINT, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+            Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP };
+
+    private static final LocalDateTime BASE_TIME = LocalDateTime.of(2018, 1, 1, 0, 0);
+    private static final long FIRST_DVJ_ID = 7_000_000_000_000_000L;
+    private static final long DIRECTION_1_GID = 9011201000010001L;
+    private static final long DIRECTION_2_GID = 9011201000020001L;
+    private static final Date OPERATING_DAY = Date.valueOf("2018-01-02");
+
+    private final Random random;
+    private final double duplicateRatio;
+    private final double cancelOfCancelRatio;
+    private final int departuresPerDeviationCase;
+
+    /**
+     * @param duplicateRatio Share of departures with an extra deleted row
+     * @param cancelOfCancelRatio Share of departures whose latest row is deleted
+     * @param departuresPerDeviationCase Average number of departures cancelled by one deviation case (bulletin)
+     */
+    SyntheticCancellations(long seed, double duplicateRatio, double cancelOfCancelRatio, int departuresPerDeviationCase) {
+        this.random = new Random(seed);
+        this.duplicateRatio = duplicateRatio;
+        this.cancelOfCancelRatio = cancelOfCancelRatio;
+        this.departuresPerDeviationCase = Math.max(1, departuresPerDeviationCase);
+    }
+
+    List<Object[]> rows(int count) {
+        final List<Object[]> rows = new ArrayList<>(count);
+        final int deviationCases = Math.max(1, count / departuresPerDeviationCase);
+        long dvjId = FIRST_DVJ_ID;
+        while (rows.size() < count) {
+            dvjId++;
+            final long deviationCaseId = 1 + random.nextInt(deviationCases);
+            final LocalDateTime modified = BASE_TIME.plusSeconds(random.nextInt(86400));
+            final boolean duplicate = random.nextDouble() < duplicateRatio;
+            if (duplicate && rows.size() + 1 < count) {
+                rows.add(row(dvjId, deviationCaseId, "deleted", modified.minusMinutes(1 + random.nextInt(60))));
+            }
+            final String status = random.nextDouble() < cancelOfCancelRatio ? "deleted" : "active";
+            rows.add(row(dvjId, deviationCaseId, status, modified));
+        }
+        return rows;
+    }
+
+    private Object[] row(long dvjId, long deviationCaseId, String status, LocalDateTime modified) {
+        return new Object[] {
+                deviationCaseId,
+                Integer.toString(1000 + (int) (deviationCaseId % 9000)),
+                random.nextBoolean() ? DIRECTION_1_GID : DIRECTION_2_GID,
+                OPERATING_DAY,
+                4 * 60 + random.nextInt(24 * 60),
+                status,
+                dvjId,
+                "CANCEL_DEPARTURE",
+                "CANCEL_ENTIRE_DEPARTURE",
+                "Vuoro peruttu " + deviationCaseId,
+                "Linjan vuoro on peruttu kuljettajapulan vuoksi. Tapaus " + deviationCaseId,
+                "STAFF_DEFICIT",
+                "NO_SUB_CATEGORY",
+                Timestamp.valueOf(modified)
+        };
+    }
+
+    /**
+     * @return ResultSet that can be rewound with beforeFirst()
+     */
+    static SimpleResultSet toResultSet(List<Object[]> rows) {
+        final SimpleResultSet resultSet = new SimpleResultSet();
+        resultSet.setAutoClose(false);
+        for (int i = 0; i < COLUMNS.length; i++) {
+            resultSet.addColumn(COLUMNS[i], COLUMN_TYPES[i], 0, 0);
+        }
+        for (Object[] row : rows) {
+            resultSet.addRow(row);
+        }
+        return resultSet;
+    }
+}
@@ -0,0 +1,147 @@
+package fi.hsl.transitdata.omm;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Keeps track of the cancellations that have been published, keyed by dvjId and deviation case ID,
+ * so that each poll cycle can be split into new, changed, unchanged and removed cancellations in O(n).
+ *
+ * A cycle is processed either with {@link #diff(List)} or by streaming the rows through
+ * {@link #beginCycle()}, {@link #classify(OmmCancellationHandler.CancellationData)} and {@link #endCycle()}.
+ * Classifying does not modify the published state, use {@link #markPublished} and {@link #markRemoved}
+ * after the cancellation has actually been handed to the producer.
+ */
+class CancellationChangeTracker {
+
+    enum Change {
+        NEW, CHANGED, UNCHANGED, REMOVED
+    }
+
+    static final class Entry {
+        final OmmCancellationHandler.CancellationData data;
+        final long fingerprint;
+        long lastSeenCycle;
+
+        Entry(OmmCancellationHandler.CancellationData data, long fingerprint, long lastSeenCycle) {
+            this.data = data;
+            this.fingerprint = fingerprint;
+            this.lastSeenCycle = lastSeenCycle;
+        }
+    }
+
+    static final class Diff {
+        final List<OmmCancellationHandler.CancellationData> added = new ArrayList<>();
+        final List<OmmCancellationHandler.CancellationData> changed = new ArrayList<>();
+        final List<OmmCancellationHandler.CancellationData> unchanged = new ArrayList<>();
+        final List<OmmCancellationHandler.CancellationData> removed = new ArrayList<>();
+
+        int total() {
+            return added.size() + changed.size() + unchanged.size();
+        }
+    }
+
+    private final LongPairHashMap<Entry> published = new LongPairHashMap<>();
+    private long cycle = 0;
+
+    void beginCycle() {
+        cycle++;
+    }
+
+    Change classify(OmmCancellationHandler.CancellationData data) {
+        final Entry previous = published.get(data.dvjId, data.deviationCaseId);
+        if (previous == null) {
+            return Change.NEW;
+        }
+        previous.lastSeenCycle = cycle;
+        return previous.fingerprint == fingerprint(data.payload) ? Change.UNCHANGED : Change.CHANGED;
+    }
+
+    /**
+     * @return Previously published cancellations that were not seen during this cycle
+     */
+    List<OmmCancellationHandler.CancellationData> endCycle() {
+        final List<OmmCancellationHandler.CancellationData> removed = new ArrayList<>();
+        published.forEachValue(entry -> {
+            if (entry.lastSeenCycle != cycle) {
+                removed.add(entry.data);
+            }
+        });
+        return removed;
+    }
+
+    Diff diff(List<OmmCancellationHandler.CancellationData> cancellations) {
+        final Diff diff = new Diff();
+        beginCycle();
+        for (OmmCancellationHandler.CancellationData data : cancellations) {
+            switch (classify(data)) {
+                case NEW: diff.added.add(data); break;
+                case CHANGED: diff.changed.add(data); break;
+                default: diff.unchanged.add(data); break;
+            }
+        }
+        diff.removed.addAll(endCycle());
+        return diff;
+    }
+
+    /**
+     * @return True if a version of the cancellation has been published
+     */
+    boolean contains(OmmCancellationHandler.CancellationData data) {
+        return published.get(data.dvjId, data.deviationCaseId) != null;
+    }
+
+    void markPublished(OmmCancellationHandler.CancellationData data) {
+        published.put(data.dvjId, data.deviationCaseId, new Entry(data, fingerprint(data.payload), cycle));
+    }
+
+    void markRemoved(OmmCancellationHandler.CancellationData data) {
+        published.remove(data.dvjId, data.deviationCaseId);
+    }
+
+    /**
+     * Adds cancellations that were published before a restart
+     */
+    void restore(List<Entry> entries) {
+        for (Entry entry : entries) {
+            published.put(entry.data.dvjId, entry.data.deviationCaseId, new Entry(entry.data, entry.fingerprint, cycle));
+        }
+    }
+
+    /**
+     * Forgets the published cancellations that don't match, without reporting them as removed
+     */
+    void retainIf(Predicate<OmmCancellationHandler.CancellationData> predicate) {
+        final List<OmmCancellationHandler.CancellationData> dropped = new ArrayList<>();
+        published.forEachValue(entry -> {
+            if (!predicate.test(entry.data)) {
+                dropped.add(entry.data);
+            }
+        });
+        dropped.forEach(this::markRemoved);
+    }
+
+    void forEachEntry(Consumer<Entry> consumer) {
+        published.forEachValue(consumer);
+    }
+
+    int size() {
+        return published.size();
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the serialized cancellation, used to detect changes in content.
+     */
+    static long fingerprint(InternalMessages.TripCancellation payload) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : payload.toByteArray()) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,226 @@
+package fi.hsl.transitdata.omm;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only memory-mapped file of cancellations that could not be sent to Pulsar, kept over restarts
+ * until they have been sent.
+ *
+ * Layout: magic, version and the end of the records, followed by the records. Each record is payload length,
+ * publish sequence number, dvjId, timestamp, publication (-1 for none) and the serialized TripCancellation.
+ * The end is written after the record, so a record that was being appended during a crash is ignored.
+ *
+ * The file has a fixed size. When it fills up, the records are coalesced to the latest one per dvjId,
+ * and if that doesn't make room the append fails.
+ */
+class CancellationOutbox implements AutoCloseable {
+    private static final int MAGIC = 0x4f4d4d4f; // OMMO
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 4;
+    private static final int END_POSITION = 8;
+    private static final int RECORD_HEADER_BYTES = 4 + 8 + 8 + 8 + 1;
+
+    static final class Record {
+        final long sequence;
+        final long dvjId;
+        final long timestamp;
+        // Null if the freshness is not recorded
+        final CancellationPublisher.Publication publication;
+        final byte[] payload;
+
+        Record(long sequence, long dvjId, long timestamp, CancellationPublisher.Publication publication, byte[] payload) {
+            this.sequence = sequence;
+            this.dvjId = dvjId;
+            this.timestamp = timestamp;
+            this.publication = publication;
+            this.payload = payload;
+        }
+
+        int size() {
+            return RECORD_HEADER_BYTES + payload.length;
+        }
+    }
+
+    private final Path path;
+    private final String name;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int end;
+    private int count;
+    private long lastSequence;
+
+    private CancellationOutbox(Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.path = path;
+        this.name = path.getFileName().toString();
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Opens the outbox and reads the records left from a previous run, the file is created if it doesn't exist
+     */
+    static CancellationOutbox open(Path path, int maxBytes) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final boolean created = channel.size() == 0;
+            final CancellationOutbox outbox = new CancellationOutbox(path, channel,
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(maxBytes, HEADER_BYTES)));
+            if (created) {
+                outbox.buffer.putInt(0, MAGIC).putInt(4, VERSION);
+                outbox.clear();
+            } else {
+                outbox.load();
+            }
+            return outbox;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void load() throws IOException {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not an outbox of this version: " + path);
+        }
+        end = buffer.getInt(END_POSITION);
+        if (end < HEADER_BYTES || end > buffer.capacity()) {
+            throw new IOException("Outbox is corrupted, end of records " + end + " is out of bounds: " + path);
+        }
+        final List<Record> records = read();
+        count = records.size();
+        for (Record record : records) {
+            lastSequence = Math.max(lastSequence, record.sequence);
+        }
+        updateMetrics();
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return Highest sequence number in the outbox, so that publishing continues after it
+     */
+    synchronized long lastSequence() {
+        return lastSequence;
+    }
+
+    synchronized void append(Record record) throws IOException {
+        if (end + record.size() > buffer.capacity()) {
+            compact();
+            if (end + record.size() > buffer.capacity()) {
+                throw new IOException("Outbox " + path + " is full with " + count + " cancellations of different trips");
+            }
+        }
+        write(record);
+        buffer.putInt(END_POSITION, end);
+        count++;
+        lastSequence = Math.max(lastSequence, record.sequence);
+        updateMetrics();
+    }
+
+    /**
+     * @param acknowledged Sequence numbers of cancellations acknowledged by Pulsar after being appended, by dvjId
+     * @return Latest record of each trip in the order they were appended, leaving out trips whose later state
+     *         has already been acknowledged
+     */
+    synchronized List<Record> coalesce(Map<Long, Long> acknowledged) {
+        final List<Record> records = read();
+        final Map<Long, Integer> latest = new HashMap<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            latest.put(records.get(i).dvjId, i);
+        }
+        final List<Record> coalesced = new ArrayList<>(latest.size());
+        for (int i = 0; i < records.size(); i++) {
+            final Record record = records.get(i);
+            final Long acknowledgedSequence = acknowledged.get(record.dvjId);
+            if (latest.get(record.dvjId) == i && (acknowledgedSequence == null || acknowledgedSequence < record.sequence)) {
+                coalesced.add(record);
+            }
+        }
+        return coalesced;
+    }
+
+    /**
+     * Removes all records, called when they have been sent
+     */
+    synchronized void clear() {
+        end = HEADER_BYTES;
+        count = 0;
+        buffer.putInt(END_POSITION, end);
+        updateMetrics();
+    }
+
+    /**
+     * Writes the appended records to disk
+     */
+    synchronized void force() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    private void compact() {
+        final List<Record> coalesced = coalesce(new HashMap<>());
+        end = HEADER_BYTES;
+        for (Record record : coalesced) {
+            write(record);
+        }
+        buffer.putInt(END_POSITION, end);
+        count = coalesced.size();
+    }
+
+    private void write(Record record) {
+        buffer.position(end);
+        buffer.putInt(record.payload.length)
+                .putLong(record.sequence)
+                .putLong(record.dvjId)
+                .putLong(record.timestamp)
+                .put((byte) (record.publication != null ? record.publication.ordinal() : -1))
+                .put(record.payload);
+        end = buffer.position();
+    }
+
+    private List<Record> read() {
+        final List<Record> records = new ArrayList<>(count);
+        int position = HEADER_BYTES;
+        while (position < end) {
+            buffer.position(position);
+            final byte[] payload = new byte[buffer.getInt()];
+            final long sequence = buffer.getLong();
+            final long dvjId = buffer.getLong();
+            final long timestamp = buffer.getLong();
+            final byte publication = buffer.get();
+            buffer.get(payload);
+            records.add(new Record(sequence, dvjId, timestamp,
+                    publication >= 0 ? CancellationPublisher.Publication.values()[publication] : null, payload));
+            position = buffer.position();
+        }
+        return records;
+    }
+
+    private void updateMetrics() {
+        OmmMetrics.OUTBOX_DEPTH.labels(name).set(count);
+        OmmMetrics.OUTBOX_BYTES.labels(name).set(end - HEADER_BYTES);
+    }
+}
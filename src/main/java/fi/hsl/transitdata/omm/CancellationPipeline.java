@@ -0,0 +1,205 @@
+package fi.hsl.transitdata.omm;
+
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * Reads, filters and publishes cancellations in three stages connected by bounded queues, so that messages are
+ * published while the ResultSet is still being read:
+ *
+ * 1. The calling thread reads and decodes rows from the cursor (ResultSet is not thread-safe).
+ * 2. The filter thread keeps the winning row of each dvjId and deviation case ID and selects the ones to publish.
+ *    Rows with the same key must be consecutive, i.e. the query must be ordered by them.
+ * 3. The publisher thread sends the selected cancellations to Pulsar.
+ *
+ * A full queue blocks the previous stage. If a stage fails, the others stop and the failure is thrown to the caller.
+ */
+class CancellationPipeline implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(CancellationPipeline.class);
+
+    private static final OmmCancellationHandler.CancellationData END_OF_ROWS = new OmmCancellationHandler.CancellationData(null, 0, 0, 0);
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    interface Sink {
+        void publish(OmmCancellationHandler.CancellationData data) throws PulsarClientException;
+    }
+
+    private final int queueSize;
+    private final ExecutorService executor;
+
+    CancellationPipeline(int queueSize) {
+        this.queueSize = queueSize;
+        this.executor = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "omm-pipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param selector Called on the filter thread for the winning row of each key, returns whether to publish it
+     * @param sink Called on the publisher thread for each selected row
+     * @return Number of rows read
+     */
+    int run(ResultSet resultSet, CancellationRowDecoder decoder,
+            Predicate<OmmCancellationHandler.CancellationData> selector, Sink sink) throws SQLException, PulsarClientException {
+        final BlockingQueue<OmmCancellationHandler.CancellationData> decoded = new ArrayBlockingQueue<>(queueSize);
+        final BlockingQueue<OmmCancellationHandler.CancellationData> selected = new ArrayBlockingQueue<>(queueSize);
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+
+        final Future<?> filterStage = executor.submit(() -> {
+            filter(decoded, selected, selector, aborted);
+            return null;
+        });
+        final Future<?> publishStage = executor.submit(() -> {
+            publish(selected, sink, aborted);
+            return null;
+        });
+
+        int rows = 0;
+        try {
+            while (resultSet.next()) {
+                rows++;
+                final Optional<OmmCancellationHandler.CancellationData> data = decoder.decode(resultSet);
+                if (data.isPresent() && !put(decoded, data.get(), aborted)) {
+                    break;
+                }
+            }
+            put(decoded, END_OF_ROWS, aborted);
+        } catch (SQLException | RuntimeException e) {
+            abort(aborted, filterStage, publishStage);
+            throw e;
+        } catch (InterruptedException e) {
+            abort(aborted, filterStage, publishStage);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while reading cancellations", e);
+        }
+        await(filterStage, aborted);
+        await(publishStage, aborted);
+        return rows;
+    }
+
+    private static void filter(BlockingQueue<OmmCancellationHandler.CancellationData> decoded,
+                               BlockingQueue<OmmCancellationHandler.CancellationData> selected,
+                               Predicate<OmmCancellationHandler.CancellationData> selector,
+                               AtomicBoolean aborted) throws InterruptedException {
+        try {
+            OmmCancellationHandler.CancellationData winner = null;
+            while (true) {
+                final OmmCancellationHandler.CancellationData data = take(decoded, aborted);
+                if (data == null) {
+                    return;
+                }
+                if (data == END_OF_ROWS) {
+                    if (winner != null && selector.test(winner) && !put(selected, winner, aborted)) {
+                        return;
+                    }
+                    put(selected, END_OF_ROWS, aborted);
+                    return;
+                }
+                if (winner == null) {
+                    winner = data;
+                } else if (winner.dvjId != data.dvjId || winner.deviationCaseId != data.deviationCaseId) {
+                    if (selector.test(winner) && !put(selected, winner, aborted)) {
+                        return;
+                    }
+                    winner = data;
+                } else {
+                    winner = OmmCancellationHandler.pickWinner(winner, data);
+                }
+            }
+        } catch (RuntimeException | InterruptedException e) {
+            aborted.set(true);
+            throw e;
+        }
+    }
+
+    private static void publish(BlockingQueue<OmmCancellationHandler.CancellationData> selected, Sink sink,
+                                AtomicBoolean aborted) throws PulsarClientException, InterruptedException {
+        try {
+            while (true) {
+                final OmmCancellationHandler.CancellationData data = take(selected, aborted);
+                if (data == null || data == END_OF_ROWS) {
+                    return;
+                }
+                sink.publish(data);
+            }
+        } catch (PulsarClientException | RuntimeException | InterruptedException e) {
+            aborted.set(true);
+            throw e;
+        }
+    }
+
+    /**
+     * @return false if the pipeline was aborted before there was room in the queue
+     */
+    private static boolean put(BlockingQueue<OmmCancellationHandler.CancellationData> queue,
+                               OmmCancellationHandler.CancellationData data,
+                               AtomicBoolean aborted) throws InterruptedException {
+        while (!queue.offer(data, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            if (aborted.get()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return null if the pipeline was aborted before anything was available
+     */
+    private static OmmCancellationHandler.CancellationData take(BlockingQueue<OmmCancellationHandler.CancellationData> queue,
+                                                                AtomicBoolean aborted) throws InterruptedException {
+        OmmCancellationHandler.CancellationData data;
+        while ((data = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) == null) {
+            if (aborted.get()) {
+                return null;
+            }
+        }
+        return data;
+    }
+
+    private static void await(Future<?> stage, AtomicBoolean aborted) throws PulsarClientException {
+        try {
+            stage.get();
+        } catch (ExecutionException e) {
+            aborted.set(true);
+            final Throwable cause = e.getCause();
+            if (cause instanceof PulsarClientException) {
+                throw (PulsarClientException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException("Cancellation pipeline failed", cause);
+        } catch (InterruptedException e) {
+            aborted.set(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for cancellation pipeline", e);
+        }
+    }
+
+    private static void abort(AtomicBoolean aborted, Future<?>... stages) {
+        aborted.set(true);
+        for (Future<?> stage : stages) {
+            try {
+                stage.get();
+            } catch (Exception e) {
+                log.debug("Pipeline stage stopped", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
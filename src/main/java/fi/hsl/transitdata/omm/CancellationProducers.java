@@ -0,0 +1,55 @@
+package fi.hsl.transitdata.omm;
+
+import com.typesafe.config.Config;
+import org.apache.pulsar.client.api.BatcherBuilder;
+import org.apache.pulsar.client.api.CompressionType;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.ProducerBuilder;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the producers of cancellations with the batching and compression settings of omm.producer.
+ * The producer of transitdata-common is disabled, because its batching and compression can't be configured.
+ */
+final class CancellationProducers {
+    private static final Logger log = LoggerFactory.getLogger(CancellationProducers.class);
+
+    private CancellationProducers() {}
+
+    static Producer<byte[]> create(PulsarClient client, Config config, String topic) throws PulsarClientException {
+        return configure(client.newProducer(), config, topic).create();
+    }
+
+    static ProducerBuilder<byte[]> configure(ProducerBuilder<byte[]> builder, Config config, String topic) {
+        final boolean batching = config.getBoolean("omm.producer.batching.enabled");
+        final CompressionType compression = CompressionType.valueOf(config.getString("omm.producer.compression").toUpperCase());
+        builder.topic(topic)
+                .blockIfQueueFull(true)
+                .compressionType(compression)
+                .enableBatching(batching);
+        if (batching) {
+            final String batcher = config.getString("omm.producer.batching.batcher");
+            builder.batcherBuilder(batcher(batcher))
+                    .batchingMaxPublishDelay(config.getLong("omm.producer.batching.maxDelay"), TimeUnit.MILLISECONDS)
+                    .batchingMaxMessages(config.getInt("omm.producer.batching.maxMessages"))
+                    .batchingMaxBytes(config.getInt("omm.producer.batching.maxBytes"));
+            log.info("Producer for topic {} batches messages with the {} batcher and compresses with {}", topic, batcher, compression);
+        } else {
+            log.info("Producer for topic {} sends messages one by one and compresses with {}", topic, compression);
+        }
+        return builder;
+    }
+
+    static BatcherBuilder batcher(String name) {
+        switch (name.toUpperCase()) {
+            case "KEY_BASED": return BatcherBuilder.KEY_BASED;
+            case "DEFAULT": return BatcherBuilder.DEFAULT;
+        }
+        throw new IllegalArgumentException("Unknown batcher " + name + ", expected KEY_BASED or DEFAULT");
+    }
+}
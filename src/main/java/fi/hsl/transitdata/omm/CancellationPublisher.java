@@ -0,0 +1,353 @@
+package fi.hsl.transitdata.omm;
+
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes TripCancellations to Pulsar either one blocking send at a time or pipelined with sendAsync.
+ *
+ * In async mode at most maxInFlight messages are waiting for acknowledgement at any time and
+ * {@link #flush()} must be called at the end of the cycle to wait for the rest and to find out if any of them failed.
+ * Sending can be paced to a maximum rate, for publishing large backfills without flooding the consumers.
+ *
+ * The freshness of each cancellation, the time from its last modification in OMM to its acknowledgement by Pulsar,
+ * is recorded by deviation case type and by whether it is published for the first time since it changed or again.
+ * Times in OMM are converted from its local time zone, so clock skew between OMM and this host is included.
+ *
+ * With an outbox, cancellations that can't be sent are appended to it instead of failing the cycle. While the outbox
+ * has cancellations, new ones are appended after them to keep the order, and {@link #flush()} tries to send them
+ * once the producer is connected.
+ */
+public class CancellationPublisher {
+    private static final Logger log = LoggerFactory.getLogger(CancellationPublisher.class);
+
+    private final Producer<byte[]> producer;
+    private final boolean async;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final long sendIntervalNanos;
+    private long nextSendNanos = 0;
+
+    private final long freshnessSloMs;
+
+    private final AtomicInteger failureCount = new AtomicInteger();
+    private final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+
+    // Null fails the cycle when a cancellation can't be sent
+    private final CancellationOutbox outbox;
+    private long sequence;
+    // Sequence numbers of the cancellations acknowledged while the outbox has cancellations, by dvjId
+    private final Map<Long, Long> acknowledgedSinceOutbox = new ConcurrentHashMap<>();
+
+    /**
+     * Why a cancellation is published, for the freshness metrics
+     */
+    enum Publication {
+        // New or changed since it was last published
+        NEW("new"),
+        // Unchanged but sent again, f.ex. in a keyframe, or modified before the previous query
+        REPEATED("repeated");
+
+        final String label;
+
+        Publication(String label) {
+            this.label = label;
+        }
+    }
+
+    public CancellationPublisher(Producer<byte[]> producer, boolean async, int maxInFlight) {
+        this(producer, async, maxInFlight, 0);
+    }
+
+    /**
+     * @param rateLimit Maximum number of messages sent per second, 0 for unlimited
+     */
+    public CancellationPublisher(Producer<byte[]> producer, boolean async, int maxInFlight, double rateLimit) {
+        this(producer, async, maxInFlight, rateLimit, 0);
+    }
+
+    /**
+     * @param freshnessSlo Seconds from the last modification in OMM within which a new cancellation should be acknowledged,
+     *                     0 disables recording the freshness
+     */
+    public CancellationPublisher(Producer<byte[]> producer, boolean async, int maxInFlight, double rateLimit, double freshnessSlo) {
+        this(producer, async, maxInFlight, rateLimit, freshnessSlo, null);
+    }
+
+    /**
+     * @param outbox Null if a cancellation that can't be sent fails the cycle
+     */
+    CancellationPublisher(Producer<byte[]> producer, boolean async, int maxInFlight, double rateLimit, double freshnessSlo, CancellationOutbox outbox) {
+        this.producer = producer;
+        this.async = async;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.sendIntervalNanos = rateLimit > 0 ? (long) (1e9 / rateLimit) : 0;
+        this.freshnessSloMs = (long) (freshnessSlo * 1000);
+        this.outbox = outbox;
+        this.sequence = outbox != null ? outbox.lastSequence() : 0;
+        if (outbox != null && !outbox.isEmpty()) {
+            log.info("Outbox {} has {} cancellations left from the previous run", outbox.getPath(), outbox.size());
+        }
+    }
+
+    /**
+     * Publishes a cancellation that is not based on a modification in OMM, so its freshness is not recorded
+     */
+    public void publish(InternalMessages.TripCancellation tripCancellation, long timestamp, long dvjId) throws PulsarClientException {
+        publish(tripCancellation, timestamp, dvjId, null);
+    }
+
+    /**
+     * @param timestamp Last modification time of the cancellation in OMM
+     * @param publication Null if the freshness is not recorded
+     */
+    public void publish(InternalMessages.TripCancellation tripCancellation, long timestamp, long dvjId, Publication publication) throws PulsarClientException {
+        final long messageSequence = ++sequence;
+        if (outbox != null && !outbox.isEmpty()) {
+            // Sent after the cancellations that are already waiting
+            appendToOutbox(new CancellationOutbox.Record(messageSequence, dvjId, timestamp, publication, tripCancellation.toByteArray()));
+            return;
+        }
+        try {
+            final String key = Long.toString(dvjId);
+            TypedMessageBuilder<byte[]> message = producer.newMessage().value(tripCancellation.toByteArray())
+                    .eventTime(timestamp)
+                    .key(key)
+                    .property(TransitdataProperties.KEY_DVJ_ID, key)
+                    .property(TransitdataProperties.KEY_PROTOBUF_SCHEMA, TransitdataProperties.ProtobufSchema.InternalMessagesTripCancellation.toString());
+
+            pace();
+            if (async) {
+                inFlight.acquire();
+                OmmMetrics.PUBLISH_IN_FLIGHT.inc();
+                final long sendStartNanos = System.nanoTime();
+                message.sendAsync().whenComplete((messageId, throwable) -> {
+                    inFlight.release();
+                    OmmMetrics.PUBLISH_IN_FLIGHT.dec();
+                    OmmMetrics.PUBLISH_LATENCY.observe(OmmMetrics.secondsSince(sendStartNanos));
+                    if (throwable != null) {
+                        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                        log.error("Failed to send message to Pulsar", cause);
+                        OmmMetrics.PUBLISH_FAILURES.inc();
+                        if (outbox == null || !appendFailedToOutbox(new CancellationOutbox.Record(messageSequence, dvjId, timestamp, publication, tripCancellation.toByteArray()))) {
+                            failureCount.incrementAndGet();
+                            firstFailure.compareAndSet(null, cause);
+                        }
+                    } else {
+                        if (outbox != null && !outbox.isEmpty()) {
+                            // Cancellations of the trip sent before this one must not be sent from the outbox later
+                            acknowledgedSinceOutbox.merge(dvjId, messageSequence, Math::max);
+                        }
+                        recordFreshness(tripCancellation, timestamp, publication);
+                        logIfEntireDepartureCancellation(tripCancellation);
+                    }
+                });
+            } else {
+                final long sendStartNanos = System.nanoTime();
+                message.send();
+                OmmMetrics.PUBLISH_LATENCY.observe(OmmMetrics.secondsSince(sendStartNanos));
+                recordFreshness(tripCancellation, timestamp, publication);
+                logIfEntireDepartureCancellation(tripCancellation);
+            }
+        } catch (PulsarClientException pe) {
+            log.error("Failed to send message to Pulsar", pe);
+            OmmMetrics.PUBLISH_FAILURES.inc();
+            if (outbox == null) {
+                throw pe;
+            }
+            appendToOutbox(new CancellationOutbox.Record(messageSequence, dvjId, timestamp, publication, tripCancellation.toByteArray()));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new PulsarClientException(ie);
+        } catch (Exception e) {
+            log.error("Failed to handle cancellation message", e);
+        }
+    }
+
+    private void appendToOutbox(CancellationOutbox.Record record) throws PulsarClientException {
+        try {
+            outbox.append(record);
+        } catch (IOException e) {
+            log.error("Failed to append cancellation to outbox {}", outbox.getPath(), e);
+            throw new PulsarClientException(e);
+        }
+    }
+
+    /**
+     * Called on the thread of the producer, the failure is reported by {@link #flush()} if the outbox can't take it
+     *
+     * @return True if the cancellation was appended to the outbox
+     */
+    private boolean appendFailedToOutbox(CancellationOutbox.Record record) {
+        try {
+            outbox.append(record);
+            return true;
+        } catch (IOException e) {
+            log.error("Failed to append cancellation to outbox {}", outbox.getPath(), e);
+            return false;
+        }
+    }
+
+    private void recordFreshness(InternalMessages.TripCancellation tripCancellation, long timestamp, Publication publication) {
+        if (publication == null || freshnessSloMs <= 0) {
+            return;
+        }
+        final long lagMs = Math.max(0, System.currentTimeMillis() - timestamp);
+        final String deviationCasesType = tripCancellation.getDeviationCasesType().name();
+        OmmMetrics.FRESHNESS_LAG.labels(deviationCasesType, publication.label).observe(lagMs / 1000.0);
+        // Repeated cancellations were modified long ago, so only the new ones tell how fast edits reach Pulsar
+        if (publication == Publication.NEW && lagMs > freshnessSloMs) {
+            OmmMetrics.FRESHNESS_SLO_BREACHES.labels(deviationCasesType).inc();
+        }
+    }
+
+    /**
+     * Sleeps until the next message can be sent within the rate limit. Messages are published from one thread at a time.
+     */
+    private void pace() throws InterruptedException {
+        if (sendIntervalNanos == 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (nextSendNanos > now) {
+            final long waitNanos = nextSendNanos - now;
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+            nextSendNanos += sendIntervalNanos;
+        } else {
+            nextSendNanos = now + sendIntervalNanos;
+        }
+    }
+
+    /**
+     * Waits until all in-flight messages have been acknowledged.
+     *
+     * @throws PulsarClientException if any of the messages sent since the previous flush failed
+     */
+    public void flush() throws PulsarClientException {
+        if (async) {
+            try {
+                producer.flush();
+                awaitInFlight();
+            } catch (PulsarClientException e) {
+                if (outbox == null) {
+                    throw e;
+                }
+                // Failed messages are appended to the outbox once they time out
+                log.error("Failed to flush producer", e);
+                awaitInFlight();
+            }
+        }
+        throwFailures();
+        if (outbox != null && !outbox.isEmpty()) {
+            drainOutbox();
+            outbox.force();
+        }
+    }
+
+    private void awaitInFlight() throws PulsarClientException {
+        try {
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new PulsarClientException(ie);
+        }
+    }
+
+    /**
+     * Sends the latest cancellation of each trip in the outbox in the order they were appended. The outbox is cleared
+     * if all of them are acknowledged, otherwise all of them are sent again on the next flush.
+     */
+    private void drainOutbox() throws PulsarClientException {
+        if (!producer.isConnected()) {
+            log.warn("Producer is not connected, keeping {} cancellations in outbox {}", outbox.size(), outbox.getPath());
+            return;
+        }
+        final List<CancellationOutbox.Record> records = outbox.coalesce(acknowledgedSinceOutbox);
+        log.info("Sending {} cancellations of {} in outbox {}", records.size(), outbox.size(), outbox.getPath());
+        final AtomicInteger failures = new AtomicInteger();
+        try {
+            for (CancellationOutbox.Record record : records) {
+                final InternalMessages.TripCancellation tripCancellation = InternalMessages.TripCancellation.parseFrom(record.payload);
+                final String key = Long.toString(record.dvjId);
+                pace();
+                inFlight.acquire();
+                OmmMetrics.PUBLISH_IN_FLIGHT.inc();
+                producer.newMessage().value(record.payload)
+                        .eventTime(record.timestamp)
+                        .key(key)
+                        .property(TransitdataProperties.KEY_DVJ_ID, key)
+                        .property(TransitdataProperties.KEY_PROTOBUF_SCHEMA, TransitdataProperties.ProtobufSchema.InternalMessagesTripCancellation.toString())
+                        .sendAsync()
+                        .whenComplete((messageId, throwable) -> {
+                            inFlight.release();
+                            OmmMetrics.PUBLISH_IN_FLIGHT.dec();
+                            if (throwable != null) {
+                                OmmMetrics.PUBLISH_FAILURES.inc();
+                                failures.incrementAndGet();
+                            } else {
+                                recordFreshness(tripCancellation, record.timestamp, record.publication);
+                            }
+                        });
+            }
+            awaitInFlight();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new PulsarClientException(ie);
+        } catch (IOException e) {
+            // The outbox can't be sent in order without this cancellation, so keep it and let the cycle fail
+            throw new PulsarClientException(e);
+        }
+
+        if (failures.get() > 0) {
+            log.warn("Failed to send {} cancellations from outbox {}, trying again on the next poll", failures.get(), outbox.getPath());
+        } else {
+            outbox.clear();
+            acknowledgedSinceOutbox.clear();
+            log.info("Sent all cancellations in outbox {}", outbox.getPath());
+        }
+    }
+
+    private void throwFailures() throws PulsarClientException {
+        final int failures = failureCount.getAndSet(0);
+        final Throwable failure = firstFailure.getAndSet(null);
+        if (failures > 0) {
+            log.error("Failed to send {} messages to Pulsar", failures);
+            throw failure instanceof PulsarClientException ? (PulsarClientException) failure : new PulsarClientException(failure);
+        }
+    }
+
+    void close() {
+        if (outbox == null) {
+            return;
+        }
+        try {
+            outbox.close();
+        } catch (IOException e) {
+            log.error("Failed to close outbox {}", outbox.getPath(), e);
+        }
+    }
+
+    private static void logIfEntireDepartureCancellation(InternalMessages.TripCancellation tripCancellation) {
+        if (tripCancellation.getDeviationCasesType() == InternalMessages.TripCancellation.DeviationCasesType.CANCEL_DEPARTURE && tripCancellation.getAffectedDeparturesType() == InternalMessages.TripCancellation.AffectedDeparturesType.CANCEL_ENTIRE_DEPARTURE) {
+            log.info("Produced entire departure cancellation for trip: " + tripCancellation.getRouteId() + "/" +
+                    tripCancellation.getDirectionId() + "-" + tripCancellation.getStartTime() + "-" +
+                    tripCancellation.getStartDate());
+        }
+    }
+}
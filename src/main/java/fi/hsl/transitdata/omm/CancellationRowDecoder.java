@@ -0,0 +1,375 @@
+package fi.hsl.transitdata.omm;
+
+import com.google.protobuf.ByteString;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Decodes cancellation rows from a ResultSet. Column indexes are resolved once per ResultSet,
+ * enums are mapped with prebuilt lookup tables and timestamps are converted without going through strings.
+ * The queries return the trip data as raw numbers and dates, and the direction, operating day and start time
+ * are formatted here the same way as the queries used to format them.
+ * The bulletin fields are the same for all departures of a deviation case, so they are decoded once per deviation case
+ * and the cancellations share the encoded title and description.
+ */
+class CancellationRowDecoder {
+    private static final Logger log = LoggerFactory.getLogger(CancellationRowDecoder.class);
+
+    private static final Map<String, InternalMessages.TripCancellation.DeviationCasesType> DEVIATION_CASES_TYPES =
+            lookupTable(InternalMessages.TripCancellation.DeviationCasesType.values());
+    private static final Map<String, InternalMessages.TripCancellation.AffectedDeparturesType> AFFECTED_DEPARTURES_TYPES =
+            lookupTable(InternalMessages.TripCancellation.AffectedDeparturesType.values());
+    private static final Map<String, InternalMessages.Category> CATEGORIES =
+            lookupTable(InternalMessages.Category.values());
+    private static final Map<String, InternalMessages.TripCancellation.SubCategory> SUB_CATEGORIES =
+            lookupTable(InternalMessages.TripCancellation.SubCategory.values());
+
+    // Start times of trips of up to two operating days, i.e. trips starting after midnight
+    private static final String[] START_TIMES = new String[48 * 60];
+    static {
+        for (int i = 0; i < START_TIMES.length; i++) {
+            START_TIMES[i] = String.format("%02d:%02d:00", i / 60, i % 60);
+        }
+    }
+
+    /**
+     * Column values of one cancellation row
+     */
+    static final class Row {
+        long deviationCaseId;
+        String routeName;
+        int direction;
+        String operatingDay; // yyyyMMdd
+        String startTime; // HH:mm:ss in local time
+        String affectedDeparturesStatus;
+        long dvjId;
+        String deviationCasesType;
+        String affectedDeparturesType;
+        String title;
+        String description;
+        String category;
+        String subCategory;
+        Timestamp affectedDeparturesLastModified;
+    }
+
+    /**
+     * Decoded fields of a deviation case and its bulletin, with the raw values for noticing when they change
+     */
+    private static final class DeviationCaseFields {
+        final String rawDeviationCasesType;
+        final String rawTitle;
+        final String rawDescription;
+        final String rawCategory;
+        final String rawSubCategory;
+
+        final InternalMessages.TripCancellation.DeviationCasesType deviationCasesType;
+        final ByteString title;
+        final ByteString description;
+        final InternalMessages.Category category;
+        final InternalMessages.TripCancellation.SubCategory subCategory;
+
+        DeviationCaseFields(Row row) {
+            rawDeviationCasesType = row.deviationCasesType;
+            rawTitle = row.title;
+            rawDescription = row.description;
+            rawCategory = row.category;
+            rawSubCategory = row.subCategory;
+            deviationCasesType = lookup(DEVIATION_CASES_TYPES, row.deviationCasesType);
+            title = ByteString.copyFromUtf8(row.title);
+            description = ByteString.copyFromUtf8(row.description);
+            category = lookup(CATEGORIES, row.category);
+            subCategory = lookup(SUB_CATEGORIES, row.subCategory);
+        }
+
+        boolean matches(Row row) {
+            return Objects.equals(rawDeviationCasesType, row.deviationCasesType)
+                    && Objects.equals(rawTitle, row.title)
+                    && Objects.equals(rawDescription, row.description)
+                    && Objects.equals(rawCategory, row.category)
+                    && Objects.equals(rawSubCategory, row.subCategory);
+        }
+    }
+
+    private final Map<Long, DeviationCaseFields> deviationCases = new HashMap<>();
+    private final Map<Date, String> operatingDays = new HashMap<>();
+    private final ZoneRules zoneRules;
+    private final long queryStartNanos;
+    private boolean firstRowRead = false;
+    private final Row row = new Row();
+
+    private final int deviationCaseIdIndex;
+    private final int routeNameIndex;
+    private final int directionIndex;
+    private final int operatingDayIndex;
+    private final int startTimeIndex;
+    private final int affectedDeparturesStatusIndex;
+    private final int dvjIdIndex;
+    private final int deviationCasesTypeIndex;
+    private final int affectedDeparturesTypeIndex;
+    private final int titleIndex;
+    private final int descriptionIndex;
+    private final int categoryIndex;
+    private final int subCategoryIndex;
+    private final int affectedDeparturesLastModifiedIndex;
+
+    CancellationRowDecoder(ResultSet resultSet, ZoneId zone) throws SQLException {
+        this(resultSet, zone, System.nanoTime());
+    }
+
+    /**
+     * @param queryStartNanos System.nanoTime() when the query was started, for measuring the time to the first row
+     */
+    CancellationRowDecoder(ResultSet resultSet, ZoneId zone, long queryStartNanos) throws SQLException {
+        this.queryStartNanos = queryStartNanos;
+        zoneRules = zone.getRules();
+        deviationCaseIdIndex = resultSet.findColumn("deviation_case_id");
+        routeNameIndex = resultSet.findColumn("ROUTE_NAME");
+        directionIndex = resultSet.findColumn("DIRECTION_OF_LINE_GID");
+        operatingDayIndex = resultSet.findColumn("OPERATING_DAY_DATE");
+        startTimeIndex = resultSet.findColumn("START_MINUTES");
+        affectedDeparturesStatusIndex = resultSet.findColumn("AFFECTED_DEPARTURES_STATUS");
+        dvjIdIndex = resultSet.findColumn("DVJ_ID");
+        deviationCasesTypeIndex = resultSet.findColumn("DEVIATION_CASES_TYPE");
+        affectedDeparturesTypeIndex = resultSet.findColumn("AFFECTED_DEPARTURES_TYPE");
+        titleIndex = resultSet.findColumn("TITLE");
+        descriptionIndex = resultSet.findColumn("DESCRIPTION");
+        categoryIndex = resultSet.findColumn("CATEGORY");
+        subCategoryIndex = resultSet.findColumn("SUB_CATEGORY");
+        affectedDeparturesLastModifiedIndex = resultSet.findColumn("AFFECTED_DEPARTURES_LAST_MODIFIED"); //other option is to use DEVIATION_CASES_LAST_MODIFIED
+    }
+
+    /**
+     * Decoder for rows that are not read from a ResultSet with all the columns, use only {@link #toCancellation(Row)}
+     */
+    CancellationRowDecoder(ZoneId zone) {
+        queryStartNanos = System.nanoTime();
+        zoneRules = zone.getRules();
+        deviationCaseIdIndex = routeNameIndex = directionIndex = operatingDayIndex = startTimeIndex = -1;
+        affectedDeparturesStatusIndex = dvjIdIndex = deviationCasesTypeIndex = affectedDeparturesTypeIndex = -1;
+        titleIndex = descriptionIndex = categoryIndex = subCategoryIndex = affectedDeparturesLastModifiedIndex = -1;
+    }
+
+    /**
+     * Decodes the current row of the ResultSet
+     *
+     * @return Cancellation or empty if the row could not be parsed
+     */
+    Optional<OmmCancellationHandler.CancellationData> decode(ResultSet resultSet) throws SQLException {
+        if (!firstRowRead) {
+            firstRowRead = true;
+            OmmMetrics.QUERY_FIRST_ROW.observe(OmmMetrics.secondsSince(queryStartNanos));
+        }
+        OmmMetrics.ROWS_READ.inc();
+
+        row.deviationCaseId = resultSet.getLong(deviationCaseIdIndex);
+        row.routeName = resultSet.getString(routeNameIndex);
+        row.direction = direction(resultSet.getLong(directionIndex));
+        row.operatingDay = operatingDay(resultSet.getDate(operatingDayIndex));
+        row.startTime = startTime(resultSet.getInt(startTimeIndex));
+        row.affectedDeparturesStatus = resultSet.getString(affectedDeparturesStatusIndex);
+        row.dvjId = resultSet.getLong(dvjIdIndex);
+        row.deviationCasesType = resultSet.getString(deviationCasesTypeIndex);
+        row.affectedDeparturesType = resultSet.getString(affectedDeparturesTypeIndex);
+        row.title = resultSet.getString(titleIndex);
+        row.description = resultSet.getString(descriptionIndex);
+        row.category = resultSet.getString(categoryIndex);
+        row.subCategory = resultSet.getString(subCategoryIndex);
+        row.affectedDeparturesLastModified = resultSet.getTimestamp(affectedDeparturesLastModifiedIndex);
+        return toCancellation(row);
+    }
+
+    /**
+     * @return Cancellation or empty if the row could not be parsed
+     */
+    Optional<OmmCancellationHandler.CancellationData> toCancellation(Row row) {
+        try {
+            InternalMessages.TripCancellation.Builder builder = InternalMessages.TripCancellation.newBuilder();
+
+            builder.setDeviationCaseId(row.deviationCaseId);
+
+            builder.setRouteId(row.routeName);
+            builder.setDirectionId(row.direction);
+            builder.setStartDate(row.operatingDay);
+            builder.setStartTime(row.startTime);
+
+            // If active -> cancellation is valid, if deleted then the cancellation has been cancelled.
+            if (isDeleted(row.affectedDeparturesStatus)) {
+                log.debug("Cancelling a cancellation for route {}:{}:{}:{}", row.routeName, row.operatingDay, row.startTime, row.direction);
+                builder.setStatus(InternalMessages.TripCancellation.Status.RUNNING);
+            }
+            else {
+                builder.setStatus(InternalMessages.TripCancellation.Status.CANCELED);
+            }
+
+            //Version number is defined in the proto file as default value but we still need to set it since it's a required field
+            builder.setSchemaVersion(builder.getSchemaVersion());
+            builder.setTripId(Long.toString(row.dvjId));
+
+            final DeviationCaseFields deviationCase = deviationCaseFields(row);
+            builder.setDeviationCasesType(deviationCase.deviationCasesType);
+            builder.setAffectedDeparturesType(lookup(AFFECTED_DEPARTURES_TYPES, row.affectedDeparturesType));
+            builder.setTitleBytes(deviationCase.title);
+            builder.setDescriptionBytes(deviationCase.description);
+            builder.setCategory(deviationCase.category);
+            builder.setSubCategory(deviationCase.subCategory);
+
+            final InternalMessages.TripCancellation cancellation = builder.build();
+
+            log.debug("Read cancellation for route {} with  dvjId {} and description '{}'",
+                    row.routeName, row.dvjId, row.description);
+
+            if (row.affectedDeparturesLastModified == null) {
+                log.error("Missing AFFECTED_DEPARTURES_LAST_MODIFIED for dvjId {}", row.dvjId);
+                OmmMetrics.PARSE_FAILURES.inc();
+                return Optional.empty();
+            }
+            return Optional.of(new OmmCancellationHandler.CancellationData(cancellation,
+                    toEpochMs(row.affectedDeparturesLastModified, zoneRules), row.dvjId, row.deviationCaseId));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            log.error("Error while parsing the cancellation resultset", e);
+            OmmMetrics.PARSE_FAILURES.inc();
+        }
+        return Optional.empty();
+    }
+
+    private DeviationCaseFields deviationCaseFields(Row row) {
+        DeviationCaseFields fields = deviationCases.get(row.deviationCaseId);
+        // Rows of the same deviation case normally have the same bulletin, but it can be edited while the query is running
+        if (fields == null || !fields.matches(row)) {
+            fields = new DeviationCaseFields(row);
+            deviationCases.put(row.deviationCaseId, fields);
+        }
+        return fields;
+    }
+
+    /**
+     * Operating days are shared by many rows, so each is formatted once per decoder
+     */
+    private String operatingDay(Date operatingDayDate) {
+        if (operatingDayDate == null) {
+            return null;
+        }
+        return operatingDays.computeIfAbsent(operatingDayDate, date -> operatingDay(date.toLocalDate()));
+    }
+
+    /**
+     * @return yyyyMMdd, as CONVERT(CHAR(8), date, 112)
+     */
+    static String operatingDay(LocalDate operatingDay) {
+        final int year = operatingDay.getYear();
+        final int month = operatingDay.getMonthValue();
+        final int day = operatingDay.getDayOfMonth();
+        return new String(new char[] {
+                digit(year / 1000), digit(year / 100), digit(year / 10), digit(year),
+                digit(month / 10), digit(month), digit(day / 10), digit(day) });
+    }
+
+    private static char digit(int value) {
+        return (char) ('0' + value % 10);
+    }
+
+    /**
+     * Direction is the 12th digit of the 16-digit direction of line Gid, 0 if the Gid is shorter than 12 digits
+     */
+    static int direction(long directionOfLineGid) {
+        if (directionOfLineGid < 100_000_000_000L) {
+            return 0;
+        }
+        long divisor = 1;
+        for (long digits = directionOfLineGid; digits >= 1_000_000_000_000L; digits /= 10) {
+            divisor *= 10;
+        }
+        return (int) (directionOfLineGid / divisor % 10);
+    }
+
+    /**
+     * @param startMinutes Minutes from the start of the operating day, can be over 24 hours for trips after midnight
+     * @return HH:mm:00, formatted like the queries did before for all values
+     */
+    static String startTime(int startMinutes) {
+        if (startMinutes >= 0 && startMinutes < START_TIMES.length) {
+            return START_TIMES[startMinutes];
+        }
+        // DATEDIFF(HOUR, ...) counts the hour boundaries, i.e. rounds down also before the start of the day
+        final int hours = Math.floorDiv(startMinutes, 60);
+        return queryTwoDigits(hours) + ":" + queryTwoDigits(startMinutes - hours * 60) + ":00";
+    }
+
+    /**
+     * Same as RIGHT('0' + CONVERT(VARCHAR(2), value), 2), SQL Server converts integers that don't fit to '*'
+     */
+    private static String queryTwoDigits(int value) {
+        final String digits = Integer.toString(value);
+        final String padded = "0" + (digits.length() > 2 ? "*" : digits);
+        return padded.substring(padded.length() - 2);
+    }
+
+    /**
+     * Converts a java.sql.Timestamp containing local time of the OMM database to epoch milliseconds.
+     * Gives the same result as LocalDateTime.atZone, i.e. the earlier offset is used during overlaps.
+     */
+    static long toEpochMs(Timestamp timestamp, ZoneRules zoneRules) {
+        final LocalDateTime localDateTime = timestamp.toLocalDateTime();
+        final long epochSecond = localDateTime.toEpochSecond(zoneRules.getOffset(localDateTime));
+        return epochSecond * 1000 + localDateTime.getNano() / 1_000_000;
+    }
+
+    static boolean isDeleted(String affectedDeparturesStatus) {
+        if (affectedDeparturesStatus == null || "active".equalsIgnoreCase(affectedDeparturesStatus)) {
+            return false;
+        }
+        if ("deleted".equalsIgnoreCase(affectedDeparturesStatus)) {
+            return true;
+        }
+        throw new IllegalArgumentException("Unknown affected departures status " + affectedDeparturesStatus);
+    }
+
+    static <E extends Enum<E>> Map<String, E> lookupTable(E[] values) {
+        final Map<String, E> table = new HashMap<>(values.length * 2);
+        for (E value : values) {
+            table.put(value.name(), value);
+        }
+        return table;
+    }
+
+    /**
+     * Same as Enum.valueOf but with a prebuilt table
+     */
+    static <E extends Enum<E>> E lookup(Map<String, E> table, String name) {
+        final E value = name != null ? table.get(name) : null;
+        if (value == null) {
+            throw new IllegalArgumentException("No enum constant for " + name);
+        }
+        return value;
+    }
+
+    static InternalMessages.TripCancellation.DeviationCasesType toDeviationCasesType(String deviationCasesType) {
+        return lookup(DEVIATION_CASES_TYPES, deviationCasesType);
+    }
+
+    static InternalMessages.TripCancellation.AffectedDeparturesType toAffectedDeparturesType(String affectedDeparturesType) {
+        return lookup(AFFECTED_DEPARTURES_TYPES, affectedDeparturesType);
+    }
+
+    static InternalMessages.Category toCategory(String category) {
+        return lookup(CATEGORIES, category);
+    }
+
+    static InternalMessages.TripCancellation.SubCategory toSubCategory(String subCategory) {
+        return lookup(SUB_CATEGORIES, subCategory);
+    }
+}
@@ -2,12 +2,14 @@ package fi.hsl.transitdata.omm;
 
 public enum CancellationSourceType {
     FROM_PAST,
-    FROM_NOW;
+    FROM_NOW,
+    FROM_NOW_AND_PAST;
 
     public String toString() {
         switch (this) {
             case FROM_PAST: return "fromPast";
             case FROM_NOW: return "fromNow";
+            case FROM_NOW_AND_PAST: return "fromNowAndPast";
         }
         return "";
     }
@@ -17,6 +19,8 @@ public enum CancellationSourceType {
             return FROM_PAST;
         else if ("NOW".equals(cancellationSourceType))
             return FROM_NOW;
+        else if ("NOW_AND_PAST".equals(cancellationSourceType))
+            return FROM_NOW_AND_PAST;
         return null;
     }
 }
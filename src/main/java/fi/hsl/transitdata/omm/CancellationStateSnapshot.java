@@ -0,0 +1,141 @@
+package fi.hsl.transitdata.omm;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped binary snapshot of the published cancellations, so that change tracking continues after a restart
+ * instead of everything being sent again as new.
+ *
+ * Layout: magic, version, source type, time of the latest keyframe, entry count, entries and a CRC32 of everything
+ * before it. Each entry is dvjId, deviation case ID, timestamp, fingerprint, payload length and the serialized
+ * TripCancellation. The payload is needed to publish cancellations that disappear after the restart as running.
+ * The file is replaced atomically, so a crash while writing leaves the previous snapshot in place.
+ */
+class CancellationStateSnapshot {
+    private static final int MAGIC = 0x4f4d4d53; // OMMS
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 8 + 4;
+    private static final int ENTRY_HEADER_BYTES = 8 + 8 + 8 + 8 + 4;
+    private static final int CHECKSUM_BYTES = 4;
+
+    static final class State {
+        final long keyframeTime;
+        final List<CancellationChangeTracker.Entry> entries;
+
+        State(long keyframeTime, List<CancellationChangeTracker.Entry> entries) {
+            this.keyframeTime = keyframeTime;
+            this.entries = entries;
+        }
+    }
+
+    private final Path path;
+    private final CancellationSourceType sourceType;
+
+    CancellationStateSnapshot(Path path, CancellationSourceType sourceType) {
+        this.path = path;
+        this.sourceType = sourceType;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    void write(CancellationChangeTracker tracker, long keyframeTime) throws IOException {
+        final List<CancellationChangeTracker.Entry> entries = new ArrayList<>(tracker.size());
+        tracker.forEachEntry(entries::add);
+
+        final byte[][] payloads = new byte[entries.size()][];
+        long size = HEADER_BYTES + CHECKSUM_BYTES;
+        for (int i = 0; i < payloads.length; i++) {
+            payloads[i] = entries.get(i).data.payload.toByteArray();
+            size += ENTRY_HEADER_BYTES + payloads[i].length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot of " + entries.size() + " cancellations is too large: " + size + " bytes");
+        }
+
+        final Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(sourceType.ordinal()).putLong(keyframeTime).putInt(entries.size());
+            for (int i = 0; i < payloads.length; i++) {
+                final CancellationChangeTracker.Entry entry = entries.get(i);
+                buffer.putLong(entry.data.dvjId)
+                        .putLong(entry.data.deviationCaseId)
+                        .putLong(entry.data.timestampEpochMs)
+                        .putLong(entry.fingerprint)
+                        .putInt(payloads[i].length)
+                        .put(payloads[i]);
+            }
+            buffer.putInt(checksum(buffer, buffer.position()));
+            buffer.force();
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return Empty if there is no snapshot
+     * @throws IOException if the snapshot is corrupted or was written by an incompatible version or source type
+     */
+    Optional<State> read() throws IOException {
+        if (!Files.exists(path)) {
+            return Optional.empty();
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < HEADER_BYTES + CHECKSUM_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid snapshot size " + size);
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            final int bodySize = (int) size - CHECKSUM_BYTES;
+            if (checksum(buffer, bodySize) != buffer.getInt(bodySize)) {
+                throw new IOException("Snapshot checksum does not match");
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unknown snapshot format");
+            }
+            final int snapshotSourceType = buffer.getInt();
+            if (snapshotSourceType != sourceType.ordinal()) {
+                throw new IOException("Snapshot is for source type " + snapshotSourceType + ", not " + sourceType);
+            }
+            final long keyframeTime = buffer.getLong();
+            final int count = buffer.getInt();
+
+            final List<CancellationChangeTracker.Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final long dvjId = buffer.getLong();
+                final long deviationCaseId = buffer.getLong();
+                final long timestampEpochMs = buffer.getLong();
+                final long fingerprint = buffer.getLong();
+                final byte[] payload = new byte[buffer.getInt()];
+                buffer.get(payload);
+                final OmmCancellationHandler.CancellationData data = new OmmCancellationHandler.CancellationData(
+                        InternalMessages.TripCancellation.parseFrom(payload), timestampEpochMs, dvjId, deviationCaseId);
+                entries.add(new CancellationChangeTracker.Entry(data, fingerprint, 0));
+            }
+            return Optional.of(new State(keyframeTime, entries));
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int length) {
+        final ByteBuffer body = buffer.duplicate();
+        body.position(0).limit(length);
+        final CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,115 @@
+package fi.hsl.transitdata.omm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Objects;
+
+/**
+ * Decides whether the full cancellation query needs to be run, based on a cheap query of the latest modification
+ * times and row counts of the OMM tables (omm_change_probe.sql). The full query is also run when it has not been
+ * run for maxStaleness, because cancellations expire and ptDOI4 data changes without OMM being modified.
+ * Changes found within minInterval of the previous full query wait until it has passed, so that continuous editing
+ * in OMM doesn't run the full query on every probe.
+ */
+class ChangeProbe {
+    private static final Logger log = LoggerFactory.getLogger(ChangeProbe.class);
+
+    static final class Snapshot {
+        final Timestamp deviationCasesLastModified;
+        final long deviationCasesCount;
+        final Timestamp affectedDeparturesLastModified;
+        final long affectedDeparturesCount;
+
+        Snapshot(Timestamp deviationCasesLastModified, long deviationCasesCount, Timestamp affectedDeparturesLastModified, long affectedDeparturesCount) {
+            this.deviationCasesLastModified = deviationCasesLastModified;
+            this.deviationCasesCount = deviationCasesCount;
+            this.affectedDeparturesLastModified = affectedDeparturesLastModified;
+            this.affectedDeparturesCount = affectedDeparturesCount;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Snapshot snapshot = (Snapshot) o;
+            return deviationCasesCount == snapshot.deviationCasesCount &&
+                    affectedDeparturesCount == snapshot.affectedDeparturesCount &&
+                    Objects.equals(deviationCasesLastModified, snapshot.deviationCasesLastModified) &&
+                    Objects.equals(affectedDeparturesLastModified, snapshot.affectedDeparturesLastModified);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(deviationCasesLastModified, deviationCasesCount, affectedDeparturesLastModified, affectedDeparturesCount);
+        }
+
+        @Override
+        public String toString() {
+            return "deviation_cases " + deviationCasesCount + " rows modified at " + deviationCasesLastModified +
+                    ", affected_departures " + affectedDeparturesCount + " rows modified at " + affectedDeparturesLastModified;
+        }
+    }
+
+    private final long maxStalenessMs;
+    private final long minIntervalMs;
+
+    private Snapshot queriedSnapshot = null;
+    private long lastQueryTime = 0;
+
+    ChangeProbe(long maxStalenessSecs) {
+        this(maxStalenessSecs, 0);
+    }
+
+    ChangeProbe(long maxStalenessSecs, long minIntervalSecs) {
+        this.maxStalenessMs = maxStalenessSecs * 1000;
+        this.minIntervalMs = minIntervalSecs * 1000;
+    }
+
+    static Snapshot probe(PreparedStatement statement) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) {
+            if (!resultSet.next()) {
+                throw new SQLException("Change probe returned no rows");
+            }
+            return new Snapshot(resultSet.getTimestamp("DEVIATION_CASES_LAST_MODIFIED"),
+                    resultSet.getLong("DEVIATION_CASES_COUNT"),
+                    resultSet.getTimestamp("AFFECTED_DEPARTURES_LAST_MODIFIED"),
+                    resultSet.getLong("AFFECTED_DEPARTURES_COUNT"));
+        }
+    }
+
+    boolean shouldQuery(Snapshot snapshot, long nowMs) {
+        if (queriedSnapshot == null) {
+            OmmMetrics.PROBES.labels("first").inc();
+            return true;
+        }
+        if (nowMs - lastQueryTime < minIntervalMs) {
+            OmmMetrics.PROBES.labels("throttled").inc();
+            return false;
+        }
+        if (!snapshot.equals(queriedSnapshot)) {
+            log.debug("OMM has changed: {}", snapshot);
+            OmmMetrics.PROBES.labels("changed").inc();
+            return true;
+        }
+        if (nowMs - lastQueryTime >= maxStalenessMs) {
+            OmmMetrics.PROBES.labels("stale").inc();
+            return true;
+        }
+        OmmMetrics.PROBES.labels("unchanged").inc();
+        return false;
+    }
+
+    /**
+     * Records a successful full query. The snapshot must have been probed before the query was started,
+     * so that changes made during the query are noticed on the next probe.
+     */
+    void queried(Snapshot snapshot, long queryStartMs) {
+        queriedSnapshot = snapshot;
+        lastQueryTime = queryStartMs;
+    }
+}
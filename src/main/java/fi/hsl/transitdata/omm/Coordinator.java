@@ -0,0 +1,19 @@
+package fi.hsl.transitdata.omm;
+
+import java.util.Set;
+
+/**
+ * Coordinates instances that poll the same source, so that each shard of the cancellations is published by one
+ * instance at a time. With a single shard the owner is the active instance and the others are standbys.
+ */
+interface Coordinator extends AutoCloseable {
+    int shardCount();
+
+    /**
+     * @return Shards currently owned by this instance, empty when the instance is a standby
+     */
+    Set<Integer> ownedShards();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,95 @@
+package fi.hsl.transitdata.omm;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Departure times of cancelled trips from the start date and start time of the TripCancellation
+ */
+final class DepartureTimes {
+    /**
+     * Departure time of a trip whose start date or start time can't be parsed, f.ex. the 0*:05:00 that the queries
+     * format for start times over 99 hours. Such departures are treated as not departed and within any horizon.
+     */
+    static final long UNKNOWN = Long.MIN_VALUE;
+
+    private final ZoneId zone;
+    // Only a few operating days are seen at a time
+    private final Map<String, Long> midnights = new ConcurrentHashMap<>();
+
+    DepartureTimes(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * @return Departure time of the trip in epoch ms or {@link #UNKNOWN}
+     */
+    long departureTime(OmmCancellationHandler.CancellationData data) {
+        final Long midnight = midnights.computeIfAbsent(data.payload.getStartDate(), this::midnight);
+        final int secondsOfDay = secondsOfDay(data.payload.getStartTime());
+        if (midnight == null || secondsOfDay < 0) {
+            return UNKNOWN;
+        }
+        return midnight + secondsOfDay * 1000L;
+    }
+
+    /**
+     * @return false also if the departure time is unknown
+     */
+    boolean hasDeparted(OmmCancellationHandler.CancellationData data, long nowMs) {
+        final long departureTime = departureTime(data);
+        return departureTime != UNKNOWN && departureTime <= nowMs;
+    }
+
+    private Long midnight(String date) {
+        try {
+            return LocalDate.parse(date, DateTimeFormatter.BASIC_ISO_DATE).atStartOfDay(zone).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // Not cached, computeIfAbsent doesn't store nulls
+            return null;
+        }
+    }
+
+    /**
+     * @param time HH:mm:ss, hours can be 24 or more for trips past midnight
+     * @return -1 if the time can't be parsed
+     */
+    static int secondsOfDay(String time) {
+        final int minutesStart = time.indexOf(':') + 1;
+        final int secondsStart = minutesStart > 0 ? time.indexOf(':', minutesStart) + 1 : 0;
+        if (secondsStart == 0) {
+            return -1;
+        }
+        final int hours = digits(time, 0, minutesStart - 1);
+        final int minutes = digits(time, minutesStart, secondsStart - 1);
+        final int seconds = digits(time, secondsStart, time.length());
+        if (hours < 0 || minutes < 0 || seconds < 0) {
+            return -1;
+        }
+        return hours * 3600 + minutes * 60 + seconds;
+    }
+
+    /**
+     * Parses without exceptions, the start times come from every row of the query
+     *
+     * @return -1 unless the range has 1-4 decimal digits
+     */
+    private static int digits(String text, int begin, int end) {
+        if (end <= begin || end - begin > 4) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = begin; i < end; i++) {
+            final char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
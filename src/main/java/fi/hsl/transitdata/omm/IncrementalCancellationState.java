@@ -0,0 +1,168 @@
+package fi.hsl.transitdata.omm;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/**
+ * In-memory state of the active cancellations for the NOW source. After a full resync only the deviation cases
+ * that have been modified since the latest last_modified timestamp seen (the watermark) are queried,
+ * and all rows of each changed deviation case are replaced in the state.
+ *
+ * Deviation cases that are removed from OMM altogether or that no longer pass the joins are noticed
+ * only on the next full resync.
+ */
+class IncrementalCancellationState {
+    private static final Logger log = LoggerFactory.getLogger(IncrementalCancellationState.class);
+
+    private static final LocalDateTime BEGINNING_OF_TIME = LocalDateTime.of(1900, 1, 1, 0, 0);
+    private static final DateTimeFormatter SQL_DATETIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter SQL_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+    static final class Row {
+        final OmmCancellationHandler.CancellationData data;
+        final LocalDateTime validTo;
+
+        Row(OmmCancellationHandler.CancellationData data, LocalDateTime validTo) {
+            this.data = data;
+            this.validTo = validTo;
+        }
+
+        /**
+         * Same condition as in cancellations_current_future.sql
+         */
+        boolean isActive(LocalDateTime now, String today) {
+            if (validTo != null) {
+                return validTo.isAfter(now);
+            }
+            return data.payload.getStatus() == InternalMessages.TripCancellation.Status.RUNNING
+                    && data.payload.getStartDate().compareTo(today) >= 0;
+        }
+    }
+
+    private final Map<Long, List<Row>> rowsByDeviationCase = new HashMap<>();
+    private final ZoneId zone;
+    private final long resyncIntervalMs;
+    private final long watermarkOverlapSecs;
+
+    private LocalDateTime watermark = null;
+    private long lastResyncTime = 0;
+
+    IncrementalCancellationState(String timezone, long resyncIntervalSecs, long watermarkOverlapSecs) {
+        this.zone = ZoneId.of(timezone);
+        this.resyncIntervalMs = resyncIntervalSecs * 1000;
+        this.watermarkOverlapSecs = watermarkOverlapSecs;
+    }
+
+    /**
+     * @param statement Prepared cancellations_modified_since.sql
+     */
+    List<OmmCancellationHandler.CancellationData> poll(PreparedStatement statement, OmmCancellationHandler handler, Instant now) throws SQLException {
+        final LocalDateTime localNow = LocalDateTime.ofInstant(now, zone);
+        final boolean resync = watermark == null || now.toEpochMilli() - lastResyncTime >= resyncIntervalMs;
+
+        final LocalDateTime modifiedSince = resync ? BEGINNING_OF_TIME : watermark.minusSeconds(watermarkOverlapSecs);
+        final LocalDateTime validAfter = resync ? localNow : BEGINNING_OF_TIME;
+        log.info("Querying {} of cancellations modified since {}", resync ? "full resync" : "changes", modifiedSince);
+
+        final List<Row> rows = new ArrayList<>();
+        LocalDateTime maxModified = null;
+        statement.setString(1, SQL_DATETIME.format(modifiedSince));
+        statement.setString(2, SQL_DATETIME.format(modifiedSince));
+        statement.setString(3, SQL_DATETIME.format(validAfter));
+        statement.setString(4, SQL_DATE.format(validAfter));
+
+        final long queryStartNanos = System.nanoTime();
+        try (ResultSet resultSet = statement.executeQuery()) {
+            OmmMetrics.QUERY_DURATION.observe(OmmMetrics.secondsSince(queryStartNanos));
+            final CancellationRowDecoder decoder = handler.newDecoder(resultSet, queryStartNanos);
+            final int deviationCasesLastModifiedIndex = resultSet.findColumn("DEVIATION_CASES_LAST_MODIFIED");
+            final int affectedDeparturesLastModifiedIndex = resultSet.findColumn("AFFECTED_DEPARTURES_LAST_MODIFIED");
+            final int validToIndex = resultSet.findColumn("VALID_TO");
+            while (resultSet.next()) {
+                maxModified = latest(maxModified, resultSet.getTimestamp(deviationCasesLastModifiedIndex));
+                maxModified = latest(maxModified, resultSet.getTimestamp(affectedDeparturesLastModifiedIndex));
+                final Timestamp validTo = resultSet.getTimestamp(validToIndex);
+                final Optional<OmmCancellationHandler.CancellationData> data = decoder.decode(resultSet);
+                if (data.isPresent()) {
+                    rows.add(new Row(data.get(), validTo != null ? validTo.toLocalDateTime() : null));
+                }
+            }
+        }
+
+        if (resync) {
+            replaceAll(rows);
+            lastResyncTime = now.toEpochMilli();
+            if (maxModified == null) {
+                maxModified = localNow;
+            }
+        } else {
+            merge(rows);
+        }
+        if (maxModified != null && (watermark == null || maxModified.isAfter(watermark))) {
+            watermark = maxModified;
+        }
+        log.info("Read {} rows, state has {} deviation cases, watermark is now {}", rows.size(), rowsByDeviationCase.size(), watermark);
+
+        return activeCancellations(localNow);
+    }
+
+    /**
+     * Runs a full resync on the next poll, f.ex. when the query has been restricted to other shards
+     */
+    void resync() {
+        watermark = null;
+    }
+
+    void replaceAll(List<Row> rows) {
+        rowsByDeviationCase.clear();
+        merge(rows);
+    }
+
+    /**
+     * Replaces all rows of each deviation case present in the given rows
+     */
+    void merge(List<Row> rows) {
+        final Map<Long, List<Row>> changed = new HashMap<>();
+        for (Row row : rows) {
+            changed.computeIfAbsent(row.data.deviationCaseId, id -> new ArrayList<>()).add(row);
+        }
+        rowsByDeviationCase.putAll(changed);
+    }
+
+    /**
+     * Returns the rows that are currently active and drops the expired ones from the state.
+     */
+    List<OmmCancellationHandler.CancellationData> activeCancellations(LocalDateTime now) {
+        final String today = DateTimeFormatter.BASIC_ISO_DATE.format(now);
+        final List<OmmCancellationHandler.CancellationData> active = new ArrayList<>();
+        final Iterator<List<Row>> it = rowsByDeviationCase.values().iterator();
+        while (it.hasNext()) {
+            final List<Row> rows = it.next();
+            rows.removeIf(row -> !row.isActive(now, today));
+            if (rows.isEmpty()) {
+                it.remove();
+            } else {
+                for (Row row : rows) {
+                    active.add(row.data);
+                }
+            }
+        }
+        return active;
+    }
+
+    private static LocalDateTime latest(LocalDateTime current, Timestamp timestamp) {
+        if (timestamp == null) {
+            return current;
+        }
+        final LocalDateTime candidate = timestamp.toLocalDateTime();
+        return current == null || candidate.isAfter(current) ? candidate : current;
+    }
+}
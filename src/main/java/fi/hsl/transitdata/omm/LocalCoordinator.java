@@ -0,0 +1,64 @@
+package fi.hsl.transitdata.omm;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * In-process stand-in for {@link PulsarFailoverCoordinator}, for running several instances in one JVM.
+ * Shards are assigned like the broker assigns partitions of a failover subscription: shard i is owned by
+ * member i modulo the number of members, in the order the members joined.
+ */
+class LocalCoordinator implements Coordinator {
+    static final class Group {
+        private final int shardCount;
+        private final List<LocalCoordinator> members = new ArrayList<>();
+
+        Group(int shardCount) {
+            this.shardCount = shardCount;
+        }
+
+        synchronized LocalCoordinator join() {
+            final LocalCoordinator member = new LocalCoordinator(this);
+            members.add(member);
+            return member;
+        }
+
+        private synchronized void leave(LocalCoordinator member) {
+            members.remove(member);
+        }
+
+        private synchronized Set<Integer> shardsOf(LocalCoordinator member) {
+            final Set<Integer> shards = new HashSet<>();
+            final int index = members.indexOf(member);
+            if (index >= 0) {
+                for (int shard = index; shard < shardCount; shard += members.size()) {
+                    shards.add(shard);
+                }
+            }
+            return shards;
+        }
+    }
+
+    private final Group group;
+
+    private LocalCoordinator(Group group) {
+        this.group = group;
+    }
+
+    @Override
+    public int shardCount() {
+        return group.shardCount;
+    }
+
+    @Override
+    public Set<Integer> ownedShards() {
+        return group.shardsOf(this);
+    }
+
+    @Override
+    public void close() {
+        group.leave(this);
+    }
+}
@@ -0,0 +1,184 @@
+package fi.hsl.transitdata.omm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/**
+ * Queries only the OMM tables (cancellations_omm_only.sql) and joins the trip data from {@link TripReferenceCache}.
+ * The conditions on the operating day of the trip are evaluated here, so that the result is the same as
+ * cancellations_current_future.sql for FROM_NOW and cancellations_past_current_future.sql for FROM_PAST.
+ *
+ * OMM doesn't know the operating days, so cancellations of cancellations without valid_to are queried only if they
+ * were deleted within the lookback, otherwise every poll would return all of them ever stored and the trips of
+ * the old ones would be fetched into the cache again after every refresh. Trips un-cancelled earlier than
+ * the lookback before their operating day are left out.
+ */
+class LocalJoinCancellationQuery {
+    private static final Logger log = LoggerFactory.getLogger(LocalJoinCancellationQuery.class);
+
+    private static final DateTimeFormatter SQL_DATETIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    // Modification time bound for FROM_NOW, which does not include past cancellations
+    private static final LocalDateTime END_OF_TIME = LocalDateTime.of(9999, 12, 31, 0, 0);
+
+    static final class OmmRow {
+        final CancellationRowDecoder.Row row = new CancellationRowDecoder.Row();
+        LocalDateTime validTo;
+        LocalDateTime deviationCasesLastModified;
+
+        /**
+         * Same conditions as in the cancellation queries
+         *
+         * @param modifiedSince Time of the previous query for FROM_PAST, null for FROM_NOW
+         */
+        boolean matches(String operatingDay, LocalDateTime now, String today, LocalDateTime modifiedSince) {
+            final boolean current = validTo != null
+                    ? validTo.isAfter(now)
+                    : isDeleted() && operatingDay.compareTo(today) >= 0;
+            if (current) {
+                return true;
+            }
+            return modifiedSince != null
+                    && (validTo != null || isDeleted())
+                    && deviationCasesLastModified != null
+                    && !deviationCasesLastModified.isBefore(modifiedSince);
+        }
+
+        private boolean isDeleted() {
+            return "deleted".equalsIgnoreCase(row.affectedDeparturesStatus);
+        }
+    }
+
+    private final String query;
+    // Query restricted to the shards owned by this instance
+    private String shardQuery;
+    private final TripReferenceCache cache;
+    private final ZoneId zone;
+    private final boolean includePast;
+    private final int deletedLookbackDays;
+
+    /**
+     * @param query cancellations_omm_only.sql
+     * @param deletedLookbackDays Days before today within which cancellations of cancellations must have been deleted
+     */
+    LocalJoinCancellationQuery(String query, TripReferenceCache cache, String timezone, CancellationSourceType sourceType, int deletedLookbackDays) {
+        this.query = query;
+        this.shardQuery = query;
+        this.cache = cache;
+        this.zone = ZoneId.of(timezone);
+        this.includePast = sourceType == CancellationSourceType.FROM_PAST;
+        this.deletedLookbackDays = deletedLookbackDays;
+    }
+
+    void assignShards(TripShards shards) {
+        shardQuery = shards.restrict(query, "AD.departure_id");
+    }
+
+    /**
+     * @param modifiedSince Time of the previous query, ignored for FROM_NOW
+     */
+    List<OmmCancellationHandler.CancellationData> poll(OmmConnectionPool.PooledConnection connection, Instant now,
+                                                       Instant modifiedSince, int fetchSize) throws SQLException {
+        final LocalDateTime localNow = LocalDateTime.ofInstant(now, zone);
+        final LocalDateTime localModifiedSince = includePast ? LocalDateTime.ofInstant(modifiedSince, zone) : null;
+
+        final PreparedStatement statement = connection.prepare(shardQuery);
+        statement.setFetchSize(fetchSize);
+        bind(statement, localNow, localModifiedSince);
+
+        final List<OmmRow> rows = new ArrayList<>();
+        final Set<Long> dvjIds = new LinkedHashSet<>();
+        final long queryStartNanos = System.nanoTime();
+        try (ResultSet resultSet = statement.executeQuery()) {
+            OmmMetrics.QUERY_DURATION.observe(OmmMetrics.secondsSince(queryStartNanos));
+            final int deviationCaseIdIndex = resultSet.findColumn("deviation_case_id");
+            final int validToIndex = resultSet.findColumn("VALID_TO");
+            final int deviationCasesTypeIndex = resultSet.findColumn("DEVIATION_CASES_TYPE");
+            final int deviationCasesLastModifiedIndex = resultSet.findColumn("DEVIATION_CASES_LAST_MODIFIED");
+            final int affectedDeparturesLastModifiedIndex = resultSet.findColumn("AFFECTED_DEPARTURES_LAST_MODIFIED");
+            final int affectedDeparturesStatusIndex = resultSet.findColumn("AFFECTED_DEPARTURES_STATUS");
+            final int affectedDeparturesTypeIndex = resultSet.findColumn("AFFECTED_DEPARTURES_TYPE");
+            final int titleIndex = resultSet.findColumn("TITLE");
+            final int descriptionIndex = resultSet.findColumn("DESCRIPTION");
+            final int categoryIndex = resultSet.findColumn("CATEGORY");
+            final int subCategoryIndex = resultSet.findColumn("SUB_CATEGORY");
+            final int dvjIdIndex = resultSet.findColumn("DVJ_ID");
+            while (resultSet.next()) {
+                if (rows.isEmpty()) {
+                    OmmMetrics.QUERY_FIRST_ROW.observe(OmmMetrics.secondsSince(queryStartNanos));
+                }
+                OmmMetrics.ROWS_READ.inc();
+                final OmmRow ommRow = new OmmRow();
+                final CancellationRowDecoder.Row row = ommRow.row;
+                row.deviationCaseId = resultSet.getLong(deviationCaseIdIndex);
+                ommRow.validTo = toLocalDateTime(resultSet.getTimestamp(validToIndex));
+                row.deviationCasesType = resultSet.getString(deviationCasesTypeIndex);
+                ommRow.deviationCasesLastModified = toLocalDateTime(resultSet.getTimestamp(deviationCasesLastModifiedIndex));
+                row.affectedDeparturesLastModified = resultSet.getTimestamp(affectedDeparturesLastModifiedIndex);
+                row.affectedDeparturesStatus = resultSet.getString(affectedDeparturesStatusIndex);
+                row.affectedDeparturesType = resultSet.getString(affectedDeparturesTypeIndex);
+                row.title = resultSet.getString(titleIndex);
+                row.description = resultSet.getString(descriptionIndex);
+                row.category = resultSet.getString(categoryIndex);
+                row.subCategory = resultSet.getString(subCategoryIndex);
+                row.dvjId = resultSet.getLong(dvjIdIndex);
+                rows.add(ommRow);
+                dvjIds.add(row.dvjId);
+            }
+        }
+
+        final Map<Long, TripReferenceCache.TripReference> trips = cache.resolve(dvjIds, connection);
+        final List<OmmCancellationHandler.CancellationData> cancellations = join(rows, trips, localNow, localModifiedSince);
+        log.info("Read {} rows from OMM for {} departures, {} cancellations after joining the trip data of {} departures",
+                rows.size(), dvjIds.size(), cancellations.size(), trips.size());
+        return cancellations;
+    }
+
+    /**
+     * @param modifiedSince Time of the previous query for FROM_PAST, null for FROM_NOW
+     */
+    void bind(PreparedStatement statement, LocalDateTime now, LocalDateTime modifiedSince) throws SQLException {
+        final String modifiedSinceBound = SQL_DATETIME.format(modifiedSince != null ? modifiedSince : END_OF_TIME);
+        statement.setString(1, SQL_DATETIME.format(now));
+        statement.setString(2, SQL_DATETIME.format(now.toLocalDate().minusDays(deletedLookbackDays).atStartOfDay()));
+        statement.setString(3, modifiedSinceBound);
+        statement.setString(4, SQL_DATETIME.format(now));
+        statement.setString(5, modifiedSinceBound);
+    }
+
+    List<OmmCancellationHandler.CancellationData> join(List<OmmRow> rows, Map<Long, TripReferenceCache.TripReference> trips,
+                                                       LocalDateTime now, LocalDateTime modifiedSince) {
+        final String today = DateTimeFormatter.BASIC_ISO_DATE.format(now);
+        final CancellationRowDecoder decoder = new CancellationRowDecoder(zone);
+        final List<OmmCancellationHandler.CancellationData> cancellations = new ArrayList<>(rows.size());
+        for (OmmRow ommRow : rows) {
+            final TripReferenceCache.TripReference trip = trips.get(ommRow.row.dvjId);
+            if (trip == null || !ommRow.matches(trip.operatingDay, now, today, modifiedSince)) {
+                continue;
+            }
+            final CancellationRowDecoder.Row row = ommRow.row;
+            row.direction = trip.direction;
+            row.operatingDay = trip.operatingDay;
+            row.startTime = trip.startTime;
+            // One row per route name like in the database join
+            for (String routeName : trip.routeNames) {
+                row.routeName = routeName;
+                decoder.toCancellation(row).ifPresent(cancellations::add);
+            }
+        }
+        return cancellations;
+    }
+
+    private static LocalDateTime toLocalDateTime(Timestamp timestamp) {
+        return timestamp != null ? timestamp.toLocalDateTime() : null;
+    }
+}
@@ -0,0 +1,162 @@
+package fi.hsl.transitdata.omm;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Open addressing hash map keyed by a pair of primitive longs, i.e. dvjId and deviation case ID,
+ * to avoid boxing and allocating a key object per row.
+ */
+class LongPairHashMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] firstKeys;
+    private long[] secondKeys;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    LongPairHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    LongPairHashMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long first, long second) {
+        int index = indexOf(first, second);
+        return index < 0 ? null : (V) values[index];
+    }
+
+    boolean containsKey(long first, long second) {
+        return indexOf(first, second) >= 0;
+    }
+
+    /**
+     * @return Previous value for the key or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    V put(long first, long second, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not supported");
+        }
+        int slot = slotFor(first, second);
+        while (values[slot] != null) {
+            if (firstKeys[slot] == first && secondKeys[slot] == second) {
+                V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        firstKeys[slot] = first;
+        secondKeys[slot] = second;
+        values[slot] = value;
+        if (++size > (values.length >> 1) + (values.length >> 2)) {
+            resize(values.length << 1);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(long first, long second) {
+        int slot = indexOf(first, second);
+        if (slot < 0) {
+            return null;
+        }
+        V previous = (V) values[slot];
+        values[slot] = null;
+        size--;
+
+        // Shift the following entries of the probe sequence back so that lookups don't stop at the hole
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (values[next] != null) {
+            int home = slotFor(firstKeys[next], secondKeys[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                firstKeys[hole] = firstKeys[next];
+                secondKeys[hole] = secondKeys[next];
+                values[hole] = values[next];
+                values[next] = null;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return previous;
+    }
+
+    void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEachValue(Consumer<V> consumer) {
+        for (Object value : values) {
+            if (value != null) {
+                consumer.accept((V) value);
+            }
+        }
+    }
+
+    private int indexOf(long first, long second) {
+        int slot = slotFor(first, second);
+        while (values[slot] != null) {
+            if (firstKeys[slot] == first && secondKeys[slot] == second) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int slotFor(long first, long second) {
+        long hash = first * 0x9E3779B97F4A7C15L + second;
+        hash ^= (hash >>> 32);
+        hash *= 0xBF58476D1CE4E5B9L;
+        return (int) (hash ^ (hash >>> 29)) & mask;
+    }
+
+    private void resize(int capacity) {
+        long[] oldFirstKeys = firstKeys;
+        long[] oldSecondKeys = secondKeys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = slotFor(oldFirstKeys[i], oldSecondKeys[i]);
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                firstKeys[slot] = oldFirstKeys[i];
+                secondKeys[slot] = oldSecondKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        firstKeys = new long[capacity];
+        secondKeys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2L && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -6,6 +6,8 @@ import java.util.Scanner;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.typesafe.config.Config;
 import fi.hsl.common.config.ConfigParser;
@@ -37,44 +39,84 @@ public class Main {
             else if (sourceType == CancellationSourceType.FROM_NOW) {
                 log.info("Creating OMM cancellation source for ongoing and future cancellations");
             }
+            else if (sourceType == CancellationSourceType.FROM_NOW_AND_PAST) {
+                log.info("Creating OMM cancellation source for ongoing and future cancellations and for past, ongoing and future cancellations to a separate topic");
+            }
             else {
                 log.error("Failed to get source type from CANCELLATIONS_FROM_TIME -env variable, exiting application");
-                log.info("CANCELLATIONS_FROM_TIME -env variable should be either 'NOW' (for transitdata) or 'PAST' (for transitlog)");
+                log.info("CANCELLATIONS_FROM_TIME -env variable should be either 'NOW' (for transitdata), 'PAST' (for transitlog) or 'NOW_AND_PAST' (for both)");
                 System.exit(1);
             }
 
+            if (config.getBoolean("omm.metrics.enabled")) {
+                final int metricsPort = config.getInt("omm.metrics.port");
+                OmmMetrics.startServer(metricsPort);
+                log.info("Serving metrics on port {}", metricsPort);
+            }
+
             final String connectionString = readConnectionString();
             final PulsarApplication app = PulsarApplication.newInstance(config);
             appRef = app;
             final PulsarApplicationContext context = app.getContext();
+
+            if (config.getBoolean("omm.backfill.enabled")) {
+                try (OmmBackfill backfill = OmmBackfill.newInstance(context, connectionString)) {
+                    backfill.run();
+                }
+                closeApplication(app, scheduler, null);
+                return;
+            }
+
             final OmmConnector omm = OmmConnector.newInstance(context, connectionString, sourceType);
             final int pollIntervalInSeconds = config.getInt("omm.interval");
+            final long maxDbUnavailableMs = config.getLong("omm.db.maxUnavailable") * 1000;
+            final AtomicInteger consecutiveDbFailures = new AtomicInteger();
+            // Time of the first failed poll since the last successful one, 0 when the database is available
+            final AtomicLong dbUnavailableSince = new AtomicLong();
+            // With the change probe enabled OMM is probed more often than the interval and queried only when it has changed
+            final int schedulingIntervalInSeconds = config.getBoolean("omm.probe.enabled") ? config.getInt("omm.probe.interval") : pollIntervalInSeconds;
 
-            scheduler.scheduleAtFixedRate(() -> {
+            // Fixed delay so that slow polls are not followed by a burst of delayed ones
+            scheduler.scheduleWithFixedDelay(() -> {
                 try {
                     omm.queryAndProcessResults(pollIntervalInSeconds);
+                    consecutiveDbFailures.set(0);
+                    dbUnavailableSince.set(0);
                 } catch (PulsarClientException e) {
+                    // Only when the outbox is disabled or full, otherwise failed cancellations wait in the outbox
                     log.error("Pulsar connection error", e);
-                    closeApplication(app, scheduler);
+                    closeApplication(app, scheduler, omm);
                 } catch (SQLException e) {
-                    log.error("SQL exception", e);
-                    closeApplication(app, scheduler);
+                    // Broken connections are replaced by the connection pool, so skip this poll and try again on the next one
+                    final int failures = consecutiveDbFailures.incrementAndGet();
+                    final long now = System.currentTimeMillis();
+                    dbUnavailableSince.compareAndSet(0, now);
+                    final long unavailableMs = now - dbUnavailableSince.get();
+                    log.error("SQL exception, {} consecutive failed polls in {} s", failures, unavailableMs / 1000, e);
+                    if (unavailableMs >= maxDbUnavailableMs) {
+                        log.error("Database has been unavailable for {} s and {} polls", unavailableMs / 1000, failures);
+                        closeApplication(app, scheduler, omm);
+                    }
                 } catch (Exception e) {
                     log.error("Unknown exception at poll cycle: ", e);
-                    closeApplication(app, scheduler);
+                    closeApplication(app, scheduler, omm);
                 }
-            }, 0, pollIntervalInSeconds, TimeUnit.SECONDS);
+            }, 0, schedulingIntervalInSeconds, TimeUnit.SECONDS);
         } catch (Exception e) {
             log.error("Exception at Main: " + e.getMessage(), e);
-            closeApplication(appRef, scheduler);
+            closeApplication(appRef, scheduler, null);
         }
     }
 
-    private static void closeApplication(PulsarApplication app, ScheduledExecutorService scheduler) {
+    private static void closeApplication(PulsarApplication app, ScheduledExecutorService scheduler, OmmConnector omm) {
         log.warn("Closing application");
         if (scheduler != null && !scheduler.isShutdown()) {
             scheduler.shutdown();
         }
+        if (omm != null) {
+            // Writes the outbox to disk and closes it before the Pulsar client
+            omm.close();
+        }
         if (app != null) {
             app.close();
         }
@@ -0,0 +1,157 @@
+package fi.hsl.transitdata.omm;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigValueFactory;
+import fi.hsl.common.files.FileUtils;
+import fi.hsl.common.pulsar.PulsarApplicationContext;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Optional;
+
+/**
+ * Publishes all cancellations of a range of operating days once, in chunks of chunkDays so that the memory used
+ * does not depend on the length of the range. The first day of the next chunk is written to the checkpoint file
+ * after each chunk has been acknowledged by Pulsar, and a backfill of the same range resumes from it.
+ */
+public class OmmBackfill implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(OmmBackfill.class);
+
+    private static final DateTimeFormatter SQL_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+    private final OmmConnectionPool pool;
+    private final Producer<byte[]> producer;
+    private final OmmCancellationHandler handler;
+    private final String query;
+    private final LocalDate from;
+    private final LocalDate to;
+    private final int chunkDays;
+    private final Path checkpointFile;
+    private final int fetchSize;
+
+    OmmBackfill(OmmConnectionPool pool, Producer<byte[]> producer, OmmCancellationHandler handler, String query, LocalDate from, LocalDate to,
+                int chunkDays, Path checkpointFile, int fetchSize) {
+        if (to.isBefore(from)) {
+            throw new IllegalArgumentException("Backfill range " + from + " - " + to + " is empty");
+        }
+        this.pool = pool;
+        this.producer = producer;
+        this.handler = handler;
+        this.query = query;
+        this.from = from;
+        this.to = to;
+        this.chunkDays = Math.max(1, chunkDays);
+        this.checkpointFile = checkpointFile;
+        this.fetchSize = fetchSize;
+    }
+
+    public static OmmBackfill newInstance(PulsarApplicationContext context, String jdbcConnectionString) throws SQLException, IOException {
+        final Config config = context.getConfig();
+        // Every cancellation of the range is published once, so there is nothing to track between chunks
+        final Config handlerConfig = config
+                .withValue("omm.changeTracking.enabled", ConfigValueFactory.fromAnyRef(false))
+                .withValue("omm.changeTracking.snapshotFile", ConfigValueFactory.fromAnyRef(""))
+                .withValue("omm.publish.rateLimit", ConfigValueFactory.fromAnyRef(config.getDouble("omm.backfill.rateLimit")))
+                // Backfilled cancellations were modified long ago, so their freshness would only distort the metrics
+                .withValue("omm.freshness.slo", ConfigValueFactory.fromAnyRef(0))
+                // Deferred cancellations would never be published, since each chunk is queried only once
+                .withValue("omm.priority.maxBeyondHorizon", ConfigValueFactory.fromAnyRef(0))
+                // A failed chunk is published again when the backfill is resumed from the checkpoint
+                .withValue("omm.outbox.file", ConfigValueFactory.fromAnyRef(""));
+        final Producer<byte[]> producer = CancellationProducers.create(context.getClient(), config, config.getString("pulsar.producer.topic"));
+        final OmmCancellationHandler handler = new OmmCancellationHandler(producer, handlerConfig, CancellationSourceType.FROM_PAST);
+
+        final String query;
+        try (InputStream stream = OmmBackfill.class.getResourceAsStream("/cancellations_backfill.sql")) {
+            query = FileUtils.readFileFromStreamOrThrow(stream);
+        } catch (Exception e) {
+            throw new IOException("Failed to read the backfill query", e);
+        }
+
+        return new OmmBackfill(OmmConnector.createPool(config, jdbcConnectionString, 1),
+                producer,
+                handler,
+                query,
+                LocalDate.parse(config.getString("omm.backfill.from")),
+                LocalDate.parse(config.getString("omm.backfill.to")),
+                config.getInt("omm.backfill.chunkDays"),
+                Paths.get(config.getString("omm.backfill.checkpointFile")),
+                config.getInt("omm.db.fetchSize"));
+    }
+
+    public void run() throws SQLException, PulsarClientException, IOException {
+        LocalDate chunkStart = readCheckpoint().orElse(from);
+        if (chunkStart.isAfter(to)) {
+            log.info("Backfill of {} - {} has already been completed according to {}", from, to, checkpointFile);
+            return;
+        }
+        log.info("Backfilling cancellations of operating days {} - {} starting from {}", from, to, chunkStart);
+        final long startTime = System.currentTimeMillis();
+        while (!chunkStart.isAfter(to)) {
+            final LocalDate chunkEnd = chunkStart.plusDays(chunkDays - 1).isAfter(to) ? to : chunkStart.plusDays(chunkDays - 1);
+            final long chunkStartTime = System.currentTimeMillis();
+            try (OmmConnectionPool.PooledConnection connection = pool.borrow()) {
+                final PreparedStatement statement = connection.prepare(query);
+                statement.setFetchSize(fetchSize);
+                statement.setString(1, SQL_DATE.format(chunkStart));
+                statement.setString(2, SQL_DATE.format(chunkEnd));
+                final long queryStartNanos = System.nanoTime();
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    OmmMetrics.QUERY_DURATION.observe(OmmMetrics.secondsSince(queryStartNanos));
+                    handler.handleAndSend(resultSet, queryStartNanos);
+                }
+            }
+            chunkStart = chunkEnd.plusDays(1);
+            writeCheckpoint(chunkStart);
+            log.info("Backfilled operating days up to {} in {} ms", chunkEnd, System.currentTimeMillis() - chunkStartTime);
+        }
+        log.info("Backfill of {} - {} completed in {} s", from, to, (System.currentTimeMillis() - startTime) / 1000);
+    }
+
+    /**
+     * @return First day of the next chunk, or empty if there is no checkpoint for this range
+     */
+    Optional<LocalDate> readCheckpoint() throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return Optional.empty();
+        }
+        // from to next
+        final String[] fields = new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8).trim().split(" ");
+        if (fields.length != 3 || !fields[0].equals(from.toString()) || !fields[1].equals(to.toString())) {
+            log.warn("Checkpoint {} is for another range, starting from the beginning", checkpointFile);
+            return Optional.empty();
+        }
+        return Optional.of(LocalDate.parse(fields[2]));
+    }
+
+    void writeCheckpoint(LocalDate next) throws IOException {
+        final Path tempFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        Files.write(tempFile, (from + " " + to + " " + next).getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() {
+        handler.close();
+        try {
+            producer.close();
+        } catch (PulsarClientException e) {
+            log.error("Failed to close producer", e);
+        }
+        pool.close();
+    }
+}
@@ -1,47 +1,63 @@
 package fi.hsl.transitdata.omm;
 
-import fi.hsl.common.pulsar.PulsarApplicationContext;
-import fi.hsl.common.transitdata.TransitdataProperties;
+import com.typesafe.config.Config;
 import fi.hsl.common.transitdata.proto.InternalMessages;
 import org.apache.pulsar.client.api.Producer;
 import org.apache.pulsar.client.api.PulsarClientException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class OmmCancellationHandler {
     private static final Logger log = LoggerFactory.getLogger(OmmCancellationHandler.class);
 
-    private List<CancellationData> previousCancellations = new LinkedList<>();
+    private final CancellationChangeTracker changeTracker = new CancellationChangeTracker();
 
     private final String timeZone;
-    private Producer<byte[]> producer;
-
-    enum OMMAffectedDeparturesStatus {
-        active, deleted
-    }
+    private final ZoneId zone;
+    private final CancellationPublisher publisher;
+
+    private final boolean changeTrackingEnabled;
+    private final long keyframeIntervalMs;
+    private final boolean publishRemovals;
+    private final DepartureTimes departureTimes;
+    private long lastKeyframeTime = 0;
+
+    private final CancellationPipeline pipeline;
+    private final CancellationStateSnapshot snapshot;
+    // Null publishes in the order of the query
+    private final PublishingOrder publishingOrder;
+    // Shards of the cancellations in the change tracker, only with coordination
+    private TripShards shards = null;
+    // Start of the query whose cancellations were published last, 0 until the initial load has been published
+    private long previousQueryTime = 0;
+    // Start of the query whose results are handled next, 0 if not told
+    private long queryTime = 0;
 
     static class CancellationData {
         public final InternalMessages.TripCancellation payload;
         public final long timestampEpochMs;
-        public final String dvjId;
+        public final long dvjId;
         public final long deviationCaseId;
 
-        public CancellationData(InternalMessages.TripCancellation payload, long timestampEpochMs, String dvjId, long deviationCaseId) {
+        public CancellationData(InternalMessages.TripCancellation payload, long timestampEpochMs, long dvjId, long deviationCaseId) {
             this.payload = payload;
             this.timestampEpochMs = timestampEpochMs;
             this.dvjId = dvjId;
             this.deviationCaseId = deviationCaseId;
         }
 
-        public String getDvjId() {
+        public long getDvjId() {
             return dvjId;
         }
 
@@ -55,25 +71,119 @@ public class OmmCancellationHandler {
     }
 
     public static InternalMessages.TripCancellation.DeviationCasesType toTripCancellationDeviationCasesType(final String deviationCasesType) {
-        return InternalMessages.TripCancellation.DeviationCasesType.valueOf(deviationCasesType);
+        return CancellationRowDecoder.toDeviationCasesType(deviationCasesType);
     }
 
     public static InternalMessages.TripCancellation.AffectedDeparturesType toTripCancellationAffectedDeparturesType(final String affectedDeparturesType) {
-        return InternalMessages.TripCancellation.AffectedDeparturesType.valueOf(affectedDeparturesType);
+        return CancellationRowDecoder.toAffectedDeparturesType(affectedDeparturesType);
     }
 
     public static InternalMessages.Category toTripCancellationCategory(final String category) {
-        return InternalMessages.Category.valueOf(category);
+        return CancellationRowDecoder.toCategory(category);
     }
 
     public static InternalMessages.TripCancellation.SubCategory toTripCancellationSubCategory(final String subCategory) {
-        return InternalMessages.TripCancellation.SubCategory.valueOf(subCategory);
+        return CancellationRowDecoder.toSubCategory(subCategory);
+    }
+
+
+    OmmCancellationHandler(Producer<byte[]> producer, Config config, CancellationSourceType sourceType) {
+        publisher = new CancellationPublisher(producer,
+                config.getBoolean("omm.publish.async"),
+                config.getInt("omm.publish.maxInFlight"),
+                config.getDouble("omm.publish.rateLimit"),
+                config.getDouble("omm.freshness.slo"),
+                openOutbox(config));
+        timeZone = config.getString("omm.timezone");
+        zone = ZoneId.of(timeZone);
+        departureTimes = new DepartureTimes(zone);
+        publishingOrder = config.getBoolean("omm.priority.enabled")
+                ? new PublishingOrder(zone, config.getLong("omm.priority.horizon"), config.getInt("omm.priority.maxBeyondHorizon"))
+                : null;
+        changeTrackingEnabled = config.getBoolean("omm.changeTracking.enabled");
+        keyframeIntervalMs = config.getLong("omm.changeTracking.keyframeInterval") * 1000;
+        // Only the NOW query returns the complete set of active cancellations, in PAST mode rows also disappear
+        // when they have not been modified since the previous poll.
+        publishRemovals = config.getBoolean("omm.changeTracking.publishRemovals") && sourceType == CancellationSourceType.FROM_NOW;
+        pipeline = config.getBoolean("omm.pipeline.enabled")
+                ? new CancellationPipeline(config.getInt("omm.pipeline.queueSize"))
+                : null;
+        final String snapshotFile = config.getString("omm.changeTracking.snapshotFile");
+        snapshot = changeTrackingEnabled && !snapshotFile.isEmpty()
+                ? new CancellationStateSnapshot(Paths.get(snapshotFile), sourceType)
+                : null;
+        restoreSnapshot();
+    }
+
+    public void close() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        publisher.close();
+    }
+
+    private static CancellationOutbox openOutbox(Config config) {
+        final String file = config.getString("omm.outbox.file");
+        if (file.isEmpty()) {
+            return null;
+        }
+        final Path path = Paths.get(file);
+        if (!path.isAbsolute()) {
+            // A relative path would depend on the working directory, which is not kept over restarts in a container
+            log.error("Outbox {} is not an absolute path, errors in sending to Pulsar will close the application", file);
+            return null;
+        }
+        try {
+            return CancellationOutbox.open(path, config.getInt("omm.outbox.maxBytes"));
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to open outbox {}, errors in sending to Pulsar will close the application", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Called when the queries have been restricted to the shards owned by this instance. The published state of
+     * shards that were owned by another instance since the previous assignment is dropped, so that their cancellations
+     * are published again, and the state of shards given away is dropped without publishing removals, since they
+     * are still active.
+     */
+    void assignShards(TripShards assigned) {
+        final TripShards previous = shards;
+        shards = assigned;
+        changeTracker.retainIf(data -> assigned.contains(data) && (previous == null || previous.contains(data)));
+        if (previous == null || !previous.owned().containsAll(assigned.owned())) {
+            // The cancellations of the new shards are an initial load like after a restart
+            previousQueryTime = 0;
+        }
+    }
+
+    /**
+     * @param epochMs Time when the query whose results are handled next was started
+     */
+    void queryStarted(long epochMs) {
+        queryTime = epochMs;
     }
 
+    /**
+     * @return Start of the query of this cycle, the current time if the query time was not told
+     */
+    private long beginQueryCycle() {
+        final long started = queryTime > 0 ? queryTime : System.currentTimeMillis();
+        queryTime = 0;
+        return started;
+    }
 
-    public OmmCancellationHandler(PulsarApplicationContext context) {
-        producer = context.getSingleProducer();
-        timeZone = context.getConfig().getString("omm.timezone");
+    /**
+     * Cancellations that the change tracker doesn't know are new for the freshness metrics only if they have been
+     * modified since the previous query. Otherwise they are the initial load after a restart or a takeover of shards,
+     * or deferred from previous polls, and their modification can be days old.
+     *
+     * @param changed True if an earlier version of the cancellation has been published
+     */
+    private CancellationPublisher.Publication updatePublication(CancellationData data, boolean changed) {
+        return changed || previousQueryTime > 0 && data.timestampEpochMs >= previousQueryTime
+                ? CancellationPublisher.Publication.NEW
+                : CancellationPublisher.Publication.REPEATED;
     }
 
     public Optional<Long> toUtcEpochMs(String localTimestamp) {
@@ -97,159 +207,277 @@ public class OmmCancellationHandler {
     }
 
     public void handleAndSend(ResultSet resultSet) throws SQLException, PulsarClientException {
-        List<CancellationData> cancellations = parseData(resultSet);
+        handleAndSend(resultSet, System.nanoTime());
+    }
+
+    /**
+     * @param queryStartNanos System.nanoTime() when the query was started, for measuring the time to the first row
+     */
+    public void handleAndSend(ResultSet resultSet, long queryStartNanos) throws SQLException, PulsarClientException {
+        final CancellationRowDecoder decoder = newDecoder(resultSet, queryStartNanos);
+        if (pipeline != null) {
+            handleAndSendPipelined(resultSet, decoder);
+        } else {
+            handleAndSend(parseData(resultSet, decoder));
+        }
+    }
+
+    void handleAndSend(List<CancellationData> cancellations) throws PulsarClientException {
+        final long cycleQueryTime = beginQueryCycle();
         cancellations = filterDuplicates(cancellations);
-        logChangesInCancellations(cancellations); //TODO: disable logging if not needed
-        sendCancellations(cancellations);
+        CancellationChangeTracker.Diff diff = changeTracker.diff(cancellations);
+        logChangesInCancellations(diff);
+        sendCancellations(diff);
+        previousQueryTime = cycleQueryTime;
     }
 
-    private List<CancellationData> parseData(ResultSet resultSet) throws SQLException {
-        List<CancellationData> cancellations = new LinkedList<>();
-        while (resultSet.next()) {
-            try {
-                final long deviationCaseId = resultSet.getLong("deviation_case_id");
-
-                InternalMessages.TripCancellation.Builder builder = InternalMessages.TripCancellation.newBuilder();
-
-                builder.setDeviationCaseId(deviationCaseId);
-
-                String routeId = resultSet.getString("ROUTE_NAME");
-                builder.setRouteId(routeId);
-                int joreDirection = resultSet.getInt("DIRECTION");
-                builder.setDirectionId(joreDirection);
-                String startDate = resultSet.getString("OPERATING_DAY"); // yyyyMMdd
-                builder.setStartDate(startDate);
-                String starTime = resultSet.getString("START_TIME"); // HH:mm:ss in local time
-                builder.setStartTime(starTime);
-
-                String adStatus = resultSet.getString("AFFECTED_DEPARTURES_STATUS");
-                // If active -> cancellation is valid, if deleted then the cancellation has been cancelled.
-                if (adStatus != null && OMMAffectedDeparturesStatus.valueOf(adStatus.toLowerCase()) == OMMAffectedDeparturesStatus.deleted) {
-                    log.debug("Cancelling a cancellation for route {}:{}:{}:{}", routeId, startDate, starTime, joreDirection);
-                    builder.setStatus(InternalMessages.TripCancellation.Status.RUNNING);
+    /**
+     * Publishes new and changed cancellations while the ResultSet is still being read.
+     * Requires the rows to be ordered by dvjId and deviation case ID. Cancellations within the horizon are published
+     * in the order of the rows, only those beyond it are sorted closest first.
+     */
+    private void handleAndSendPipelined(ResultSet resultSet, CancellationRowDecoder decoder) throws SQLException, PulsarClientException {
+        final long cycleQueryTime = beginQueryCycle();
+        final boolean fullSnapshot = isFullSnapshotCycle();
+        if (fullSnapshot && changeTrackingEnabled) {
+            log.info("Sending keyframe with all cancellations");
+        }
+
+        // Only the filter thread touches the tracker until the pipeline has finished, so the cancellations handed to
+        // the producer are collected on the publisher thread and marked as published afterwards. Rows dropped when
+        // the pipeline is aborted, f.ex. by a database error, stay unpublished and are sent on the next poll.
+        final CancellationChangeTracker.Diff diff = new CancellationChangeTracker.Diff();
+        final Queue<CancellationData> handedToProducer = new ConcurrentLinkedQueue<>();
+        // Unchanged cancellations sent again in a full snapshot and the initial load, handed from the filter thread
+        // to the publisher thread
+        final Set<CancellationData> repeated = ConcurrentHashMap.newKeySet();
+        // New and changed cancellations of departures beyond the horizon, published after the pipeline has finished
+        final long now = System.currentTimeMillis();
+        final List<CancellationData> beyondHorizon = new ArrayList<>();
+        changeTracker.beginCycle();
+        final int rows;
+        try {
+            rows = pipeline.run(resultSet, decoder, data -> {
+                final CancellationChangeTracker.Change change = changeTracker.classify(data);
+                switch (change) {
+                    case NEW: diff.added.add(data); break;
+                    case CHANGED: diff.changed.add(data); break;
+                    default: diff.unchanged.add(data); break;
                 }
-                else {
-                    builder.setStatus(InternalMessages.TripCancellation.Status.CANCELED);
+                final boolean publish = fullSnapshot || change != CancellationChangeTracker.Change.UNCHANGED;
+                if (publish && change != CancellationChangeTracker.Change.UNCHANGED
+                        && publishingOrder != null && !publishingOrder.isWithinHorizon(data, now)) {
+                    beyondHorizon.add(data);
+                    return false;
                 }
-
-                //Version number is defined in the proto file as default value but we still need to set it since it's a required field
-                builder.setSchemaVersion(builder.getSchemaVersion());
-                final String dvjId = Long.toString(resultSet.getLong("DVJ_ID"));
-                builder.setTripId(dvjId);
-                
-                builder.setDeviationCasesType(toTripCancellationDeviationCasesType(resultSet.getString("DEVIATION_CASES_TYPE")));
-                builder.setAffectedDeparturesType(toTripCancellationAffectedDeparturesType(resultSet.getString("AFFECTED_DEPARTURES_TYPE")));
-                builder.setTitle(resultSet.getString("TITLE"));
-                final String description = resultSet.getString("DESCRIPTION");
-                builder.setDescription(description);
-                builder.setCategory(toTripCancellationCategory(resultSet.getString("CATEGORY")));
-                builder.setSubCategory(toTripCancellationSubCategory(resultSet.getString("SUB_CATEGORY")));
-
-                final InternalMessages.TripCancellation cancellation = builder.build();
-
-                log.debug("Read cancellation for route {} with  dvjId {} and description '{}'",
-                        routeId, dvjId, description);
-
-                Timestamp timestamp = resultSet.getTimestamp("AFFECTED_DEPARTURES_LAST_MODIFIED"); //other option is to use DEVIATION_CASES_LAST_MODIFIED
-                Optional<Long> epochTimestamp = toUtcEpochMs(timestamp.toString());
-                if (epochTimestamp.isEmpty()) {
-                    log.error("Failed to parse epoch timestamp from resultset: {}", timestamp);
-                } else {
-                    CancellationData data = new CancellationData(cancellation, epochTimestamp.get(), dvjId, deviationCaseId);
-                    cancellations.add(data);
+                if (publish && (change == CancellationChangeTracker.Change.UNCHANGED
+                        || updatePublication(data, change == CancellationChangeTracker.Change.CHANGED) == CancellationPublisher.Publication.REPEATED)) {
+                    repeated.add(data);
                 }
-            } catch (IllegalArgumentException iae) {
-                log.error("Error while parsing the cancellation resultset", iae);
-            }
+                return publish;
+            }, data -> {
+                publisher.publish(data.payload, data.timestampEpochMs, data.dvjId,
+                        repeated.remove(data) ? CancellationPublisher.Publication.REPEATED : CancellationPublisher.Publication.NEW);
+                handedToProducer.add(data);
+            });
+        } finally {
+            handedToProducer.forEach(changeTracker::markPublished);
+        }
+        diff.removed.addAll(changeTracker.endCycle());
+
+        log.debug("Read {} rows through the pipeline", rows);
+        logChangesInCancellations(diff);
+        sendUpdates(beyondHorizon, now);
+        sendRemovals(diff.removed);
+        publisher.flush();
+        writeSnapshot(diff);
+        previousQueryTime = cycleQueryTime;
+    }
+
+    List<CancellationData> parseData(ResultSet resultSet) throws SQLException {
+        return parseData(resultSet, newDecoder(resultSet));
+    }
+
+    private List<CancellationData> parseData(ResultSet resultSet, CancellationRowDecoder decoder) throws SQLException {
+        final List<CancellationData> cancellations = new ArrayList<>();
+        while (resultSet.next()) {
+            decoder.decode(resultSet).ifPresent(cancellations::add);
         }
         return cancellations;
     }
 
-    static List<CancellationData> filterDuplicates(List<CancellationData> cancellations) {
-        final List<CancellationData> filtered = new ArrayList<>();
+    CancellationRowDecoder newDecoder(ResultSet resultSet) throws SQLException {
+        return new CancellationRowDecoder(resultSet, zone);
+    }
+
+    CancellationRowDecoder newDecoder(ResultSet resultSet, long queryStartNanos) throws SQLException {
+        return new CancellationRowDecoder(resultSet, zone, queryStartNanos);
+    }
 
+    static List<CancellationData> filterDuplicates(List<CancellationData> cancellations) {
         // Having even one active cancellation means that the trip is cancelled (or actually we should always have either 1 or 0).
 
         // Cancelling a cancelled cancellation can produce us duplicate rows in the data, if this is done multiple times.
-        // We need to find out if there's more than one rows per dvjId. If that is so we can deduct which is the correct one to send.
-        final Map<String, List<CancellationData>> groupedByDvjId = cancellations.stream().collect(Collectors.groupingBy(CancellationData::getDvjId));
-        for (List<CancellationData> cancellationsForTrip : groupedByDvjId.values()) {
-            final Map<Long, List<CancellationData>> byDeviationCaseId = cancellationsForTrip.stream().collect(Collectors.groupingBy(data -> data.deviationCaseId));
-
-            for (Map.Entry<Long, List<CancellationData>> cancellationsForDeviationCase : byDeviationCaseId.entrySet()) {
-                Map<InternalMessages.TripCancellation.Status, List<CancellationData>> groupedByStatus = cancellationsForDeviationCase.getValue()
-                        .stream()
-                        .collect(Collectors.groupingBy(data -> data.payload.getStatus()));
-
-                if (groupedByStatus.containsKey(InternalMessages.TripCancellation.Status.CANCELED)) {
-                    //Cancellation always wins, there should be always only one of these
-                    List<CancellationData> activeCancellations = groupedByStatus.get(InternalMessages.TripCancellation.Status.CANCELED);
-                    if (activeCancellations.size() != 1) {
-                        log.warn("Something strange in OMM, more than one active cancellation for single deviation case ID {}", cancellationsForDeviationCase.getKey());
-                    }
-                    filtered.add(activeCancellations.get(0));
-                } else if (groupedByStatus.containsKey(InternalMessages.TripCancellation.Status.RUNNING)){
-                    // Let's pick the latest, although doesn't really matter since these just represent cancellation of cancellation,
-                    // no matter how many times it has been cancelled
-                    List<CancellationData> cancelledCancellations = groupedByStatus.get(InternalMessages.TripCancellation.Status.RUNNING);
-
-                    cancelledCancellations.stream().max(Comparator.comparingLong(CancellationData::getTimestamp)).ifPresent(filtered::add);
-                } else {
-                    log.error("This is impossible, found Cancellation which is neither canceled or running!");
-                }
+        // We keep only the winning row per dvjId and deviation case ID, in the order the keys were first seen.
+        final List<CancellationData> firstSeen = new ArrayList<>();
+        final LongPairHashMap<CancellationData> winners = new LongPairHashMap<>(cancellations.size());
+
+        for (CancellationData data : cancellations) {
+            final CancellationData winner = winners.get(data.dvjId, data.deviationCaseId);
+            if (winner == null) {
+                winners.put(data.dvjId, data.deviationCaseId, data);
+                firstSeen.add(data);
+            } else if (pickWinner(winner, data) != winner) {
+                winners.put(data.dvjId, data.deviationCaseId, data);
             }
         }
 
+        final List<CancellationData> filtered = new ArrayList<>(firstSeen.size());
+        for (CancellationData data : firstSeen) {
+            filtered.add(winners.get(data.dvjId, data.deviationCaseId));
+        }
         return filtered;
     }
 
-    private void logChangesInCancellations(List<CancellationData> cancellations) {
-        int newCancellationsCount = 0;
-        int repeatedCancellationsCount = 0;
-        for (CancellationData newCancellation: cancellations) {
-            boolean repeatedCancellation = false;
-            for (CancellationData prevCancellation: previousCancellations) {
-                if (newCancellation.dvjId.equals(prevCancellation.dvjId)) {
-                    repeatedCancellation = true;
-                    break;
-                }
+    /**
+     * Picks the row to keep out of two rows with the same dvjId and deviation case ID
+     */
+    static CancellationData pickWinner(CancellationData winner, CancellationData data) {
+        final InternalMessages.TripCancellation.Status winnerStatus = winner.payload.getStatus();
+        final InternalMessages.TripCancellation.Status status = data.payload.getStatus();
+        if (winnerStatus == InternalMessages.TripCancellation.Status.CANCELED) {
+            //Cancellation always wins, there should be always only one of these
+            if (status == InternalMessages.TripCancellation.Status.CANCELED) {
+                log.warn("Something strange in OMM, more than one active cancellation for single deviation case ID {}", data.deviationCaseId);
             }
-            if (repeatedCancellation) {
-                repeatedCancellationsCount += 1;
+            return winner;
+        } else if (status == InternalMessages.TripCancellation.Status.CANCELED) {
+            return data;
+        } else if (data.timestampEpochMs > winner.timestampEpochMs) {
+            // Let's pick the latest, although doesn't really matter since these just represent cancellation of cancellation,
+            // no matter how many times it has been cancelled
+            return data;
+        }
+        return winner;
+    }
+
+    private void logChangesInCancellations(CancellationChangeTracker.Diff diff) {
+        log.info("Total cancellations count: {} of which {} are new, {} changed, {} unchanged and {} removed (based on dvjId and deviation case ID)",
+                diff.total(), diff.added.size(), diff.changed.size(), diff.unchanged.size(), diff.removed.size());
+        OmmMetrics.CANCELLATIONS.labels("new").set(diff.added.size());
+        OmmMetrics.CANCELLATIONS.labels("changed").set(diff.changed.size());
+        OmmMetrics.CANCELLATIONS.labels("unchanged").set(diff.unchanged.size());
+        OmmMetrics.CANCELLATIONS.labels("removed").set(diff.removed.size());
+    }
+
+    private boolean isFullSnapshotCycle() {
+        if (!changeTrackingEnabled) {
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        if (keyframeIntervalMs > 0 && now - lastKeyframeTime >= keyframeIntervalMs) {
+            lastKeyframeTime = now;
+            return true;
+        }
+        return false;
+    }
+
+    private void restoreSnapshot() {
+        if (snapshot == null) {
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        try {
+            final Optional<CancellationStateSnapshot.State> state = snapshot.read();
+            if (state.isPresent()) {
+                changeTracker.restore(state.get().entries);
+                lastKeyframeTime = state.get().keyframeTime;
+                log.info("Restored {} published cancellations from {} in {} ms",
+                        changeTracker.size(), snapshot.getPath(), System.currentTimeMillis() - startTime);
             } else {
-                newCancellationsCount += 1;
+                log.info("No snapshot of published cancellations found in {}", snapshot.getPath());
             }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to restore published cancellations from {}, starting from an empty state", snapshot.getPath(), e);
         }
-        log.info("Total cancellations count: {} of which {} are new and {} repeated cancellations (based on dvjId)",
-                cancellations.size(), newCancellationsCount, repeatedCancellationsCount);
-        previousCancellations = cancellations;
     }
 
-    private void sendCancellations(List<CancellationData> cancellations) throws PulsarClientException {
-        for (CancellationData data: cancellations) {
-            sendPulsarMessage(data.payload, data.timestampEpochMs, data.dvjId);
+    /**
+     * Persists the published state if it changed during the cycle. Called after the messages have been acknowledged.
+     */
+    private void writeSnapshot(CancellationChangeTracker.Diff diff) {
+        if (snapshot == null || diff.added.isEmpty() && diff.changed.isEmpty() && diff.removed.isEmpty()) {
+            return;
+        }
+        try {
+            snapshot.write(changeTracker, lastKeyframeTime);
+        } catch (IOException e) {
+            log.error("Failed to write snapshot of published cancellations to {}", snapshot.getPath(), e);
         }
     }
 
-    private void sendPulsarMessage(InternalMessages.TripCancellation tripCancellation, long timestamp, String dvjId) throws PulsarClientException {
-        try {
-            producer.newMessage().value(tripCancellation.toByteArray())
-                    .eventTime(timestamp)
-                    .key(dvjId)
-                    .property(TransitdataProperties.KEY_DVJ_ID, dvjId)
-                    .property(TransitdataProperties.KEY_PROTOBUF_SCHEMA, TransitdataProperties.ProtobufSchema.InternalMessagesTripCancellation.toString())
-                    .send();
-
-            if (tripCancellation.getDeviationCasesType() == InternalMessages.TripCancellation.DeviationCasesType.CANCEL_DEPARTURE && tripCancellation.getAffectedDeparturesType() == InternalMessages.TripCancellation.AffectedDeparturesType.CANCEL_ENTIRE_DEPARTURE) {
-                log.info("Produced entire departure cancellation for trip: " + tripCancellation.getRouteId() + "/" +
-                        tripCancellation.getDirectionId() + "-" + tripCancellation.getStartTime() + "-" +
-                        tripCancellation.getStartDate());
+    private void sendCancellations(CancellationChangeTracker.Diff diff) throws PulsarClientException {
+        final boolean fullSnapshot = isFullSnapshotCycle();
+        if (fullSnapshot && changeTrackingEnabled) {
+            log.info("Sending keyframe with all {} cancellations", diff.total());
+        }
+
+        final List<CancellationData> updates = new ArrayList<>(diff.added.size() + diff.changed.size());
+        updates.addAll(diff.added);
+        updates.addAll(diff.changed);
+        sendUpdates(updates, System.currentTimeMillis());
+        if (fullSnapshot) {
+            sendAndMarkPublished(diff.unchanged, CancellationPublisher.Publication.REPEATED);
+        }
+        sendRemovals(diff.removed);
+        publisher.flush();
+        writeSnapshot(diff);
+    }
+
+    /**
+     * Publishes new and changed cancellations, the most urgent first if the publishing order is enabled.
+     * Cancellations deferred to later polls are not marked as published.
+     */
+    private void sendUpdates(List<CancellationData> updates, long now) throws PulsarClientException {
+        List<CancellationData> selected = updates;
+        if (publishingOrder != null) {
+            publishingOrder.sort(updates, now);
+            selected = publishingOrder.select(updates, now);
+        }
+        for (CancellationData data : selected) {
+            publisher.publish(data.payload, data.timestampEpochMs, data.dvjId, updatePublication(data, changeTracker.contains(data)));
+            changeTracker.markPublished(data);
+        }
+
+        final int deferred = updates.size() - selected.size();
+        if (deferred > 0) {
+            log.info("Deferred {} cancellations of departures beyond the horizon to later polls", deferred);
+        }
+        OmmMetrics.CANCELLATIONS.labels("deferred").set(deferred);
+    }
+
+    private void sendRemovals(List<CancellationData> removed) throws PulsarClientException {
+        final long now = System.currentTimeMillis();
+        for (CancellationData data : removed) {
+            // Cancellations of departures that have already left drop out of the query when they expire,
+            // the trip isn't running again
+            if (publishRemovals && changeTrackingEnabled && data.payload.getStatus() == InternalMessages.TripCancellation.Status.CANCELED
+                    && !departureTimes.hasDeparted(data, now)) {
+                // Cancellation is no longer active in OMM, let consumers know that the trip is running again
+                log.info("Cancellation for dvjId {} and deviation case ID {} has disappeared, sending it as running", data.dvjId, data.deviationCaseId);
+                InternalMessages.TripCancellation running = data.payload.toBuilder()
+                        .setStatus(InternalMessages.TripCancellation.Status.RUNNING)
+                        .build();
+                publisher.publish(running, System.currentTimeMillis(), data.dvjId);
             }
-        } catch (PulsarClientException pe) {
-            log.error("Failed to send message to Pulsar", pe);
-            throw pe;
-        } catch (Exception e) {
-            log.error("Failed to handle cancellation message", e);
+            changeTracker.markRemoved(data);
+        }
+    }
+
+    private void sendAndMarkPublished(List<CancellationData> cancellations, CancellationPublisher.Publication publication) throws PulsarClientException {
+        for (CancellationData data: cancellations) {
+            publisher.publish(data.payload, data.timestampEpochMs, data.dvjId, publication);
+            changeTracker.markPublished(data);
         }
     }
 
@@ -0,0 +1,180 @@
+package fi.hsl.transitdata.omm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small pool of database connections. Connections are validated when borrowed and replaced if they have been broken,
+ * and new connections are opened with exponential backoff after failures so that a database outage costs
+ * missed polls instead of an application restart.
+ *
+ * Each connection caches its prepared statements so that the queries are prepared only once per connection.
+ */
+public class OmmConnectionPool implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(OmmConnectionPool.class);
+
+    private static final long BORROW_TIMEOUT_SECS = 60;
+
+    private final String jdbcConnectionString;
+    private final int validationTimeoutSecs;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+
+    private final Semaphore available;
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+
+    private int consecutiveConnectFailures = 0;
+    private long nextConnectAttempt = 0;
+    private volatile boolean closed = false;
+
+    public class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * @return Cached forward-only, read-only statement for the query. The statement must not be closed by the caller.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null || statement.isClosed()) {
+                statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Returns the connection to the pool
+         */
+        @Override
+        public void close() {
+            release(this);
+        }
+
+        private boolean isValid() {
+            try {
+                return connection.isValid(validationTimeoutSecs);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        private void closeQuietly() {
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.debug("Failed to close connection", e);
+            }
+        }
+    }
+
+    public OmmConnectionPool(String jdbcConnectionString, int maxSize, int validationTimeoutSecs, long initialBackoffMs, long maxBackoffMs) {
+        this.jdbcConnectionString = jdbcConnectionString;
+        this.validationTimeoutSecs = validationTimeoutSecs;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.available = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Borrows a valid connection from the pool, opening a new one if needed. Blocks until a connection is available.
+     *
+     * @throws SQLException if a new connection could not be opened or the pool is backing off from previous failures
+     */
+    public PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        try {
+            if (!available.tryAcquire(BORROW_TIMEOUT_SECS, TimeUnit.SECONDS)) {
+                throw new SQLTimeoutException("Timed out waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = pollIdle()) != null) {
+                if (pooled.isValid()) {
+                    return pooled;
+                }
+                log.warn("Discarding broken database connection");
+                pooled.closeQuietly();
+            }
+            return new PooledConnection(connect());
+        } catch (SQLException | RuntimeException e) {
+            available.release();
+            throw e;
+        }
+    }
+
+    private synchronized PooledConnection pollIdle() {
+        return idle.pollFirst();
+    }
+
+    private void release(PooledConnection pooled) {
+        if (closed) {
+            pooled.closeQuietly();
+        } else {
+            synchronized (this) {
+                idle.addFirst(pooled);
+            }
+        }
+        available.release();
+    }
+
+    private synchronized Connection connect() throws SQLException {
+        final long now = System.currentTimeMillis();
+        if (now < nextConnectAttempt) {
+            throw new SQLException("Not reconnecting to database for another " + (nextConnectAttempt - now) + " ms after " + consecutiveConnectFailures + " failed attempts");
+        }
+        try {
+            final Connection connection = DriverManager.getConnection(jdbcConnectionString);
+            if (consecutiveConnectFailures > 0) {
+                log.info("Reconnected to database after {} failed attempts", consecutiveConnectFailures);
+            }
+            consecutiveConnectFailures = 0;
+            nextConnectAttempt = 0;
+            return connection;
+        } catch (SQLException e) {
+            consecutiveConnectFailures++;
+            final long backoff = backoffMs(consecutiveConnectFailures, initialBackoffMs, maxBackoffMs);
+            nextConnectAttempt = now + backoff;
+            log.error("Failed to connect to database, next attempt in {} ms", backoff);
+            throw e;
+        }
+    }
+
+    static long backoffMs(int failures, long initialBackoffMs, long maxBackoffMs) {
+        final int exponent = Math.min(failures - 1, 20);
+        return Math.min(initialBackoffMs << exponent, maxBackoffMs);
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            pooled.closeQuietly();
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package fi.hsl.transitdata.omm;
 
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigValueFactory;
 import fi.hsl.common.pulsar.PulsarApplicationContext;
+import org.apache.pulsar.client.api.Producer;
 import org.apache.pulsar.client.api.PulsarClientException;
 import fi.hsl.common.files.FileUtils;
 import org.slf4j.Logger;
@@ -11,37 +14,227 @@ import java.sql.*;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
 
 public class OmmConnector {
 
     private static final Logger log = LoggerFactory.getLogger(OmmConnector.class);
 
-    private final Connection dbConnection;
+    private final OmmConnectionPool connectionPool;
+    private final Producer<byte[]> producer;
     private OmmCancellationHandler handler;
+    // Only with FROM_NOW_AND_PAST, handler is then used for the current and future cancellations
+    private final OmmCancellationHandler pastHandler;
+    private final Producer<byte[]> pastProducer;
     private final String queryString;
     private final CancellationSourceType sourceType;
     private final String timezone;
+    private final IncrementalCancellationState incrementalState;
+    private final String incrementalQueryString;
+    private final int fetchSize;
+    private final ChangeProbe changeProbe;
+    private final String probeQueryString;
+    private final TripReferenceCache tripReferenceCache;
+    private final LocalJoinCancellationQuery localJoinQuery;
+    private final PartitionedQuery partitionedQuery;
+    private final Coordinator coordinator;
+    private final long takeoverLookbackSecs;
+    private Set<Integer> ownedShards = null;
+    // Null queries all cancellations
+    private TripShards shards = null;
+    private Instant lastQueryTime = null;
 
-    private OmmConnector(PulsarApplicationContext context, Connection connection, CancellationSourceType type) {
-        handler = new OmmCancellationHandler(context);
-        dbConnection = connection;
+    private OmmConnector(PulsarApplicationContext context, OmmConnectionPool pool, CancellationSourceType type) throws SQLException, PulsarClientException {
+        final Config config = context.getConfig();
+        producer = CancellationProducers.create(context.getClient(), config, config.getString("pulsar.producer.topic"));
+        if (type == CancellationSourceType.FROM_NOW_AND_PAST) {
+            handler = new OmmCancellationHandler(producer, nowAndPastHandlerConfig(config), CancellationSourceType.FROM_NOW);
+            pastProducer = createPastProducer(context);
+            pastHandler = new OmmCancellationHandler(pastProducer, pastHandlerConfig(config), CancellationSourceType.FROM_PAST);
+        } else {
+            handler = new OmmCancellationHandler(producer, config, type);
+            pastProducer = null;
+            pastHandler = null;
+        }
+        connectionPool = pool;
         queryString = createQuery(type);
         sourceType = type;
-        timezone = context.getConfig().getString("omm.timezone");
+        timezone = config.getString("omm.timezone");
         log.info("Using timezone " + timezone);
+        fetchSize = config.getInt("omm.db.fetchSize");
+        incrementalState = createIncrementalState(config, type);
+        incrementalQueryString = incrementalState != null ? readQuery("/cancellations_modified_since.sql") : null;
+        changeProbe = config.getBoolean("omm.probe.enabled") ? new ChangeProbe(probeMaxStaleness(config), probeMinInterval(config)) : null;
+        probeQueryString = changeProbe != null ? readQuery("/omm_change_probe.sql") : null;
+        tripReferenceCache = createTripReferenceCache(config, type);
+        localJoinQuery = tripReferenceCache != null
+                ? new LocalJoinCancellationQuery(readQuery("/cancellations_omm_only.sql"), tripReferenceCache, timezone, type,
+                        config.getInt("omm.referenceCache.deletedLookbackDays"))
+                : null;
+        partitionedQuery = createPartitionedQuery(config, type);
+        coordinator = config.getBoolean("omm.coordination.enabled")
+                ? PulsarFailoverCoordinator.create(context.getClient(), config)
+                : null;
+        takeoverLookbackSecs = config.getLong("omm.coordination.takeoverLookback");
+    }
+
+    public static OmmConnector newInstance(PulsarApplicationContext context, String jdbcConnectionString, CancellationSourceType sourceType) throws SQLException, PulsarClientException {
+        final Config config = context.getConfig();
+        // Partitions are queried concurrently, each on its own connection
+        final int poolSize = Math.max(config.getInt("omm.db.poolSize"), config.getInt("omm.partitions.count"));
+        return new OmmConnector(context, createPool(config, jdbcConnectionString, poolSize), sourceType);
     }
 
-    public static OmmConnector newInstance(PulsarApplicationContext context, String jdbcConnectionString, CancellationSourceType sourceType) throws SQLException {
-        Connection connection = DriverManager.getConnection(jdbcConnectionString);
-        return new OmmConnector(context, connection, sourceType);
+    static OmmConnectionPool createPool(Config config, String jdbcConnectionString, int poolSize) throws SQLException {
+        OmmConnectionPool pool = new OmmConnectionPool(jdbcConnectionString,
+                poolSize,
+                config.getInt("omm.db.validationTimeout"),
+                config.getLong("omm.db.reconnectBackoff") * 1000,
+                config.getLong("omm.db.maxReconnectBackoff") * 1000);
+        // Fail fast if the database can't be reached at startup
+        pool.borrow().close();
+        return pool;
+    }
+
+    public void close() {
+        if (coordinator != null) {
+            // Hands the shards over to the other instances right away
+            coordinator.close();
+        }
+        if (tripReferenceCache != null) {
+            tripReferenceCache.close();
+        }
+        if (partitionedQuery != null) {
+            partitionedQuery.close();
+        }
+        handler.close();
+        try {
+            producer.close();
+        } catch (PulsarClientException e) {
+            log.error("Failed to close producer", e);
+        }
+        if (pastHandler != null) {
+            pastHandler.close();
+            try {
+                pastProducer.close();
+            } catch (PulsarClientException e) {
+                log.error("Failed to close producer for past cancellations", e);
+            }
+        }
+        connectionPool.close();
+    }
+
+    private static Producer<byte[]> createPastProducer(PulsarApplicationContext context) throws PulsarClientException {
+        final String topic = context.getConfig().getString("omm.nowAndPast.pastTopic");
+        log.info("Publishing past, ongoing and future cancellations to topic {}", topic);
+        return CancellationProducers.create(context.getClient(), context.getConfig(), topic);
+    }
+
+    /**
+     * The rows of the combined query are split into lists for the two handlers, so they don't use the pipeline
+     */
+    static Config nowAndPastHandlerConfig(Config config) {
+        return config.withValue("omm.pipeline.enabled", ConfigValueFactory.fromAnyRef(false));
+    }
+
+    static Config pastHandlerConfig(Config config) {
+        // Both handlers keep their own change tracking state and outbox
+        Config pastConfig = nowAndPastHandlerConfig(config);
+        final String snapshotFile = config.getString("omm.changeTracking.snapshotFile");
+        if (!snapshotFile.isEmpty()) {
+            pastConfig = pastConfig.withValue("omm.changeTracking.snapshotFile", ConfigValueFactory.fromAnyRef(snapshotFile + ".past"));
+        }
+        final String outboxFile = config.getString("omm.outbox.file");
+        if (!outboxFile.isEmpty()) {
+            pastConfig = pastConfig.withValue("omm.outbox.file", ConfigValueFactory.fromAnyRef(outboxFile + ".past"));
+        }
+        return pastConfig;
+    }
+
+    /**
+     * Without changes in OMM the full query is still needed for cancellations expiring with time, so it is run at least every poll interval
+     */
+    static long probeMaxStaleness(Config config) {
+        final long maxStaleness = config.getLong("omm.probe.maxStaleness");
+        final long pollInterval = config.getLong("omm.interval");
+        if (maxStaleness > pollInterval) {
+            log.warn("Probe maximum staleness of {} s is longer than the poll interval, using {} s", maxStaleness, pollInterval);
+            return pollInterval;
+        }
+        return maxStaleness;
+    }
+
+    /**
+     * Changes in OMM are published at most this much later, in exchange for at most one full query per interval
+     */
+    static long probeMinInterval(Config config) {
+        final long minInterval = config.getLong("omm.probe.minInterval");
+        final long maxStaleness = probeMaxStaleness(config);
+        if (minInterval > maxStaleness) {
+            log.warn("Probe minimum interval of {} s is longer than the maximum staleness, using {} s", minInterval, maxStaleness);
+            return maxStaleness;
+        }
+        return minInterval;
+    }
+
+    private IncrementalCancellationState createIncrementalState(Config config, CancellationSourceType sourceType) {
+        if (!config.getBoolean("omm.incremental.enabled")) {
+            return null;
+        }
+        if (sourceType != CancellationSourceType.FROM_NOW) {
+            log.warn("Incremental querying is supported only for CANCELLATIONS_FROM_TIME=NOW, querying full results on every poll");
+            return null;
+        }
+        log.info("Using incremental querying of cancellations");
+        return new IncrementalCancellationState(timezone,
+                config.getLong("omm.incremental.resyncInterval"),
+                config.getLong("omm.incremental.watermarkOverlap"));
+    }
+
+    private TripReferenceCache createTripReferenceCache(Config config, CancellationSourceType sourceType) throws SQLException {
+        if (!config.getBoolean("omm.referenceCache.enabled")) {
+            return null;
+        }
+        if (incrementalState != null || sourceType == CancellationSourceType.FROM_NOW_AND_PAST) {
+            log.warn("Trip reference cache is not supported with incremental querying or CANCELLATIONS_FROM_TIME=NOW_AND_PAST, joining trip data in the database");
+            return null;
+        }
+        log.info("Joining trip data from the trip reference cache");
+        final TripReferenceCache cache = new TripReferenceCache(connectionPool, readQuery("/trip_reference_data.sql"), timezone,
+                config.getInt("omm.referenceCache.preloadDays"),
+                config.getInt("omm.referenceCache.retainDays"),
+                config.getInt("omm.referenceCache.bulkSize"));
+        cache.start(config.getLong("omm.referenceCache.refreshInterval"));
+        return cache;
+    }
+
+    private PartitionedQuery createPartitionedQuery(Config config, CancellationSourceType sourceType) {
+        final int partitions = config.getInt("omm.partitions.count");
+        if (partitions <= 1) {
+            return null;
+        }
+        if (incrementalState != null || localJoinQuery != null || sourceType == CancellationSourceType.FROM_NOW_AND_PAST) {
+            log.warn("Partitioned querying is not supported with incremental querying, the trip reference cache or CANCELLATIONS_FROM_TIME=NOW_AND_PAST, using a single query");
+            return null;
+        }
+        log.info("Querying cancellations in {} partitions", partitions);
+        return new PartitionedQuery(queryString, partitions);
     }
 
     private String createQuery(CancellationSourceType sourceType) {
-        InputStream stream = (sourceType == CancellationSourceType.FROM_PAST)
-                ? getClass().getResourceAsStream("/cancellations_past_current_future.sql")
-                : (sourceType == CancellationSourceType.FROM_NOW)
-                    ? getClass().getResourceAsStream("/cancellations_current_future.sql")
-                    : null;
+        switch (sourceType) {
+            case FROM_PAST: return readQuery("/cancellations_past_current_future.sql");
+            case FROM_NOW: return readQuery("/cancellations_current_future.sql");
+            case FROM_NOW_AND_PAST: return readQuery("/cancellations_now_and_past.sql");
+        }
+        return null;
+    }
+
+    private String readQuery(String resourceName) {
+        InputStream stream = getClass().getResourceAsStream(resourceName);
         try {
             return FileUtils.readFileFromStreamOrThrow(stream);
         } catch (Exception e) {
@@ -58,39 +251,210 @@ public class OmmConnector {
         return DateTimeFormatter.ofPattern("yyyy-MM-dd").format(instant.atZone(ZoneId.of(zoneId)));
     }
 
+    /**
+     * Runs the cancellation query and publishes the results. If the change probe is enabled, the query is run only
+     * when OMM has changed since the previous query or the previous query is older than the maximum staleness.
+     * With coordination, standbys don't query at all and the query is run right after a change of owned shards.
+     */
     public void queryAndProcessResults(int pollIntervalInSeconds) throws SQLException, PulsarClientException {
+        final boolean shardsChanged = coordinator != null && updateOwnedShards();
+        if (coordinator != null && ownedShards.isEmpty()) {
+            log.debug("Standing by, other instances own all shards");
+            return;
+        }
+        try (OmmConnectionPool.PooledConnection connection = connectionPool.borrow()) {
+            final long probeTime = System.currentTimeMillis();
+            final ChangeProbe.Snapshot snapshot = changeProbe != null ? ChangeProbe.probe(connection.prepare(probeQueryString)) : null;
+            if (snapshot != null && !shardsChanged && !changeProbe.shouldQuery(snapshot, probeTime)) {
+                log.debug("No changes in OMM since the previous query");
+                return;
+            }
+            queryAndProcessResults(connection, pollIntervalInSeconds);
+            if (snapshot != null) {
+                changeProbe.queried(snapshot, probeTime);
+            }
+        }
+        catch (Exception e) {
+            log.error("Error while  querying and processing messages", e);
+            OmmMetrics.CYCLE_FAILURES.inc();
+            throw e;
+        }
+    }
+
+    /**
+     * @return True if the shards owned by this instance changed since the previous poll
+     */
+    private boolean updateOwnedShards() {
+        final Set<Integer> owned = coordinator.ownedShards();
+        if (owned.equals(ownedShards)) {
+            return false;
+        }
+        log.info("Owning shards {} of {}, previously {}", owned, coordinator.shardCount(), ownedShards);
+        final boolean takeover = ownedShards == null || !ownedShards.containsAll(owned);
+        ownedShards = owned;
+        OmmMetrics.OWNED_SHARDS.set(owned.size());
+        shards = new TripShards(coordinator.shardCount(), owned);
+        handler.assignShards(shards);
+        if (pastHandler != null) {
+            pastHandler.assignShards(shards);
+        }
+        if (owned.isEmpty()) {
+            // Other instances publish everything in the meantime, so the time of the last query is no longer relevant
+            lastQueryTime = null;
+            return true;
+        }
+        if (localJoinQuery != null) {
+            localJoinQuery.assignShards(shards);
+        }
+        if (partitionedQuery != null) {
+            partitionedQuery.assignShards(shards);
+        }
+        if (incrementalState != null) {
+            // The state has the cancellations of the previous shards
+            incrementalState.resync();
+        }
+        if (takeover && sourceType != CancellationSourceType.FROM_NOW) {
+            lastQueryTime = queryTimeAfterTakeover(lastQueryTime, Instant.now(), takeoverLookbackSecs);
+            log.info("Taking over shards, querying past cancellations modified since {}", lastQueryTime);
+        }
+        return true;
+    }
+
+    /**
+     * The previous owner of the new shards may have stopped any time after its last query, which is not known here.
+     * Past cancellations modified within the takeover lookback are queried again, instead of only those modified
+     * since the previous query of this instance, so that the modifications made in between are not lost.
+     *
+     * @param lastQueryTime Time of the previous successful query of this instance, null if there is none
+     * @return Time from which past cancellations are queried on the next poll
+     */
+    static Instant queryTimeAfterTakeover(Instant lastQueryTime, Instant now, long takeoverLookbackSecs) {
+        final Instant takeoverQueryTime = now.minusSeconds(takeoverLookbackSecs);
+        return lastQueryTime == null || lastQueryTime.isAfter(takeoverQueryTime) ? takeoverQueryTime : lastQueryTime;
+    }
+
+    /**
+     * @return Query restricted to the shards owned by this instance
+     */
+    private String restrictToShards(String query) {
+        return shards != null ? shards.restrict(query, "DVJ.Id") : query;
+    }
+
+    private void queryAndProcessResults(OmmConnectionPool.PooledConnection connection, int pollIntervalInSeconds) throws SQLException, PulsarClientException {
         //Let's use Strings in the query since JDBC driver tends to convert timestamps automatically to local jvm time.
         Instant now = Instant.now();
         String nowDateTime = localDatetimeAsString(now, timezone);
         String nowDate = localDateAsString(now, timezone);
 
         log.info("Querying results from database with timestamp {}", now);
+        handler.queryStarted(now.toEpochMilli());
+        if (pastHandler != null) {
+            pastHandler.queryStarted(now.toEpochMilli());
+        }
         long queryStartTime = System.currentTimeMillis();
+        final long cycleStartNanos = System.nanoTime();
+
+        try {
+            if (incrementalState != null) {
+                PreparedStatement statement = connection.prepare(restrictToShards(incrementalQueryString));
+                statement.setFetchSize(fetchSize);
+                handler.handleAndSend(incrementalState.poll(statement, handler, now));
+            } else if (localJoinQuery != null) {
+                handler.handleAndSend(localJoinQuery.poll(connection, now, previousQueryTime(now, pollIntervalInSeconds), fetchSize));
+            } else {
+                log.trace("Running query " + queryString);
+
+                final String pastDateTime = localDatetimeAsString(previousQueryTime(now, pollIntervalInSeconds), timezone);
+                final PartitionedQuery.ParameterBinder binder = statement -> bindParameters(statement, sourceType, nowDateTime, nowDate, pastDateTime);
+                if (partitionedQuery != null) {
+                    handler.handleAndSend(partitionedQuery.run(connection, connectionPool, binder, handler, fetchSize));
+                } else {
+                    PreparedStatement statement = connection.prepare(restrictToShards(queryString));
+                    statement.setFetchSize(fetchSize);
+                    binder.bind(statement);
 
-        log.trace("Running query " + queryString);
-
-        try (PreparedStatement statement = dbConnection.prepareStatement(queryString)) {
-            statement.setString(1, nowDateTime);
-            statement.setString(2, nowDate);
-            if (sourceType == CancellationSourceType.FROM_PAST) {
-                Instant pastNow = now.minusSeconds(pollIntervalInSeconds);
-                String pastDateTime = localDatetimeAsString(pastNow, timezone);
-                statement.setString(3, nowDateTime);
-                statement.setString(4, nowDate);
-                statement.setString(5, pastDateTime);
+                    final long queryStartNanos = System.nanoTime();
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        OmmMetrics.QUERY_DURATION.observe(OmmMetrics.secondsSince(queryStartNanos));
+                        if (pastHandler != null) {
+                            handleAndSendNowAndPast(resultSet, queryStartNanos);
+                        } else {
+                            handler.handleAndSend(resultSet, queryStartNanos);
+                        }
+                    }
+                }
             }
+            lastQueryTime = now;
+            logIfSlow(queryStartTime);
+        }
+        finally {
+            recordCycleDuration(cycleStartNanos, pollIntervalInSeconds);
+        }
+    }
+
+    /**
+     * Binds the parameters of the query created for the source type
+     */
+    static void bindParameters(PreparedStatement statement, CancellationSourceType sourceType,
+                               String nowDateTime, String nowDate, String pastDateTime) throws SQLException {
+        int index = 1;
+        if (sourceType == CancellationSourceType.FROM_NOW_AND_PAST) {
+            // IS_CURRENT column
+            statement.setString(index++, nowDateTime);
+            statement.setString(index++, nowDate);
+        }
+        statement.setString(index++, nowDateTime);
+        statement.setString(index++, nowDate);
+        if (sourceType != CancellationSourceType.FROM_NOW) {
+            statement.setString(index++, nowDateTime);
+            statement.setString(index++, nowDate);
+            statement.setString(index, pastDateTime);
+        }
+    }
 
-            ResultSet resultSet = statement.executeQuery();
-            handler.handleAndSend(resultSet);
+    /**
+     * Polls can be skipped or delayed, so past cancellations are included if modified since the previous successful query
+     */
+    private Instant previousQueryTime(Instant now, int pollIntervalInSeconds) {
+        return lastQueryTime != null ? lastQueryTime : now.minusSeconds(pollIntervalInSeconds);
+    }
 
-            long elapsed = System.currentTimeMillis() - queryStartTime;
-            if (elapsed > 4000) {
-                log.warn("Slow querying & handling of cancellations. Total query and processing time was: {} ms", elapsed);
+    /**
+     * Sends the rows that cancellations_current_future.sql would return to the current topic and all rows to the past topic
+     */
+    private void handleAndSendNowAndPast(ResultSet resultSet, long queryStartNanos) throws SQLException, PulsarClientException {
+        final CancellationRowDecoder decoder = handler.newDecoder(resultSet, queryStartNanos);
+        final int isCurrentIndex = resultSet.findColumn("IS_CURRENT");
+        final List<OmmCancellationHandler.CancellationData> current = new ArrayList<>();
+        final List<OmmCancellationHandler.CancellationData> all = new ArrayList<>();
+        while (resultSet.next()) {
+            final boolean isCurrent = resultSet.getInt(isCurrentIndex) == 1;
+            final Optional<OmmCancellationHandler.CancellationData> data = decoder.decode(resultSet);
+            if (data.isPresent()) {
+                all.add(data.get());
+                if (isCurrent) {
+                    current.add(data.get());
+                }
             }
         }
-        catch (Exception e) {
-            log.error("Error while  querying and processing messages", e);
-            throw e;
+        log.info("Read {} cancellations of which {} are current", all.size(), current.size());
+        handler.handleAndSend(current);
+        pastHandler.handleAndSend(all);
+    }
+
+    private static void recordCycleDuration(long cycleStartNanos, int pollIntervalInSeconds) {
+        final double elapsedSecs = OmmMetrics.secondsSince(cycleStartNanos);
+        OmmMetrics.CYCLE_DURATION.observe(elapsedSecs);
+        if (elapsedSecs > pollIntervalInSeconds) {
+            log.warn("Poll took {} s which is longer than the poll interval of {} s", String.format("%.1f", elapsedSecs), pollIntervalInSeconds);
+            OmmMetrics.CYCLE_OVERRUNS.inc();
+        }
+    }
+
+    private static void logIfSlow(long queryStartTime) {
+        long elapsed = System.currentTimeMillis() - queryStartTime;
+        if (elapsed > 4000) {
+            log.warn("Slow querying & handling of cancellations. Total query and processing time was: {} ms", elapsed);
         }
     }
 
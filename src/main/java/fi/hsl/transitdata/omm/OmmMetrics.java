@@ -0,0 +1,113 @@
+package fi.hsl.transitdata.omm;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.exporter.HTTPServer;
+import io.prometheus.client.hotspot.DefaultExports;
+
+import java.io.IOException;
+
+/**
+ * Prometheus metrics of the poll cycle. Database metrics (query_*, rows_*) can be compared with
+ * the Pulsar metrics (publish_*) to see which side is slow.
+ */
+final class OmmMetrics {
+    private static final double[] DATABASE_BUCKETS = { 0.05, 0.1, 0.25, 0.5, 1, 2, 4, 8, 16, 32, 64 };
+    private static final double[] PUBLISH_BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+    private static final double[] FRESHNESS_BUCKETS = { 1, 2.5, 5, 10, 15, 20, 30, 45, 60, 90, 120, 180, 300, 600, 1800, 3600, 21600, 86400 };
+
+    static final Histogram QUERY_DURATION = Histogram.build()
+            .name("omm_query_duration_seconds")
+            .help("Time spent executing the cancellation query")
+            .buckets(DATABASE_BUCKETS)
+            .register();
+    static final Histogram QUERY_FIRST_ROW = Histogram.build()
+            .name("omm_query_first_row_seconds")
+            .help("Time from the start of the query to the first row being read")
+            .buckets(DATABASE_BUCKETS)
+            .register();
+    static final Counter ROWS_READ = Counter.build()
+            .name("omm_rows_read_total")
+            .help("Rows read from the cancellation queries")
+            .register();
+    static final Counter PARSE_FAILURES = Counter.build()
+            .name("omm_parse_failures_total")
+            .help("Rows that could not be parsed into cancellations")
+            .register();
+    static final Gauge CANCELLATIONS = Gauge.build()
+            .name("omm_cancellations")
+            .help("Cancellations left after filtering duplicates in the latest poll, by change since the previous poll")
+            .labelNames("change")
+            .register();
+    static final Histogram PUBLISH_LATENCY = Histogram.build()
+            .name("omm_publish_latency_seconds")
+            .help("Time from sending a cancellation to its acknowledgement from Pulsar")
+            .buckets(PUBLISH_BUCKETS)
+            .register();
+    static final Gauge PUBLISH_IN_FLIGHT = Gauge.build()
+            .name("omm_publish_in_flight")
+            .help("Cancellations sent to Pulsar and waiting for acknowledgement")
+            .register();
+    static final Counter PUBLISH_FAILURES = Counter.build()
+            .name("omm_publish_failures_total")
+            .help("Cancellations that could not be sent to Pulsar")
+            .register();
+    static final Histogram FRESHNESS_LAG = Histogram.build()
+            .name("omm_freshness_lag_seconds")
+            .help("Time from the last modification of a cancellation in OMM to its acknowledgement by Pulsar, by deviation case type and publication (new or repeated)")
+            .labelNames("deviation_cases_type", "publication")
+            .buckets(FRESHNESS_BUCKETS)
+            .register();
+    static final Counter FRESHNESS_SLO_BREACHES = Counter.build()
+            .name("omm_freshness_slo_breaches_total")
+            .help("New or changed cancellations acknowledged by Pulsar later than omm.freshness.slo after their last modification in OMM")
+            .labelNames("deviation_cases_type")
+            .register();
+    static final Counter PROBES = Counter.build()
+            .name("omm_probes_total")
+            .help("Change probes by result, the full query is run for all other results than unchanged and throttled")
+            .labelNames("result")
+            .register();
+    static final Histogram CYCLE_DURATION = Histogram.build()
+            .name("omm_cycle_duration_seconds")
+            .help("Total time of querying and publishing cancellations in a poll")
+            .buckets(DATABASE_BUCKETS)
+            .register();
+    static final Counter CYCLE_OVERRUNS = Counter.build()
+            .name("omm_cycle_overruns_total")
+            .help("Polls that took longer than the poll interval")
+            .register();
+    static final Counter CYCLE_FAILURES = Counter.build()
+            .name("omm_cycle_failures_total")
+            .help("Polls that failed with an exception")
+            .register();
+    static final Gauge OUTBOX_DEPTH = Gauge.build()
+            .name("omm_outbox_depth")
+            .help("Cancellations waiting in the outbox to be sent to Pulsar, by outbox file")
+            .labelNames("outbox")
+            .register();
+    static final Gauge OUTBOX_BYTES = Gauge.build()
+            .name("omm_outbox_bytes")
+            .help("Bytes used by the cancellations in the outbox, by outbox file")
+            .labelNames("outbox")
+            .register();
+    static final Gauge OWNED_SHARDS = Gauge.build()
+            .name("omm_owned_shards")
+            .help("Shards published by this instance when coordinating with other instances, 0 on standby")
+            .register();
+
+    private OmmMetrics() {}
+
+    static double secondsSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    /**
+     * Starts serving the metrics and the JVM metrics in Prometheus text format on a daemon thread
+     */
+    static HTTPServer startServer(int port) throws IOException {
+        DefaultExports.initialize();
+        return new HTTPServer(port, true);
+    }
+}
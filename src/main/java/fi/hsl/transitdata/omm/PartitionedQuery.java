@@ -0,0 +1,188 @@
+package fi.hsl.transitdata.omm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a cancellation query as disjoint partitions by deviation_case_id modulo the partition count, concurrently
+ * on separate connections. All rows of a departure and deviation case are in the same partition and each partition
+ * is ordered like the whole query, so merging the partitions by dvjId and deviation case ID gives the same rows
+ * in the same order as the single query.
+ */
+class PartitionedQuery implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(PartitionedQuery.class);
+
+    private static final Comparator<OmmCancellationHandler.CancellationData> QUERY_ORDER =
+            Comparator.<OmmCancellationHandler.CancellationData>comparingLong(data -> data.dvjId)
+                    .thenComparingLong(data -> data.deviationCaseId);
+
+    interface ParameterBinder {
+        void bind(PreparedStatement statement) throws SQLException;
+    }
+
+    private final String query;
+    private final String[] partitionQueries;
+    private final ExecutorService executor;
+
+    PartitionedQuery(String query, int partitions) {
+        if (partitions < 2) {
+            throw new IllegalArgumentException("At least two partitions are needed, got " + partitions);
+        }
+        this.query = query;
+        partitionQueries = new String[partitions];
+        partition(query);
+        // The first partition is run on the polling thread
+        executor = Executors.newFixedThreadPool(partitions - 1, runnable -> {
+            final Thread thread = new Thread(runnable, "omm-partition");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Restricts the partitions to the shards owned by this instance, called on the polling thread between runs
+     */
+    void assignShards(TripShards shards) {
+        partition(shards.restrict(query, "DVJ.Id"));
+    }
+
+    private void partition(String query) {
+        for (int i = 0; i < partitionQueries.length; i++) {
+            partitionQueries[i] = partitionQuery(query, partitionQueries.length, i);
+        }
+    }
+
+    /**
+     * Adds the partition condition before the ORDER BY of the query
+     */
+    static String partitionQuery(String query, int partitions, int partition) {
+        final int orderBy = query.lastIndexOf("ORDER BY");
+        if (orderBy < 0) {
+            throw new IllegalArgumentException("Query must end with ORDER BY");
+        }
+        return query.substring(0, orderBy)
+                + "AND DC.deviation_case_id % " + partitions + " = " + partition + "\n    "
+                + query.substring(orderBy);
+    }
+
+    /**
+     * @param connection Connection for the first partition, the other partitions borrow their connections from the pool
+     */
+    List<OmmCancellationHandler.CancellationData> run(OmmConnectionPool.PooledConnection connection, OmmConnectionPool pool,
+                                                      ParameterBinder binder, OmmCancellationHandler handler, int fetchSize) throws SQLException {
+        final List<Future<List<OmmCancellationHandler.CancellationData>>> futures = new ArrayList<>();
+        for (int i = 1; i < partitionQueries.length; i++) {
+            final String query = partitionQueries[i];
+            futures.add(executor.submit(() -> {
+                try (OmmConnectionPool.PooledConnection partitionConnection = pool.borrow()) {
+                    return query(partitionConnection, query, binder, handler, fetchSize);
+                }
+            }));
+        }
+
+        final List<List<OmmCancellationHandler.CancellationData>> results = new ArrayList<>(partitionQueries.length);
+        try {
+            results.add(query(connection, partitionQueries[0], binder, handler, fetchSize));
+            for (Future<List<OmmCancellationHandler.CancellationData>> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the partitioned queries", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new SQLException("Partitioned query failed", e.getCause());
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+        return merge(results);
+    }
+
+    private static List<OmmCancellationHandler.CancellationData> query(OmmConnectionPool.PooledConnection connection, String query,
+                                                                       ParameterBinder binder, OmmCancellationHandler handler, int fetchSize) throws SQLException {
+        final PreparedStatement statement = connection.prepare(query);
+        statement.setFetchSize(fetchSize);
+        binder.bind(statement);
+        final long queryStartNanos = System.nanoTime();
+        try (ResultSet resultSet = statement.executeQuery()) {
+            OmmMetrics.QUERY_DURATION.observe(OmmMetrics.secondsSince(queryStartNanos));
+            final CancellationRowDecoder decoder = handler.newDecoder(resultSet, queryStartNanos);
+            final List<OmmCancellationHandler.CancellationData> rows = new ArrayList<>();
+            while (resultSet.next()) {
+                decoder.decode(resultSet).ifPresent(rows::add);
+            }
+            log.debug("Partition returned {} cancellations in {} ms", rows.size(), (System.nanoTime() - queryStartNanos) / 1_000_000);
+            return rows;
+        }
+    }
+
+    /**
+     * K-way merge of partitions that are each ordered by dvjId and deviation case ID. Rows with the same key
+     * are always in the same partition, so their order is kept.
+     */
+    static List<OmmCancellationHandler.CancellationData> merge(List<List<OmmCancellationHandler.CancellationData>> partitions) {
+        int total = 0;
+        final PriorityQueue<PeekingIterator> heads = new PriorityQueue<>(Math.max(1, partitions.size()),
+                (a, b) -> QUERY_ORDER.compare(a.peek(), b.peek()));
+        for (List<OmmCancellationHandler.CancellationData> partition : partitions) {
+            total += partition.size();
+            if (!partition.isEmpty()) {
+                heads.add(new PeekingIterator(partition.iterator()));
+            }
+        }
+
+        final List<OmmCancellationHandler.CancellationData> merged = new ArrayList<>(total);
+        while (!heads.isEmpty()) {
+            final PeekingIterator head = heads.poll();
+            final OmmCancellationHandler.CancellationData key = head.peek();
+            // Take the whole run of the same key from this partition
+            do {
+                merged.add(head.next());
+            } while (head.hasNext() && QUERY_ORDER.compare(head.peek(), key) == 0);
+            if (head.hasNext()) {
+                heads.add(head);
+            }
+        }
+        return merged;
+    }
+
+    private static final class PeekingIterator {
+        private final Iterator<OmmCancellationHandler.CancellationData> iterator;
+        private OmmCancellationHandler.CancellationData next;
+
+        PeekingIterator(Iterator<OmmCancellationHandler.CancellationData> iterator) {
+            this.iterator = iterator;
+            this.next = iterator.next();
+        }
+
+        OmmCancellationHandler.CancellationData peek() {
+            return next;
+        }
+
+        boolean hasNext() {
+            return next != null;
+        }
+
+        OmmCancellationHandler.CancellationData next() {
+            final OmmCancellationHandler.CancellationData current = next;
+            next = iterator.hasNext() ? iterator.next() : null;
+            return current;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,106 @@
+package fi.hsl.transitdata.omm;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Orders new and changed cancellations by urgency, so that cancellations of the next departures are published first,
+ * followed by the departures that have already left.
+ *
+ * Departures starting later than the horizon from now are published after the others, at most maxBeyondHorizon
+ * per poll. The rest are left unpublished, so that they are new again on the next poll.
+ */
+final class PublishingOrder {
+    // Groups of the sort order
+    private static final int UPCOMING = 0;
+    private static final int DEPARTED = 1;
+    private static final int BEYOND_HORIZON = 2;
+
+    private final DepartureTimes departureTimes;
+    private final long horizonMs;
+    private final int maxBeyondHorizon;
+
+    /**
+     * @param maxBeyondHorizon 0 publishes all cancellations beyond the horizon
+     */
+    PublishingOrder(ZoneId zone, long horizonSecs, int maxBeyondHorizon) {
+        this.departureTimes = new DepartureTimes(zone);
+        this.horizonMs = horizonSecs * 1000;
+        this.maxBeyondHorizon = maxBeyondHorizon;
+    }
+
+    long departureTime(OmmCancellationHandler.CancellationData data) {
+        return departureTimes.departureTime(data);
+    }
+
+    boolean isWithinHorizon(OmmCancellationHandler.CancellationData data, long nowMs) {
+        final long departureTime = departureTime(data);
+        return departureTime == DepartureTimes.UNKNOWN || departureTime - nowMs <= horizonMs;
+    }
+
+    /**
+     * Sorts the cancellations in three groups, each by the distance of their departure from now: departures within
+     * the horizon, departures that have already left and departures beyond the horizon. Departures with an unknown
+     * time are first. The sort is stable and ties are ordered by dvjId, so that the messages of a trip stay together
+     * and in the order of the query.
+     */
+    void sort(List<OmmCancellationHandler.CancellationData> cancellations, long nowMs) {
+        final List<Keyed> keyed = new ArrayList<>(cancellations.size());
+        for (OmmCancellationHandler.CancellationData data : cancellations) {
+            final long departureTime = departureTime(data);
+            final long untilDeparture = departureTime - nowMs;
+            if (departureTime == DepartureTimes.UNKNOWN) {
+                keyed.add(new Keyed(UPCOMING, 0, data));
+            } else if (untilDeparture < 0) {
+                keyed.add(new Keyed(DEPARTED, -untilDeparture, data));
+            } else {
+                keyed.add(new Keyed(untilDeparture <= horizonMs ? UPCOMING : BEYOND_HORIZON, untilDeparture, data));
+            }
+        }
+        keyed.sort((a, b) -> a.group != b.group
+                ? Integer.compare(a.group, b.group)
+                : a.distance != b.distance
+                ? Long.compare(a.distance, b.distance)
+                : Long.compare(a.data.dvjId, b.data.dvjId));
+        for (int i = 0; i < keyed.size(); i++) {
+            cancellations.set(i, keyed.get(i).data);
+        }
+    }
+
+    /**
+     * @param sorted Cancellations sorted with {@link #sort}
+     * @return Cancellations to publish on this poll in the same order: all within the horizon and the closest beyond it
+     */
+    List<OmmCancellationHandler.CancellationData> select(List<OmmCancellationHandler.CancellationData> sorted, long nowMs) {
+        if (maxBeyondHorizon <= 0) {
+            return sorted;
+        }
+        final List<OmmCancellationHandler.CancellationData> selected = new ArrayList<>(sorted.size());
+        int beyondHorizon = 0;
+        long lastDvjId = Long.MIN_VALUE;
+        for (OmmCancellationHandler.CancellationData data : sorted) {
+            if (isWithinHorizon(data, nowMs)) {
+                selected.add(data);
+            } else if (beyondHorizon < maxBeyondHorizon || data.dvjId == lastDvjId) {
+                // All messages of the last trip are published, even if that goes over the limit
+                selected.add(data);
+                beyondHorizon++;
+                lastDvjId = data.dvjId;
+            }
+        }
+        return selected;
+    }
+
+    private static final class Keyed {
+        final int group;
+        final long distance;
+        final OmmCancellationHandler.CancellationData data;
+
+        Keyed(int group, long distance, OmmCancellationHandler.CancellationData data) {
+            this.group = group;
+            this.distance = distance;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package fi.hsl.transitdata.omm;
+
+import com.typesafe.config.Config;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.ConsumerBuilder;
+import org.apache.pulsar.client.api.ConsumerEventListener;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.SubscriptionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Elects the owners of the shards with a failover subscription to the coordination topic. The broker makes one
+ * consumer of the subscription active per partition and switches to another consumer when the active one
+ * disconnects, so partition i of the topic is shard i. Nothing is published to the topic, it is only subscribed.
+ *
+ * With one shard the topic can be non-partitioned, otherwise it has to be created with as many partitions as there are shards.
+ */
+class PulsarFailoverCoordinator implements Coordinator, ConsumerEventListener {
+    private static final Logger log = LoggerFactory.getLogger(PulsarFailoverCoordinator.class);
+
+    private final int shardCount;
+    private final Set<Integer> owned = ConcurrentHashMap.newKeySet();
+    private Consumer<byte[]> consumer;
+
+    private PulsarFailoverCoordinator(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    static PulsarFailoverCoordinator create(PulsarClient client, Config config) throws PulsarClientException {
+        final String topic = config.getString("omm.coordination.topic");
+        final String subscription = config.getString("omm.coordination.subscription");
+        final PulsarFailoverCoordinator coordinator = new PulsarFailoverCoordinator(config.getInt("omm.coordination.shards"));
+        final ConsumerBuilder<byte[]> builder = client.newConsumer()
+                .topic(topic)
+                .subscriptionName(subscription)
+                .subscriptionType(SubscriptionType.Failover)
+                .consumerEventListener(coordinator);
+        final String consumerName = config.getString("omm.coordination.consumerName");
+        if (!consumerName.isEmpty()) {
+            // The broker orders the consumers by name when assigning the partitions
+            builder.consumerName(consumerName);
+        }
+        coordinator.consumer = builder.subscribe();
+        log.info("Coordinating {} shards with subscription {} to topic {}", coordinator.shardCount, subscription, topic);
+        return coordinator;
+    }
+
+    @Override
+    public int shardCount() {
+        return shardCount;
+    }
+
+    @Override
+    public Set<Integer> ownedShards() {
+        if (consumer != null && !consumer.isConnected()) {
+            // The broker has already given the shards to another consumer or will do so once it notices the disconnection
+            return Collections.emptySet();
+        }
+        return new HashSet<>(owned);
+    }
+
+    @Override
+    public void becameActive(Consumer<?> consumer, int partitionId) {
+        // Consumers of a non-partitioned topic get partition ID -1
+        final int shard = Math.max(partitionId, 0);
+        if (shard >= shardCount) {
+            log.warn("Coordination topic has more partitions than the {} shards, ignoring partition {}", shardCount, partitionId);
+            return;
+        }
+        log.info("Became active for shard {}", shard);
+        owned.add(shard);
+    }
+
+    @Override
+    public void becameInactive(Consumer<?> consumer, int partitionId) {
+        final int shard = Math.max(partitionId, 0);
+        log.info("Became inactive for shard {}", shard);
+        owned.remove(shard);
+    }
+
+    @Override
+    public void close() {
+        owned.clear();
+        try {
+            consumer.close();
+        } catch (PulsarClientException e) {
+            log.error("Failed to close the coordination consumer", e);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package fi.hsl.transitdata.omm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory copy of the ptDOI4 trip data needed for cancellations, keyed by DVJ id. The operating days from
+ * retainDays before today to preloadDays after today are loaded in the background and reloaded every refresh,
+ * which also drops trips that have been replaced. Trips outside the preloaded days are fetched in bulk when
+ * cancellations refer to them, and days older than the retained ones are evicted to keep the memory bounded.
+ *
+ * Changes in ptDOI4 are seen only after the next refresh, so the refresh interval is the maximum age of the trip data.
+ */
+class TripReferenceCache implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(TripReferenceCache.class);
+
+    private static final DateTimeFormatter SQL_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+    static final class TripReference {
+        final long dvjId;
+        final List<String> routeNames;
+        final int direction;
+        final String operatingDay; // yyyyMMdd
+        final String startTime;
+
+        TripReference(long dvjId, List<String> routeNames, int direction, String operatingDay, String startTime) {
+            this.dvjId = dvjId;
+            this.routeNames = routeNames;
+            this.direction = direction;
+            this.operatingDay = operatingDay;
+            this.startTime = startTime;
+        }
+    }
+
+    private final Map<Long, TripReference> trips = new ConcurrentHashMap<>();
+    // DVJ ids that were not found, these are not queried again until the next refresh
+    private final Set<Long> missing = ConcurrentHashMap.newKeySet();
+
+    private final OmmConnectionPool pool;
+    private final ZoneId zone;
+    private final int preloadDays;
+    private final int retainDays;
+    private final int bulkSize;
+    private final String byDayQuery;
+    private final String byIdQuery;
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "omm-trip-reference-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param query trip_reference_data.sql
+     */
+    TripReferenceCache(OmmConnectionPool pool, String query, String timezone, int preloadDays, int retainDays, int bulkSize) {
+        this.pool = pool;
+        this.zone = ZoneId.of(timezone);
+        this.preloadDays = preloadDays;
+        this.retainDays = retainDays;
+        this.bulkSize = bulkSize;
+        byDayQuery = query.replace("{CONDITION}", "DVJ.OperatingDayDate >= ? AND DVJ.OperatingDayDate <= ?");
+        byIdQuery = query.replace("{CONDITION}", "DVJ.Id IN (" + String.join(",", Collections.nCopies(bulkSize, "?")) + ")");
+    }
+
+    /**
+     * Loads the preloaded days and schedules the refreshes
+     */
+    void start(long refreshIntervalSecs) throws SQLException {
+        refresh();
+        refresher.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (Exception e) {
+                log.error("Failed to refresh trip reference data, using the previous data", e);
+            }
+        }, refreshIntervalSecs, refreshIntervalSecs, TimeUnit.SECONDS);
+    }
+
+    void refresh() throws SQLException {
+        final long startTime = System.currentTimeMillis();
+        final LocalDate today = LocalDate.now(zone);
+        final String firstDay = DateTimeFormatter.BASIC_ISO_DATE.format(today.minusDays(retainDays));
+        final String lastDay = DateTimeFormatter.BASIC_ISO_DATE.format(today.plusDays(preloadDays));
+
+        final Map<Long, TripReference> loaded;
+        try (OmmConnectionPool.PooledConnection connection = pool.borrow()) {
+            final PreparedStatement statement = connection.prepare(byDayQuery);
+            statement.setString(1, SQL_DATE.format(today.minusDays(retainDays)));
+            statement.setString(2, SQL_DATE.format(today.plusDays(preloadDays)));
+            loaded = read(statement);
+        }
+
+        // Evict the old days and the trips that are no longer valid on the loaded days
+        trips.values().removeIf(trip -> trip.operatingDay.compareTo(firstDay) < 0
+                || (trip.operatingDay.compareTo(lastDay) <= 0 && !loaded.containsKey(trip.dvjId)));
+        trips.putAll(loaded);
+        missing.clear();
+        log.info("Loaded {} trips for operating days {}-{} in {} ms, cache has {} trips",
+                loaded.size(), firstDay, lastDay, System.currentTimeMillis() - startTime, trips.size());
+    }
+
+    /**
+     * Returns the trips of the given DVJ ids, fetching the ones that are not cached in bulk.
+     * DVJ ids that are not found in ptDOI4 are left out, as in an inner join.
+     */
+    Map<Long, TripReference> resolve(Collection<Long> dvjIds, OmmConnectionPool.PooledConnection connection) throws SQLException {
+        final Map<Long, TripReference> resolved = new HashMap<>();
+        final List<Long> misses = new ArrayList<>();
+        for (Long dvjId : dvjIds) {
+            final TripReference trip = trips.get(dvjId);
+            if (trip != null) {
+                resolved.put(dvjId, trip);
+            } else if (!missing.contains(dvjId)) {
+                misses.add(dvjId);
+            }
+        }
+        if (misses.isEmpty()) {
+            return resolved;
+        }
+
+        final PreparedStatement statement = connection.prepare(byIdQuery);
+        for (int start = 0; start < misses.size(); start += bulkSize) {
+            final List<Long> batch = misses.subList(start, Math.min(start + bulkSize, misses.size()));
+            // The statement has a fixed number of parameters so that it is prepared only once, pad with the last id
+            for (int i = 0; i < bulkSize; i++) {
+                statement.setLong(i + 1, batch.get(Math.min(i, batch.size() - 1)));
+            }
+            final Map<Long, TripReference> loaded = read(statement);
+            for (Long dvjId : batch) {
+                final TripReference trip = loaded.get(dvjId);
+                if (trip != null) {
+                    trips.put(dvjId, trip);
+                    resolved.put(dvjId, trip);
+                } else {
+                    missing.add(dvjId);
+                }
+            }
+        }
+        log.debug("Fetched {} trips missing from the cache", misses.size());
+        return resolved;
+    }
+
+    int size() {
+        return trips.size();
+    }
+
+    private static Map<Long, TripReference> read(PreparedStatement statement) throws SQLException {
+        final Map<Long, TripReference> loaded = new HashMap<>();
+        try (ResultSet resultSet = statement.executeQuery()) {
+            final int dvjIdIndex = resultSet.findColumn("DVJ_ID");
+            final int routeNameIndex = resultSet.findColumn("ROUTE_NAME");
+            final int directionIndex = resultSet.findColumn("DIRECTION_OF_LINE_GID");
+            final int operatingDayIndex = resultSet.findColumn("OPERATING_DAY_DATE");
+            final int startMinutesIndex = resultSet.findColumn("START_MINUTES");
+            while (resultSet.next()) {
+                final long dvjId = resultSet.getLong(dvjIdIndex);
+                final String routeName = resultSet.getString(routeNameIndex);
+                final TripReference existing = loaded.get(dvjId);
+                if (existing != null) {
+                    // Same trip with another key type of the route
+                    existing.routeNames.add(routeName);
+                } else {
+                    final List<String> routeNames = new ArrayList<>(1);
+                    routeNames.add(routeName);
+                    loaded.put(dvjId, new TripReference(dvjId, routeNames,
+                            CancellationRowDecoder.direction(resultSet.getLong(directionIndex)),
+                            CancellationRowDecoder.operatingDay(resultSet.getDate(operatingDayIndex).toLocalDate()),
+                            CancellationRowDecoder.startTime(resultSet.getInt(startMinutesIndex))));
+                }
+            }
+        }
+        return loaded;
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+    }
+}
@@ -0,0 +1,56 @@
+package fi.hsl.transitdata.omm;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Shards owned by an instance. Cancellations are sharded by dvjId modulo the shard count, so that the trips of
+ * every operating day are spread evenly over the shards. The queries are restricted to the owned shards in
+ * the database, like PartitionedQuery restricts them to its partitions.
+ */
+final class TripShards {
+    private final int shardCount;
+    private final Set<Integer> owned;
+
+    TripShards(int shardCount, Set<Integer> owned) {
+        this.shardCount = shardCount;
+        this.owned = Collections.unmodifiableSet(new HashSet<>(owned));
+    }
+
+    Set<Integer> owned() {
+        return owned;
+    }
+
+    static int shardOf(long dvjId, int shardCount) {
+        return (int) Math.floorMod(dvjId, (long) shardCount);
+    }
+
+    boolean contains(OmmCancellationHandler.CancellationData data) {
+        return owned.contains(shardOf(data.dvjId, Math.max(shardCount, 1)));
+    }
+
+    /**
+     * Adds the shard condition before the ORDER BY of the query, the query is returned as such if all shards are owned
+     *
+     * @param dvjIdColumn Column with the dvjId in the query, f.ex. DVJ.Id
+     */
+    String restrict(String query, String dvjIdColumn) {
+        if (owned.size() >= shardCount) {
+            return query;
+        }
+        if (owned.isEmpty()) {
+            throw new IllegalStateException("No shards are owned, the query should not be run");
+        }
+        final int orderBy = query.lastIndexOf("ORDER BY");
+        if (orderBy < 0) {
+            throw new IllegalArgumentException("Query must end with ORDER BY");
+        }
+        final String shards = new TreeSet<>(owned).stream().map(String::valueOf).collect(Collectors.joining(", "));
+        return query.substring(0, orderBy)
+                + "AND " + dvjIdColumn + " % " + shardCount + " IN (" + shards + ")\n    "
+                + query.substring(orderBy);
+    }
+}
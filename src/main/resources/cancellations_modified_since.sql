@@ -0,0 +1,41 @@
+SELECT
+	DC.deviation_case_id AS deviation_case_id
+    ,DC.[valid_to] AS VALID_TO
+    ,DC.[type] AS DEVIATION_CASES_TYPE
+    ,DC.[last_modified] AS DEVIATION_CASES_LAST_MODIFIED
+    ,AD.last_modified AS AFFECTED_DEPARTURES_LAST_MODIFIED
+    ,AD.[status] AS AFFECTED_DEPARTURES_STATUS
+    ,AD.[type] AS AFFECTED_DEPARTURES_TYPE
+    ,BLM.[title] AS TITLE
+    ,BLM.[description] AS DESCRIPTION
+    ,B.category AS CATEGORY
+    ,B.sub_category AS SUB_CATEGORY
+    /*DIRECTION, OPERATING DAY AND START TIME ARE FORMATTED BY CancellationRowDecoder*/
+    ,DVJ.Id AS DVJ_ID, KVV.StringValue AS ROUTE_NAME
+    ,VJT.IsWorkedOnDirectionOfLineGid AS DIRECTION_OF_LINE_GID
+    ,DVJ.OperatingDayDate AS OPERATING_DAY_DATE
+    ,DATEDIFF(MINUTE, '1900-01-01', PlannedStartOffsetDateTime) AS START_MINUTES
+    FROM [OMM_Community].[dbo].[deviation_cases] AS DC
+    LEFT JOIN OMM_Community.dbo.affected_departures AS AD ON DC.deviation_case_id = AD.deviation_case_id
+    LEFT JOIN OMM_Community.dbo.bulletin_localized_messages AS BLM ON DC.bulletin_id = BLM.bulletins_id
+    LEFT JOIN OMM_Community.dbo.bulletins AS B ON DC.bulletin_id = B.bulletins_id
+    INNER JOIN ptDOI4_Community.dbo.DatedVehicleJourney AS DVJ ON DVJ.Id = AD.departure_id
+    INNER JOIN ptDOI4_Community.dbo.VehicleJourney AS VJ ON VJ.Id = DVJ.IsBasedOnVehicleJourneyId
+    INNER JOIN ptDOI4_Community.dbo.VehicleJourneyTemplate AS VJT ON VJT.Id = DVJ.IsBasedOnVehicleJourneyTemplateId
+    INNER JOIN ptDOI4_Community.T.KeyVariantValue AS KVV ON KVV.IsForObjectId = VJ.Id
+    INNER JOIN ptDOI4_Community.dbo.KeyVariantType AS KVT ON KVT.Id = KVV.IsOfKeyVariantTypeId
+    INNER JOIN ptDOI4_Community.dbo.KeyType AS KT ON KT.Id = KVT.IsForKeyTypeId
+    INNER JOIN ptDOI4_Community.dbo.ObjectType AS OT ON OT.Number = KT.ExtendsObjectTypeNumber
+    WHERE /*DC.[type] = 'CANCEL_DEPARTURE' AND AD.[type] = 'CANCEL_ENTIRE_DEPARTURE'
+    AND*/ BLM.language_code = 'fi'
+    /*ONLY DEVIATION CASES WHERE THE CASE OR ANY OF ITS AFFECTED DEPARTURES HAS BEEN MODIFIED SINCE THE WATERMARK*/
+    AND DC.deviation_case_id IN (
+        SELECT deviation_case_id FROM OMM_Community.dbo.deviation_cases WHERE last_modified >= ?
+        UNION
+        SELECT deviation_case_id FROM OMM_Community.dbo.affected_departures WHERE last_modified >= ?)
+    /*LOWER BOUND FOR VALIDITY, ON INCREMENTAL QUERIES EXPIRED CASES ARE RETURNED AS WELL SO THAT THEY CAN BE REMOVED FROM THE STATE*/
+    AND (DC.valid_to > ? OR (DC.valid_to IS NULL AND DVJ.OperatingDayDate >= ?))
+    AND (KT.Name = 'JoreIdentity' OR KT.Name = 'JoreRouteIdentity' OR KT.Name = 'RouteName') AND OT.Name = 'VehicleJourney'
+    AND VJT.IsWorkedOnDirectionOfLineGid IS NOT NULL
+    AND DVJ.IsReplacedById IS NULL
+    ORDER BY DC.last_modified;
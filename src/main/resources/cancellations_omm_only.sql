@@ -0,0 +1,29 @@
+/*CANCELLATIONS FROM THE OMM TABLES ONLY, THE TRIP DATA IS JOINED FROM TripReferenceCache. THE CONDITIONS ON THE
+  OPERATING DAY OF THE TRIP ARE EVALUATED IN LocalJoinCancellationQuery, SO DELETED ROWS WITHOUT valid_to ARE RETURNED
+  IF THEY WERE DELETED WITHIN THE LOOKBACK OR MODIFIED SINCE THE PREVIOUS QUERY.
+  PARAMETERS: NOW, START OF THE LOOKBACK FOR DELETED ROWS, THE TIME OF THE PREVIOUS QUERY (FAR FUTURE FOR
+  CANCELLATIONS_FROM_TIME=NOW), NOW AND THE TIME OF THE PREVIOUS QUERY AGAIN*/
+SELECT
+	DC.deviation_case_id AS deviation_case_id
+    ,DC.[valid_to] AS VALID_TO
+    ,DC.[type] AS DEVIATION_CASES_TYPE
+    ,DC.[last_modified] AS DEVIATION_CASES_LAST_MODIFIED
+    ,AD.last_modified AS AFFECTED_DEPARTURES_LAST_MODIFIED
+    ,AD.[status] AS AFFECTED_DEPARTURES_STATUS
+    ,AD.[type] AS AFFECTED_DEPARTURES_TYPE
+    ,BLM.[title] AS TITLE
+    ,BLM.[description] AS DESCRIPTION
+    ,B.category AS CATEGORY
+    ,B.sub_category AS SUB_CATEGORY
+    ,AD.departure_id AS DVJ_ID
+    FROM [OMM_Community].[dbo].[deviation_cases] AS DC
+    LEFT JOIN OMM_Community.dbo.affected_departures AS AD ON DC.deviation_case_id = AD.deviation_case_id
+    LEFT JOIN OMM_Community.dbo.bulletin_localized_messages AS BLM ON DC.bulletin_id = BLM.bulletins_id
+    LEFT JOIN OMM_Community.dbo.bulletins AS B ON DC.bulletin_id = B.bulletins_id
+    WHERE BLM.language_code = 'fi'
+    AND AD.departure_id IS NOT NULL
+    AND (DC.valid_to > ?
+        OR (DC.valid_to IS NULL AND AD.[status] = 'deleted' AND (AD.last_modified >= ? OR DC.last_modified >= ?))
+        OR (DC.valid_to <= ? AND DC.last_modified >= ?))
+    /*ROWS OF THE SAME DEPARTURE AND DEVIATION CASE MUST BE CONSECUTIVE FOR FILTERING DUPLICATES WHILE READING*/
+    ORDER BY AD.departure_id, DC.deviation_case_id, DC.last_modified;
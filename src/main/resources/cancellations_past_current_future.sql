@@ -1,9 +1,6 @@
 SELECT
-	DC.deviation_case_id AS deviation_case_id,
-    DC.[valid_from] AS VALID_FROM
-    ,DC.[valid_to] AS VALID_TO
+	DC.deviation_case_id AS deviation_case_id
     ,DC.[type] AS DEVIATION_CASES_TYPE
-    ,DC.[last_modified] AS DEVIATION_CASES_LAST_MODIFIED
     ,AD.last_modified AS AFFECTED_DEPARTURES_LAST_MODIFIED
     ,AD.[status] AS AFFECTED_DEPARTURES_STATUS
     ,AD.[type] AS AFFECTED_DEPARTURES_TYPE
@@ -11,12 +8,11 @@ SELECT
     ,BLM.[description] AS DESCRIPTION
     ,B.category AS CATEGORY
     ,B.sub_category AS SUB_CATEGORY
-    ,CONVERT(CHAR(16), DVJ.Id) AS DVJ_ID, KVV.StringValue AS ROUTE_NAME
-    ,CONVERT(INTEGER, SUBSTRING(CONVERT(CHAR(16), VJT.IsWorkedOnDirectionOfLineGid), 12, 1)) AS DIRECTION
-    ,CONVERT(CHAR(8), DVJ.OperatingDayDate, 112) AS OPERATING_DAY
-    ,RIGHT('0' + (CONVERT(VARCHAR(2), (DATEDIFF(HOUR, '1900-01-01', PlannedStartOffsetDateTime)))), 2) + ':' +
-     RIGHT('0' + CONVERT(VARCHAR(2), ((DATEDIFF(MINUTE, '1900-01-01', PlannedStartOffsetDateTime))- +
-                ((DATEDIFF(HOUR, '1900-01-01', PlannedStartOffsetDateTime) * 60)))), 2) + ':00' AS START_TIME
+    /*DIRECTION, OPERATING DAY AND START TIME ARE FORMATTED BY CancellationRowDecoder*/
+    ,DVJ.Id AS DVJ_ID, KVV.StringValue AS ROUTE_NAME
+    ,VJT.IsWorkedOnDirectionOfLineGid AS DIRECTION_OF_LINE_GID
+    ,DVJ.OperatingDayDate AS OPERATING_DAY_DATE
+    ,DATEDIFF(MINUTE, '1900-01-01', PlannedStartOffsetDateTime) AS START_MINUTES
     FROM [OMM_Community].[dbo].[deviation_cases] AS DC
     LEFT JOIN OMM_Community.dbo.affected_departures AS AD ON DC.deviation_case_id = AD.deviation_case_id
     LEFT JOIN OMM_Community.dbo.bulletin_localized_messages AS BLM ON DC.bulletin_id = BLM.bulletins_id
@@ -38,4 +34,5 @@ SELECT
     AND (KT.Name = 'JoreIdentity' OR KT.Name = 'JoreRouteIdentity' OR KT.Name = 'RouteName') AND OT.Name = 'VehicleJourney'
     AND VJT.IsWorkedOnDirectionOfLineGid IS NOT NULL
     AND DVJ.IsReplacedById IS NULL
-    ORDER BY DC.last_modified;
+    /*ROWS OF THE SAME DEPARTURE AND DEVIATION CASE MUST BE CONSECUTIVE FOR FILTERING DUPLICATES WHILE READING*/
+    ORDER BY DVJ.Id, DC.deviation_case_id, DC.last_modified;
@@ -0,0 +1,6 @@
+/*CHEAP CHECK FOR CHANGES IN OMM, COUNTS ARE INCLUDED TO NOTICE DELETED ROWS*/
+SELECT
+    (SELECT MAX(DC.last_modified) FROM [OMM_Community].[dbo].[deviation_cases] AS DC) AS DEVIATION_CASES_LAST_MODIFIED
+    ,(SELECT COUNT_BIG(*) FROM [OMM_Community].[dbo].[deviation_cases]) AS DEVIATION_CASES_COUNT
+    ,(SELECT MAX(AD.last_modified) FROM OMM_Community.dbo.affected_departures AS AD) AS AFFECTED_DEPARTURES_LAST_MODIFIED
+    ,(SELECT COUNT_BIG(*) FROM OMM_Community.dbo.affected_departures) AS AFFECTED_DEPARTURES_COUNT;
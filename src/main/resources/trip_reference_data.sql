@@ -0,0 +1,20 @@
+/*TRIP DATA OF DATED VEHICLE JOURNEYS FOR TripReferenceCache, WITH THE SAME JOINS AND CONDITIONS AS THE CANCELLATION QUERIES.
+  THERE CAN BE SEVERAL ROWS WITH DIFFERENT ROUTE_NAME PER DVJ_ID. THE LAST CONDITION IS REPLACED WITH EITHER
+  A RANGE OF OPERATING DAYS OR A LIST OF DVJ IDS*/
+SELECT
+    DVJ.Id AS DVJ_ID
+    ,KVV.StringValue AS ROUTE_NAME
+    ,VJT.IsWorkedOnDirectionOfLineGid AS DIRECTION_OF_LINE_GID
+    ,DVJ.OperatingDayDate AS OPERATING_DAY_DATE
+    ,DATEDIFF(MINUTE, '1900-01-01', PlannedStartOffsetDateTime) AS START_MINUTES
+    FROM ptDOI4_Community.dbo.DatedVehicleJourney AS DVJ
+    INNER JOIN ptDOI4_Community.dbo.VehicleJourney AS VJ ON VJ.Id = DVJ.IsBasedOnVehicleJourneyId
+    INNER JOIN ptDOI4_Community.dbo.VehicleJourneyTemplate AS VJT ON VJT.Id = DVJ.IsBasedOnVehicleJourneyTemplateId
+    INNER JOIN ptDOI4_Community.T.KeyVariantValue AS KVV ON KVV.IsForObjectId = VJ.Id
+    INNER JOIN ptDOI4_Community.dbo.KeyVariantType AS KVT ON KVT.Id = KVV.IsOfKeyVariantTypeId
+    INNER JOIN ptDOI4_Community.dbo.KeyType AS KT ON KT.Id = KVT.IsForKeyTypeId
+    INNER JOIN ptDOI4_Community.dbo.ObjectType AS OT ON OT.Number = KT.ExtendsObjectTypeNumber
+    WHERE (KT.Name = 'JoreIdentity' OR KT.Name = 'JoreRouteIdentity' OR KT.Name = 'RouteName') AND OT.Name = 'VehicleJourney'
+    AND VJT.IsWorkedOnDirectionOfLineGid IS NOT NULL
+    AND DVJ.IsReplacedById IS NULL
+    AND {CONDITION};
@@ -0,0 +1,73 @@
+package fi.hsl.transitdata.omm;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static fi.hsl.transitdata.omm.TestHandlers.cancellation;
+import static org.junit.Assert.assertEquals;
+
+public class CancellationChangeTrackerTest {
+    @Test
+    public void testFirstCycleIsAllNew() throws Exception {
+        CancellationChangeTracker tracker = new CancellationChangeTracker();
+        List<OmmCancellationHandler.CancellationData> input = Arrays.asList(
+                cancellation(InternalMessages.TripCancellation.Status.CANCELED, 1, 1),
+                cancellation(InternalMessages.TripCancellation.Status.CANCELED, 2, 1));
+
+        CancellationChangeTracker.Diff diff = tracker.diff(input);
+        assertEquals(2, diff.added.size());
+        assertEquals(0, diff.changed.size());
+        assertEquals(0, diff.unchanged.size());
+        assertEquals(0, diff.removed.size());
+    }
+
+    @Test
+    public void testUnchangedChangedAndRemoved() throws Exception {
+        CancellationChangeTracker tracker = new CancellationChangeTracker();
+        OmmCancellationHandler.CancellationData first = cancellation(InternalMessages.TripCancellation.Status.CANCELED, 1, 1);
+        OmmCancellationHandler.CancellationData second = cancellation(InternalMessages.TripCancellation.Status.CANCELED, 2, 1);
+        OmmCancellationHandler.CancellationData third = cancellation(InternalMessages.TripCancellation.Status.CANCELED, 3, 1);
+        tracker.diff(Arrays.asList(first, second, third)).added.forEach(tracker::markPublished);
+
+        OmmCancellationHandler.CancellationData secondCancelled = cancellation(InternalMessages.TripCancellation.Status.RUNNING, 2, 1);
+        OmmCancellationHandler.CancellationData fourth = cancellation(InternalMessages.TripCancellation.Status.CANCELED, 4, 1);
+        CancellationChangeTracker.Diff diff = tracker.diff(Arrays.asList(first, secondCancelled, fourth));
+
+        assertEquals(1, diff.added.size());
+        assertEquals(4, diff.added.get(0).dvjId);
+        assertEquals(1, diff.changed.size());
+        assertEquals(2, diff.changed.get(0).dvjId);
+        assertEquals(1, diff.unchanged.size());
+        assertEquals(1, diff.unchanged.get(0).dvjId);
+        assertEquals(1, diff.removed.size());
+        assertEquals(3, diff.removed.get(0).dvjId);
+    }
+
+    @Test
+    public void testSameDvjIdWithDifferentDeviationCasesAreTrackedSeparately() throws Exception {
+        CancellationChangeTracker tracker = new CancellationChangeTracker();
+        OmmCancellationHandler.CancellationData first = cancellation(InternalMessages.TripCancellation.Status.CANCELED, 1, 1);
+        tracker.markPublished(first);
+
+        OmmCancellationHandler.CancellationData otherCase = cancellation(InternalMessages.TripCancellation.Status.CANCELED, 1, 2);
+        CancellationChangeTracker.Diff diff = tracker.diff(Arrays.asList(first, otherCase));
+        assertEquals(1, diff.added.size());
+        assertEquals(2, diff.added.get(0).deviationCaseId);
+        assertEquals(1, diff.unchanged.size());
+    }
+
+    @Test
+    public void testClassifyDoesNotModifyPublishedState() throws Exception {
+        CancellationChangeTracker tracker = new CancellationChangeTracker();
+        OmmCancellationHandler.CancellationData data = cancellation(InternalMessages.TripCancellation.Status.CANCELED, 1, 1);
+        assertEquals(1, tracker.diff(Arrays.asList(data)).added.size());
+        assertEquals(1, tracker.diff(Arrays.asList(data)).added.size());
+
+        tracker.markPublished(data);
+        assertEquals(1, tracker.diff(Arrays.asList(data)).unchanged.size());
+        assertEquals(1, tracker.size());
+    }
+}
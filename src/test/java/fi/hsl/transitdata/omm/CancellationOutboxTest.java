@@ -0,0 +1,103 @@
+package fi.hsl.transitdata.omm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class CancellationOutboxTest {
+    private Path directory;
+    private Path path;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("omm-outbox-test");
+        path = directory.resolve("outbox");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void testLatestCancellationOfEachTripIsKeptInOrder() throws IOException {
+        try (CancellationOutbox outbox = CancellationOutbox.open(path, 4096)) {
+            assertTrue(outbox.isEmpty());
+            outbox.append(record(1, 100, "a"));
+            outbox.append(record(2, 200, "b"));
+            outbox.append(record(3, 100, "c"));
+            outbox.append(record(4, 300, "d"));
+
+            assertEquals(4, outbox.size());
+            List<CancellationOutbox.Record> records = outbox.coalesce(Collections.emptyMap());
+            assertEquals(List.of("b", "c", "d"), payloads(records));
+            assertEquals(CancellationPublisher.Publication.NEW, records.get(0).publication);
+        }
+    }
+
+    @Test
+    public void testTripsAcknowledgedLaterAreLeftOut() throws IOException {
+        try (CancellationOutbox outbox = CancellationOutbox.open(path, 4096)) {
+            outbox.append(record(1, 100, "a"));
+            outbox.append(record(2, 200, "b"));
+
+            assertEquals(List.of("a"), payloads(outbox.coalesce(Collections.singletonMap(200L, 3L))));
+        }
+    }
+
+    @Test
+    public void testRecordsAreKeptOverRestarts() throws IOException {
+        try (CancellationOutbox outbox = CancellationOutbox.open(path, 4096)) {
+            outbox.append(record(7, 100, "a"));
+            outbox.append(record(8, 200, "b"));
+        }
+        try (CancellationOutbox outbox = CancellationOutbox.open(path, 4096)) {
+            assertEquals(2, outbox.size());
+            assertEquals(8, outbox.lastSequence());
+            assertEquals(List.of("a", "b"), payloads(outbox.coalesce(Collections.emptyMap())));
+            outbox.clear();
+        }
+        try (CancellationOutbox outbox = CancellationOutbox.open(path, 4096)) {
+            assertTrue(outbox.isEmpty());
+        }
+    }
+
+    @Test
+    public void testFullOutboxIsCompacted() throws IOException {
+        // Header and three records of one byte
+        int maxBytes = 12 + 3 * (29 + 1);
+        try (CancellationOutbox outbox = CancellationOutbox.open(path, maxBytes)) {
+            outbox.append(record(1, 100, "a"));
+            outbox.append(record(2, 100, "b"));
+            outbox.append(record(3, 200, "c"));
+            outbox.append(record(4, 300, "d"));
+            assertEquals(3, outbox.size());
+            assertEquals(List.of("b", "c", "d"), payloads(outbox.coalesce(Collections.emptyMap())));
+
+            try {
+                outbox.append(record(5, 400, "e"));
+                fail("Expected the outbox to be full");
+            } catch (IOException expected) {
+            }
+            assertEquals(3, outbox.size());
+        }
+    }
+
+    private static CancellationOutbox.Record record(long sequence, long dvjId, String payload) {
+        return new CancellationOutbox.Record(sequence, dvjId, System.currentTimeMillis(), CancellationPublisher.Publication.NEW, payload.getBytes());
+    }
+
+    private static List<String> payloads(List<CancellationOutbox.Record> records) {
+        return records.stream().map(record -> new String(record.payload)).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,176 @@
+package fi.hsl.transitdata.omm;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class CancellationPipelineTest {
+    private static final ZoneId ZONE = ZoneId.of("Europe/Helsinki");
+    private static final List<String> COLUMNS = Arrays.asList("deviation_case_id", "ROUTE_NAME", "DIRECTION_OF_LINE_GID", "OPERATING_DAY_DATE",
+            "START_MINUTES", "AFFECTED_DEPARTURES_STATUS", "DVJ_ID", "DEVIATION_CASES_TYPE", "AFFECTED_DEPARTURES_TYPE",
+            "TITLE", "DESCRIPTION", "CATEGORY", "SUB_CATEGORY", "AFFECTED_DEPARTURES_LAST_MODIFIED");
+
+    private final CancellationPipeline pipeline = new CancellationPipeline(2);
+
+    @After
+    public void tearDown() {
+        pipeline.close();
+    }
+
+    @Test
+    public void testWinnerOfEachKeyIsPublished() throws Exception {
+        ResultSet resultSet = mockResultSet(Arrays.asList(
+                row(1, 10, "deleted", 0),
+                row(1, 10, "active", 1),
+                row(1, 10, "deleted", 2),
+                row(2, 10, "deleted", 0),
+                row(2, 10, "deleted", 5),
+                row(2, 11, "active", 0),
+                row(3, 12, "active", 0)));
+
+        List<OmmCancellationHandler.CancellationData> selected = new CopyOnWriteArrayList<>();
+        List<OmmCancellationHandler.CancellationData> published = new CopyOnWriteArrayList<>();
+        int rows = pipeline.run(resultSet, new CancellationRowDecoder(resultSet, ZONE), data -> {
+            selected.add(data);
+            return data.deviationCaseId != 12;
+        }, published::add);
+
+        assertEquals(7, rows);
+        assertEquals(4, selected.size());
+        assertEquals(InternalMessages.TripCancellation.Status.CANCELED, selected.get(0).payload.getStatus());
+        assertEquals(InternalMessages.TripCancellation.Status.RUNNING, selected.get(1).payload.getStatus());
+        // Trip data formatted like the queries did before
+        assertEquals(1, selected.get(0).payload.getDirectionId());
+        assertEquals("20180101", selected.get(0).payload.getStartDate());
+        assertEquals("11:22:00", selected.get(0).payload.getStartTime());
+        assertEquals(CancellationRowDecoder.toEpochMs(Timestamp.valueOf(LocalDateTime.of(2018, 1, 1, 10, 5)), ZONE.getRules()),
+                selected.get(1).timestampEpochMs);
+
+        assertEquals(3, published.size());
+        assertEquals(selected.subList(0, 3), published);
+    }
+
+    @Test
+    public void testPublishingFailureIsThrownToCaller() throws Exception {
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            rows.add(row(i, 10, "active", 0));
+        }
+        ResultSet resultSet = mockResultSet(rows);
+        try {
+            pipeline.run(resultSet, new CancellationRowDecoder(resultSet, ZONE), data -> true, data -> {
+                throw new PulsarClientException("broker unavailable");
+            });
+            fail("Expected publishing to fail");
+        } catch (PulsarClientException e) {
+            assertEquals("broker unavailable", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testRowsDroppedByAFailedQueryArePublishedOnTheNextPoll() throws Exception {
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            rows.add(row(i, 10, "active", 0));
+        }
+        Map<String, Object> settings = TestHandlers.settings();
+        settings.put("omm.pipeline.enabled", true);
+        settings.put("omm.pipeline.queueSize", 2);
+        // A slow producer keeps the queues full, so the filter thread gives up on a selected row when the query fails
+        List<String> keys = new CopyOnWriteArrayList<String>() {
+            @Override
+            public boolean add(String key) {
+                try {
+                    Thread.sleep(150);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.add(key);
+            }
+        };
+        OmmCancellationHandler handler = TestHandlers.handler(keys, settings);
+        try {
+            try {
+                handler.handleAndSend(mockResultSet(rows, 5));
+                fail("Expected the query to fail");
+            } catch (SQLException e) {
+                assertEquals("connection reset", e.getMessage());
+            }
+            List<String> firstPoll = new ArrayList<>(keys);
+            keys.clear();
+            handler.handleAndSend(mockResultSet(rows));
+
+            // Each cancellation is sent once, whether or not it made it to the producer before the failure
+            Set<String> published = new HashSet<>(firstPoll);
+            published.addAll(keys);
+            assertEquals(firstPoll.size() + keys.size(), published.size());
+            assertEquals(10, published.size());
+        } finally {
+            handler.close();
+        }
+    }
+
+    private static Object[] row(long dvjId, long deviationCaseId, String status, int minute) {
+        return new Object[] { deviationCaseId, "7575", 9011201000010001L, Date.valueOf(LocalDate.of(2018, 1, 1)), 11 * 60 + 22, status, dvjId, "CANCEL_DEPARTURE",
+                "CANCEL_ENTIRE_DEPARTURE", "title", "description", "OTHER_DRIVER_ERROR", "NO_SUB_CATEGORY",
+                Timestamp.valueOf(LocalDateTime.of(2018, 1, 1, 10, minute)) };
+    }
+
+    private static ResultSet mockResultSet(List<Object[]> rows) {
+        return mockResultSet(rows, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param failAfter Number of rows returned before the cursor fails
+     */
+    private static ResultSet mockResultSet(List<Object[]> rows, int failAfter) {
+        Iterator<Object[]> it = rows.iterator();
+        int[] read = new int[1];
+        Object[][] current = new Object[1][];
+        return (ResultSet) Proxy.newProxyInstance(
+                CancellationPipelineTest.class.getClassLoader(),
+                new Class[] { ResultSet.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "next":
+                            if (read[0]++ == failAfter) {
+                                throw new SQLException("connection reset");
+                            }
+                            current[0] = it.hasNext() ? it.next() : null;
+                            return current[0] != null;
+                        case "findColumn":
+                            int index = COLUMNS.indexOf(args[0]);
+                            if (index < 0) {
+                                throw new SQLException("No column " + args[0]);
+                            }
+                            return index + 1;
+                        case "getString":
+                            Object value = current[0][(Integer) args[0] - 1];
+                            return value != null ? value.toString() : null;
+                        case "getLong":
+                            return ((Number) current[0][(Integer) args[0] - 1]).longValue();
+                        case "getInt":
+                            return ((Number) current[0][(Integer) args[0] - 1]).intValue();
+                        case "getTimestamp":
+                        case "getDate":
+                            return current[0][(Integer) args[0] - 1];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,83 @@
+package fi.hsl.transitdata.omm;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.apache.pulsar.client.api.BatcherBuilder;
+import org.apache.pulsar.client.api.CompressionType;
+import org.apache.pulsar.client.api.ProducerBuilder;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CancellationProducersTest {
+    @Test
+    public void testBatchingAndCompressionAreConfigured() {
+        Map<String, Object> settings = new HashMap<>();
+        ProducerBuilder<byte[]> builder = recordingBuilder(settings);
+
+        CancellationProducers.configure(builder, config(true, "key_based", "zstd"), "omm-cancellations");
+
+        assertEquals("omm-cancellations", settings.get("topic"));
+        assertEquals(true, settings.get("enableBatching"));
+        assertSame(BatcherBuilder.KEY_BASED, settings.get("batcherBuilder"));
+        assertEquals(CompressionType.ZSTD, settings.get("compressionType"));
+        assertEquals(10L, settings.get("batchingMaxPublishDelay"));
+        assertEquals(500, settings.get("batchingMaxMessages"));
+        assertEquals(65536, settings.get("batchingMaxBytes"));
+        assertEquals(true, settings.get("blockIfQueueFull"));
+    }
+
+    @Test
+    public void testBatchSettingsAreNotUsedWithoutBatching() {
+        Map<String, Object> settings = new HashMap<>();
+        ProducerBuilder<byte[]> builder = recordingBuilder(settings);
+
+        CancellationProducers.configure(builder, config(false, "DEFAULT", "NONE"), "omm-cancellations");
+
+        assertEquals(false, settings.get("enableBatching"));
+        assertEquals(CompressionType.NONE, settings.get("compressionType"));
+        assertFalse(settings.containsKey("batcherBuilder"));
+        assertFalse(settings.containsKey("batchingMaxMessages"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownBatcherIsRejected() {
+        CancellationProducers.batcher("PER_PARTITION");
+    }
+
+    private static Config config(boolean batching, String batcher, String compression) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("omm.producer.batching.enabled", batching);
+        values.put("omm.producer.batching.batcher", batcher);
+        values.put("omm.producer.batching.maxDelay", 10);
+        values.put("omm.producer.batching.maxMessages", 500);
+        values.put("omm.producer.batching.maxBytes", 65536);
+        values.put("omm.producer.compression", compression);
+        return ConfigFactory.parseMap(values);
+    }
+
+    /**
+     * Builder that records the first argument of each setter by method name
+     */
+    @SuppressWarnings("unchecked")
+    private static ProducerBuilder<byte[]> recordingBuilder(Map<String, Object> settings) {
+        return (ProducerBuilder<byte[]>) Proxy.newProxyInstance(
+                CancellationProducersTest.class.getClassLoader(),
+                new Class[] { ProducerBuilder.class },
+                (proxy, method, args) -> {
+                    if (args != null && args.length > 0) {
+                        if (args.length == 2 && args[1] instanceof TimeUnit) {
+                            settings.put(method.getName(), ((TimeUnit) args[1]).toMillis(((Number) args[0]).longValue()));
+                        } else {
+                            settings.put(method.getName(), args[0]);
+                        }
+                    }
+                    return proxy;
+                });
+    }
+}
@@ -0,0 +1,217 @@
+package fi.hsl.transitdata.omm;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class CancellationPublisherTest {
+    @Test
+    public void testAsyncPublishingWaitsForAllMessagesOnFlush() throws Exception {
+        List<CompletableFuture<Object>> pending = new ArrayList<>();
+        CancellationPublisher publisher = new CancellationPublisher(mockProducer(pending), true, 10);
+
+        for (int i = 0; i < 5; i++) {
+            publisher.publish(mockCancellation(i), System.currentTimeMillis(), i);
+        }
+        assertEquals(5, pending.size());
+
+        pending.forEach(future -> future.complete(null));
+        publisher.flush();
+    }
+
+    @Test
+    public void testAsyncFailuresAreThrownOnFlush() throws Exception {
+        List<CompletableFuture<Object>> pending = new ArrayList<>();
+        CancellationPublisher publisher = new CancellationPublisher(mockProducer(pending), true, 10);
+
+        publisher.publish(mockCancellation(1), System.currentTimeMillis(), 1);
+        publisher.publish(mockCancellation(2), System.currentTimeMillis(), 2);
+        pending.get(0).complete(null);
+        pending.get(1).completeExceptionally(new PulsarClientException("broker unavailable"));
+
+        try {
+            publisher.flush();
+            fail("Expected flush to fail");
+        } catch (PulsarClientException e) {
+            assertEquals("broker unavailable", e.getMessage());
+        }
+
+        // Failures are reported only once
+        publisher.flush();
+    }
+
+    @Test
+    public void testInFlightMessagesAreCounted() throws Exception {
+        List<CompletableFuture<Object>> pending = new ArrayList<>();
+        CancellationPublisher publisher = new CancellationPublisher(mockProducer(pending), true, 10);
+        double before = OmmMetrics.PUBLISH_IN_FLIGHT.get();
+
+        publisher.publish(mockCancellation(1), System.currentTimeMillis(), 1);
+        publisher.publish(mockCancellation(2), System.currentTimeMillis(), 2);
+        assertEquals(before + 2, OmmMetrics.PUBLISH_IN_FLIGHT.get(), 0.0);
+
+        pending.forEach(future -> future.complete(null));
+        publisher.flush();
+        assertEquals(before, OmmMetrics.PUBLISH_IN_FLIGHT.get(), 0.0);
+    }
+
+    @Test
+    public void testRateLimitPacesSends() throws Exception {
+        List<CompletableFuture<Object>> pending = new ArrayList<>();
+        CancellationPublisher publisher = new CancellationPublisher(mockProducer(pending), true, 100, 100);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 11; i++) {
+            publisher.publish(mockCancellation(i), System.currentTimeMillis(), i);
+        }
+        // The first message is sent immediately and the next ten at 10 ms intervals
+        assertTrue(System.nanoTime() - start >= 95_000_000);
+
+        pending.forEach(future -> future.complete(null));
+        publisher.flush();
+    }
+
+    @Test
+    public void testFreshnessIsRecordedOnAcknowledgement() throws Exception {
+        List<CompletableFuture<Object>> pending = new ArrayList<>();
+        CancellationPublisher publisher = new CancellationPublisher(mockProducer(pending), true, 10, 0, 60);
+        InternalMessages.TripCancellation cancellation = mockCancellation(1).toBuilder()
+                .setDeviationCasesType(InternalMessages.TripCancellation.DeviationCasesType.CANCEL_DEPARTURE)
+                .build();
+        String type = "CANCEL_DEPARTURE";
+        double newLagBefore = OmmMetrics.FRESHNESS_LAG.labels(type, "new").get().sum;
+        double repeatedLagBefore = OmmMetrics.FRESHNESS_LAG.labels(type, "repeated").get().sum;
+        double breachesBefore = OmmMetrics.FRESHNESS_SLO_BREACHES.labels(type).get();
+
+        long now = System.currentTimeMillis();
+        publisher.publish(cancellation, now - 30_000, 1, CancellationPublisher.Publication.NEW);
+        publisher.publish(cancellation, now - 120_000, 1, CancellationPublisher.Publication.NEW);
+        publisher.publish(cancellation, now - 3_600_000, 1, CancellationPublisher.Publication.REPEATED);
+        publisher.publish(cancellation, now - 3_600_000, 1, CancellationPublisher.Publication.NEW);
+        publisher.publish(cancellation, now - 3_600_000, 1);
+        // Nothing is recorded before the acknowledgement
+        assertEquals(newLagBefore, OmmMetrics.FRESHNESS_LAG.labels(type, "new").get().sum, 0.0);
+
+        pending.get(0).complete(null);
+        pending.get(1).complete(null);
+        pending.get(2).complete(null);
+        pending.get(3).completeExceptionally(new PulsarClientException("broker unavailable"));
+        pending.get(4).complete(null);
+        try {
+            publisher.flush();
+        } catch (PulsarClientException expected) {
+        }
+
+        assertEquals(150, OmmMetrics.FRESHNESS_LAG.labels(type, "new").get().sum - newLagBefore, 1.0);
+        assertEquals(3600, OmmMetrics.FRESHNESS_LAG.labels(type, "repeated").get().sum - repeatedLagBefore, 1.0);
+        // Only the new cancellation acknowledged more than a minute after its modification
+        assertEquals(breachesBefore + 1, OmmMetrics.FRESHNESS_SLO_BREACHES.labels(type).get(), 0.0);
+    }
+
+    @Test
+    public void testFailedMessagesAreSentFromOutboxOnceConnected() throws Exception {
+        Path directory = Files.createTempDirectory("omm-outbox-test");
+        Path path = directory.resolve("outbox");
+        AtomicBoolean connected = new AtomicBoolean(false);
+        List<String> sent = new ArrayList<>();
+        try (CancellationOutbox outbox = CancellationOutbox.open(path, 4096)) {
+            CancellationPublisher publisher = new CancellationPublisher(connectingProducer(connected, sent), true, 10, 0, 0, outbox);
+
+            publisher.publish(mockCancellation(1), System.currentTimeMillis(), 1);
+            // Sent after the failed one
+            publisher.publish(mockCancellation(2), System.currentTimeMillis(), 2);
+            publisher.publish(mockCancellation(1), System.currentTimeMillis(), 1);
+            publisher.flush();
+            assertEquals(List.of("1"), sent);
+            assertEquals(3, outbox.size());
+
+            connected.set(true);
+            publisher.flush();
+            assertEquals(List.of("1", "2", "1"), sent);
+            assertTrue(outbox.isEmpty());
+
+            publisher.publish(mockCancellation(3), System.currentTimeMillis(), 3);
+            publisher.flush();
+            assertEquals(List.of("1", "2", "1", "3"), sent);
+        } finally {
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * Producer whose sends fail while it is not connected, records the keys of the messages sent
+     */
+    @SuppressWarnings("unchecked")
+    private static Producer<byte[]> connectingProducer(AtomicBoolean connected, List<String> keys) {
+        TypedMessageBuilder<byte[]> builder = (TypedMessageBuilder<byte[]>) Proxy.newProxyInstance(
+                CancellationPublisherTest.class.getClassLoader(),
+                new Class[] { TypedMessageBuilder.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "key":
+                            keys.add((String) args[0]);
+                            return proxy;
+                        case "sendAsync":
+                            CompletableFuture<Object> future = new CompletableFuture<>();
+                            if (connected.get()) {
+                                future.complete(null);
+                            } else {
+                                future.completeExceptionally(new PulsarClientException("broker unavailable"));
+                            }
+                            return future;
+                        default:
+                            return proxy;
+                    }
+                });
+        return (Producer<byte[]>) Proxy.newProxyInstance(
+                CancellationPublisherTest.class.getClassLoader(),
+                new Class[] { Producer.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "newMessage": return builder;
+                        case "isConnected": return connected.get();
+                        default: return null;
+                    }
+                });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Producer<byte[]> mockProducer(List<CompletableFuture<Object>> pending) {
+        TypedMessageBuilder<byte[]> builder = (TypedMessageBuilder<byte[]>) Proxy.newProxyInstance(
+                CancellationPublisherTest.class.getClassLoader(),
+                new Class[] { TypedMessageBuilder.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "sendAsync":
+                            CompletableFuture<Object> future = new CompletableFuture<>();
+                            pending.add(future);
+                            return future;
+                        case "send":
+                            return null;
+                        default:
+                            return proxy;
+                    }
+                });
+        return (Producer<byte[]>) Proxy.newProxyInstance(
+                CancellationPublisherTest.class.getClassLoader(),
+                new Class[] { Producer.class },
+                (proxy, method, args) -> "newMessage".equals(method.getName()) ? builder : null);
+    }
+
+    private static InternalMessages.TripCancellation mockCancellation(long dvjId) throws Exception {
+        return TestHandlers.cancellation(InternalMessages.TripCancellation.Status.CANCELED, dvjId, 1).payload;
+    }
+}
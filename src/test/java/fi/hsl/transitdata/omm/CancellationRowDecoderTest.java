@@ -0,0 +1,170 @@
+package fi.hsl.transitdata.omm;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneRules;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CancellationRowDecoderTest {
+    private static final String TIMEZONE = "Europe/Helsinki";
+
+    @Test
+    public void testEpochConversionMatchesStringParsing() {
+        ZoneRules rules = ZoneId.of(TIMEZONE).getRules();
+        LocalDateTime[] times = {
+                LocalDateTime.of(2018, 11, 5, 13, 0, 0),
+                LocalDateTime.of(2018, 1, 1, 23, 59, 59, 997_000_000),
+                // Gap and overlap of daylight saving time
+                LocalDateTime.of(2019, 3, 31, 3, 30, 0),
+                LocalDateTime.of(2019, 10, 27, 3, 30, 0, 123_000_000)
+        };
+        for (LocalDateTime time : times) {
+            Timestamp timestamp = Timestamp.valueOf(time);
+            long expected = OmmCancellationHandler.toUtcEpochMs(timestamp.toString(), TIMEZONE).get();
+            assertEquals(expected, CancellationRowDecoder.toEpochMs(timestamp, rules));
+        }
+    }
+
+    @Test
+    public void testAffectedDeparturesStatus() {
+        assertFalse(CancellationRowDecoder.isDeleted("active"));
+        assertFalse(CancellationRowDecoder.isDeleted(null));
+        assertTrue(CancellationRowDecoder.isDeleted("deleted"));
+        assertTrue(CancellationRowDecoder.isDeleted("DELETED"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownAffectedDeparturesStatusIsRejected() {
+        CancellationRowDecoder.isDeleted("unknown");
+    }
+
+    @Test
+    public void testEnumLookup() {
+        assertEquals(InternalMessages.TripCancellation.DeviationCasesType.CANCEL_DEPARTURE,
+                CancellationRowDecoder.toDeviationCasesType("CANCEL_DEPARTURE"));
+        assertEquals(InternalMessages.TripCancellation.AffectedDeparturesType.CANCEL_ENTIRE_DEPARTURE,
+                CancellationRowDecoder.toAffectedDeparturesType("CANCEL_ENTIRE_DEPARTURE"));
+    }
+
+    private static CancellationRowDecoder.Row row(long dvjId, long deviationCaseId, String description) {
+        CancellationRowDecoder.Row row = new CancellationRowDecoder.Row();
+        row.deviationCaseId = deviationCaseId;
+        row.dvjId = dvjId;
+        row.routeName = "1055";
+        row.direction = 1;
+        row.operatingDay = "20181105";
+        row.startTime = "13:00:00";
+        row.affectedDeparturesStatus = "active";
+        row.deviationCasesType = "CANCEL_DEPARTURE";
+        row.affectedDeparturesType = "CANCEL_ENTIRE_DEPARTURE";
+        // New instances like from the JDBC driver
+        row.title = new String("Vuoro peruttu");
+        row.description = new String(description);
+        row.category = "OTHER_DRIVER_ERROR";
+        row.subCategory = "NO_SUB_CATEGORY";
+        row.affectedDeparturesLastModified = Timestamp.valueOf(LocalDateTime.of(2018, 11, 5, 12, 0));
+        return row;
+    }
+
+    @Test
+    public void testBulletinFieldsAreSharedWithinDeviationCase() {
+        CancellationRowDecoder decoder = new CancellationRowDecoder(ZoneId.of(TIMEZONE));
+        InternalMessages.TripCancellation first = decoder.toCancellation(row(1, 10, "Kuljettajapula")).get().payload;
+        InternalMessages.TripCancellation second = decoder.toCancellation(row(2, 10, "Kuljettajapula")).get().payload;
+        InternalMessages.TripCancellation otherCase = decoder.toCancellation(row(3, 11, "Kuljettajapula")).get().payload;
+        InternalMessages.TripCancellation edited = decoder.toCancellation(row(4, 10, "Kalustopula")).get().payload;
+
+        assertSame(first.getTitleBytes(), second.getTitleBytes());
+        assertSame(first.getDescriptionBytes(), second.getDescriptionBytes());
+        assertEquals("2", second.getTripId());
+        assertNotSame(first.getDescriptionBytes(), otherCase.getDescriptionBytes());
+        // Bulletin edited while the query was running
+        assertEquals("Kalustopula", edited.getDescription());
+        assertEquals("Kuljettajapula", second.getDescription());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownEnumIsRejected() {
+        CancellationRowDecoder.toDeviationCasesType("NOT_A_TYPE");
+    }
+
+    @Test
+    public void testDirectionIsTwelfthDigitOfGid() {
+        assertEquals(1, CancellationRowDecoder.direction(9011201000010001L));
+        assertEquals(2, CancellationRowDecoder.direction(9011201000020001L));
+        assertEquals(0, CancellationRowDecoder.direction(90112L));
+    }
+
+    @Test
+    public void testStartTime() {
+        assertEquals("00:00:00", CancellationRowDecoder.startTime(0));
+        assertEquals("07:05:00", CancellationRowDecoder.startTime(7 * 60 + 5));
+        // Trips after midnight belong to the previous operating day
+        assertEquals("25:30:00", CancellationRowDecoder.startTime(25 * 60 + 30));
+        assertEquals("50:00:00", CancellationRowDecoder.startTime(50 * 60));
+        assertEquals("99:59:00", CancellationRowDecoder.startTime(100 * 60 - 1));
+        // Hours that didn't fit in VARCHAR(2) were converted to '*' by the queries
+        assertEquals("0*:00:00", CancellationRowDecoder.startTime(100 * 60));
+        assertEquals("0*:07:00", CancellationRowDecoder.startTime(123 * 60 + 7));
+        assertEquals("-1:30:00", CancellationRowDecoder.startTime(-30));
+    }
+
+    @Test
+    public void testStartTimeMatchesQueryFormatting() {
+        for (int minutes = -48 * 60; minutes < 200 * 60; minutes++) {
+            assertEquals(Integer.toString(minutes), queryStartTime(minutes), CancellationRowDecoder.startTime(minutes));
+        }
+    }
+
+    @Test
+    public void testDirectionMatchesQueryFormatting() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // Gids of 1 to 16 digits
+            long gid = (long) (random.nextDouble() * Math.pow(10, 1 + random.nextInt(16)));
+            assertEquals(Long.toString(gid), queryDirection(gid), CancellationRowDecoder.direction(gid));
+        }
+    }
+
+    @Test
+    public void testOperatingDayMatchesQueryFormatting() {
+        for (LocalDate day = LocalDate.of(2017, 1, 1); day.getYear() < 2031; day = day.plusDays(1)) {
+            assertEquals(day.format(DateTimeFormatter.BASIC_ISO_DATE), CancellationRowDecoder.operatingDay(day));
+        }
+    }
+
+    /**
+     * START_TIME as formatted by the queries before, with RIGHT('0' + CONVERT(VARCHAR(2), ...), 2) for hours and minutes.
+     * DATEDIFF(HOUR, ...) counts hour boundaries and CONVERT gives '*' for numbers that don't fit in VARCHAR(2).
+     */
+    private static String queryStartTime(int minutes) {
+        int hours = (int) Math.floor(minutes / 60.0);
+        return right("0" + varchar2(hours), 2) + ":" + right("0" + varchar2(minutes - hours * 60), 2) + ":00";
+    }
+
+    private static String varchar2(int value) {
+        String converted = String.valueOf(value);
+        return converted.length() <= 2 ? converted : "*";
+    }
+
+    private static String right(String value, int length) {
+        return value.substring(value.length() - length);
+    }
+
+    /**
+     * DIRECTION as formatted by the queries before with CONVERT(INTEGER, SUBSTRING(CONVERT(CHAR(16), gid), 12, 1)).
+     * CHAR(16) is padded with spaces and a space converts to 0.
+     */
+    private static int queryDirection(long gid) {
+        char digit = String.format("%-16s", gid).charAt(11);
+        return digit == ' ' ? 0 : digit - '0';
+    }
+}
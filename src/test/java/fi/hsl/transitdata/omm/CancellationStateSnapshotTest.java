@@ -0,0 +1,77 @@
+package fi.hsl.transitdata.omm;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static fi.hsl.transitdata.omm.TestHandlers.cancellation;
+import static org.junit.Assert.*;
+
+public class CancellationStateSnapshotTest {
+    private Path directory;
+    private CancellationStateSnapshot snapshot;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("omm-snapshot-test");
+        snapshot = new CancellationStateSnapshot(directory.resolve("cancellations.snapshot"), CancellationSourceType.FROM_NOW);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(directory.resolve("cancellations.snapshot"));
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void testRestoredStateContinuesChangeTracking() throws Exception {
+        OmmCancellationHandler.CancellationData first = cancellation(InternalMessages.TripCancellation.Status.CANCELED, 1, 10);
+        OmmCancellationHandler.CancellationData second = cancellation(InternalMessages.TripCancellation.Status.RUNNING, 2, 10);
+        CancellationChangeTracker tracker = new CancellationChangeTracker();
+        tracker.markPublished(first);
+        tracker.markPublished(second);
+        snapshot.write(tracker, 12345);
+
+        Optional<CancellationStateSnapshot.State> state = snapshot.read();
+        assertTrue(state.isPresent());
+        assertEquals(12345, state.get().keyframeTime);
+
+        CancellationChangeTracker restored = new CancellationChangeTracker();
+        restored.restore(state.get().entries);
+        CancellationChangeTracker.Diff diff = restored.diff(Arrays.asList(first));
+        assertEquals(1, diff.unchanged.size());
+        assertEquals(1, diff.removed.size());
+        assertEquals(second.payload, diff.removed.get(0).payload);
+        assertEquals(second.timestampEpochMs, diff.removed.get(0).timestampEpochMs);
+    }
+
+    @Test
+    public void testMissingSnapshotIsEmpty() throws Exception {
+        assertFalse(snapshot.read().isPresent());
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptedSnapshotIsRejected() throws Exception {
+        CancellationChangeTracker tracker = new CancellationChangeTracker();
+        tracker.markPublished(cancellation(InternalMessages.TripCancellation.Status.CANCELED, 1, 10));
+        snapshot.write(tracker, 0);
+
+        byte[] bytes = Files.readAllBytes(snapshot.getPath());
+        bytes[bytes.length / 2] ^= 0x01;
+        Files.write(snapshot.getPath(), bytes);
+        snapshot.read();
+    }
+
+    @Test(expected = IOException.class)
+    public void testSnapshotOfOtherSourceTypeIsRejected() throws Exception {
+        snapshot.write(new CancellationChangeTracker(), 0);
+        new CancellationStateSnapshot(snapshot.getPath(), CancellationSourceType.FROM_PAST).read();
+    }
+}
@@ -0,0 +1,47 @@
+package fi.hsl.transitdata.omm;
+
+import org.junit.Test;
+
+import java.sql.Timestamp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeProbeTest {
+    private static final Timestamp MODIFIED = Timestamp.valueOf("2018-01-01 12:00:00");
+
+    @Test
+    public void testQueryIsRunOnlyWhenOmmHasChanged() {
+        ChangeProbe probe = new ChangeProbe(60);
+        ChangeProbe.Snapshot snapshot = new ChangeProbe.Snapshot(MODIFIED, 10, MODIFIED, 100);
+        assertTrue(probe.shouldQuery(snapshot, 0));
+        probe.queried(snapshot, 0);
+
+        assertFalse(probe.shouldQuery(new ChangeProbe.Snapshot(MODIFIED, 10, MODIFIED, 100), 5000));
+        assertTrue(probe.shouldQuery(new ChangeProbe.Snapshot(MODIFIED, 10, Timestamp.valueOf("2018-01-01 12:00:01"), 100), 5000));
+        // Deleted rows are noticed from the counts
+        assertTrue(probe.shouldQuery(new ChangeProbe.Snapshot(MODIFIED, 10, MODIFIED, 99), 5000));
+    }
+
+    @Test
+    public void testQueryIsRunAfterMaxStaleness() {
+        ChangeProbe probe = new ChangeProbe(60);
+        ChangeProbe.Snapshot snapshot = new ChangeProbe.Snapshot(null, 0, null, 0);
+        probe.queried(snapshot, 1000);
+
+        assertFalse(probe.shouldQuery(snapshot, 60999));
+        assertTrue(probe.shouldQuery(snapshot, 61000));
+    }
+
+    @Test
+    public void testChangesWaitForMinInterval() {
+        ChangeProbe probe = new ChangeProbe(30, 15);
+        ChangeProbe.Snapshot snapshot = new ChangeProbe.Snapshot(MODIFIED, 10, MODIFIED, 100);
+        probe.queried(snapshot, 1000);
+
+        ChangeProbe.Snapshot changed = new ChangeProbe.Snapshot(Timestamp.valueOf("2018-01-01 12:00:01"), 10, MODIFIED, 100);
+        assertFalse(probe.shouldQuery(changed, 6000));
+        assertFalse(probe.shouldQuery(changed, 15999));
+        assertTrue(probe.shouldQuery(changed, 16000));
+    }
+}
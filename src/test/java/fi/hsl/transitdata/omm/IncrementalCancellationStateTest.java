@@ -0,0 +1,64 @@
+package fi.hsl.transitdata.omm;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalCancellationStateTest {
+    private static final LocalDateTime NOW = LocalDateTime.of(2018, 1, 1, 12, 0);
+
+    @Test
+    public void testMergeReplacesAllRowsOfChangedDeviationCase() throws Exception {
+        IncrementalCancellationState state = newState();
+        state.replaceAll(Arrays.asList(
+                row(InternalMessages.TripCancellation.Status.CANCELED, 1, 10, NOW.plusHours(1)),
+                row(InternalMessages.TripCancellation.Status.CANCELED, 2, 10, NOW.plusHours(1)),
+                row(InternalMessages.TripCancellation.Status.CANCELED, 3, 20, NOW.plusHours(1))));
+        assertEquals(3, state.activeCancellations(NOW).size());
+
+        // Deviation case 10 now affects only one departure
+        state.merge(Collections.singletonList(row(InternalMessages.TripCancellation.Status.CANCELED, 1, 10, NOW.plusHours(1))));
+        List<OmmCancellationHandler.CancellationData> active = state.activeCancellations(NOW);
+        assertEquals(2, active.size());
+        assertTrue(active.stream().noneMatch(data -> data.dvjId == 2));
+    }
+
+    @Test
+    public void testExpiredCancellationsAreDropped() throws Exception {
+        IncrementalCancellationState state = newState();
+        state.replaceAll(Arrays.asList(
+                row(InternalMessages.TripCancellation.Status.CANCELED, 1, 10, NOW.plusMinutes(1)),
+                row(InternalMessages.TripCancellation.Status.CANCELED, 2, 20, NOW.plusHours(1))));
+        assertEquals(2, state.activeCancellations(NOW).size());
+        assertEquals(1, state.activeCancellations(NOW.plusMinutes(2)).size());
+
+        // Deviation case ended early
+        state.merge(Collections.singletonList(row(InternalMessages.TripCancellation.Status.CANCELED, 2, 20, NOW.minusMinutes(1))));
+        assertEquals(0, state.activeCancellations(NOW).size());
+    }
+
+    @Test
+    public void testCancellationOfCancellationWithoutValidToIsActiveUntilOperatingDayHasPassed() throws Exception {
+        IncrementalCancellationState state = newState();
+        state.replaceAll(Arrays.asList(
+                row(InternalMessages.TripCancellation.Status.RUNNING, 1, 10, null),
+                row(InternalMessages.TripCancellation.Status.CANCELED, 2, 20, null)));
+        assertEquals(1, state.activeCancellations(NOW).size());
+        assertEquals(0, state.activeCancellations(NOW.plusDays(1)).size());
+    }
+
+    private static IncrementalCancellationState newState() {
+        return new IncrementalCancellationState("Europe/Helsinki", 3600, 60);
+    }
+
+    private static IncrementalCancellationState.Row row(InternalMessages.TripCancellation.Status status, long dvjId, long deviationCaseId, LocalDateTime validTo) throws Exception {
+        return new IncrementalCancellationState.Row(TestHandlers.cancellation(status, dvjId, deviationCaseId), validTo);
+    }
+}
@@ -0,0 +1,133 @@
+package fi.hsl.transitdata.omm;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class LocalCoordinatorTest {
+    private static final String OPERATING_DAY = "20240101";
+    private static final int TRIPS = 4;
+
+    @Test
+    public void testSingleShardHasOneActiveInstance() {
+        LocalCoordinator.Group group = new LocalCoordinator.Group(1);
+        Coordinator first = group.join();
+        Coordinator second = group.join();
+
+        assertEquals(Collections.singleton(0), first.ownedShards());
+        assertTrue(second.ownedShards().isEmpty());
+
+        first.close();
+        assertEquals(Collections.singleton(0), second.ownedShards());
+    }
+
+    @Test
+    public void testShardsAreSplitBetweenInstances() {
+        LocalCoordinator.Group group = new LocalCoordinator.Group(4);
+        List<Coordinator> instances = Arrays.asList(group.join(), group.join(), group.join());
+
+        Set<Integer> all = new HashSet<>();
+        for (Coordinator instance : instances) {
+            for (int shard : instance.ownedShards()) {
+                assertTrue("Shard " + shard + " is owned twice", all.add(shard));
+            }
+        }
+        assertEquals(new HashSet<>(Arrays.asList(0, 1, 2, 3)), all);
+    }
+
+    @Test
+    public void testInstancesPublishTheirOwnTripsAndTakeOver() throws Exception {
+        LocalCoordinator.Group group = new LocalCoordinator.Group(2);
+        Instance first = new Instance(group.join());
+        Instance second = new Instance(group.join());
+        List<OmmCancellationHandler.CancellationData> cancellations = cancellations();
+
+        first.poll(cancellations);
+        second.poll(cancellations);
+        assertEquals(2, first.published.size());
+        assertEquals(2, second.published.size());
+        Set<String> all = new HashSet<>(first.published);
+        all.addAll(second.published);
+        assertEquals(4, all.size());
+
+        // Nothing is published again while the shards stay with the same instances
+        Set<String> firstShard = new HashSet<>(first.published);
+        first.published.clear();
+        second.published.clear();
+        first.poll(cancellations);
+        second.poll(cancellations);
+        assertTrue(first.published.isEmpty());
+        assertTrue(second.published.isEmpty());
+
+        // The remaining instance publishes the cancellations of the other shard on its next poll, but no removals
+        first.coordinator.close();
+        second.poll(cancellations);
+        assertEquals(firstShard, new HashSet<>(second.published));
+        second.published.clear();
+        second.poll(cancellations);
+        assertTrue(second.published.isEmpty());
+    }
+
+    @Test
+    public void testTripsAreSpreadOverShards() {
+        assertEquals(0, TripShards.shardOf(4, 2));
+        assertEquals(1, TripShards.shardOf(5, 2));
+        assertEquals(2, TripShards.shardOf(5, 3));
+        assertEquals(0, TripShards.shardOf(5, 1));
+    }
+
+    @Test
+    public void testQueryIsRestrictedToOwnedShards() {
+        String query = "SELECT DVJ.Id FROM DVJ\n    WHERE DVJ.Id > 0\n    ORDER BY DVJ.Id;";
+
+        assertEquals("SELECT DVJ.Id FROM DVJ\n    WHERE DVJ.Id > 0\n    AND DVJ.Id % 4 IN (1, 3)\n    ORDER BY DVJ.Id;",
+                new TripShards(4, new HashSet<>(Arrays.asList(3, 1))).restrict(query, "DVJ.Id"));
+        // Owning all shards needs no condition
+        assertEquals(query, new TripShards(2, new HashSet<>(Arrays.asList(0, 1))).restrict(query, "DVJ.Id"));
+        assertEquals(query, new TripShards(1, Collections.singleton(0)).restrict(query, "DVJ.Id"));
+    }
+
+    /**
+     * Same steps as OmmConnector takes on each poll, the database returning only the trips of the owned shards
+     */
+    private static class Instance {
+        final Coordinator coordinator;
+        final List<String> published = new ArrayList<>();
+        final OmmCancellationHandler handler;
+        Set<Integer> owned = null;
+        TripShards tripShards = null;
+
+        Instance(Coordinator coordinator) {
+            this.coordinator = coordinator;
+            this.handler = TestHandlers.handler(published);
+        }
+
+        void poll(List<OmmCancellationHandler.CancellationData> cancellations) throws Exception {
+            Set<Integer> shards = coordinator.ownedShards();
+            if (!shards.equals(owned)) {
+                owned = shards;
+                tripShards = new TripShards(coordinator.shardCount(), shards);
+                handler.assignShards(tripShards);
+            }
+            if (!owned.isEmpty()) {
+                List<OmmCancellationHandler.CancellationData> queried = new ArrayList<>();
+                for (OmmCancellationHandler.CancellationData data : cancellations) {
+                    if (tripShards.contains(data)) {
+                        queried.add(data);
+                    }
+                }
+                handler.handleAndSend(queried);
+            }
+        }
+    }
+
+    private static List<OmmCancellationHandler.CancellationData> cancellations() throws Exception {
+        List<OmmCancellationHandler.CancellationData> cancellations = new ArrayList<>();
+        for (int i = 0; i < TRIPS; i++) {
+            cancellations.add(TestHandlers.cancellation(i, OPERATING_DAY, "11:22:00"));
+        }
+        return cancellations;
+    }
+}
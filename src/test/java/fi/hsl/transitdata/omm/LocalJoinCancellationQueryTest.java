@@ -0,0 +1,76 @@
+package fi.hsl.transitdata.omm;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class LocalJoinCancellationQueryTest {
+    private static final LocalDateTime NOW = LocalDateTime.of(2018, 11, 5, 13, 0);
+    private static final String TODAY = "20181105";
+
+    private static LocalJoinCancellationQuery.OmmRow ommRow(long dvjId, String status, LocalDateTime validTo, LocalDateTime lastModified) {
+        final LocalJoinCancellationQuery.OmmRow ommRow = new LocalJoinCancellationQuery.OmmRow();
+        ommRow.validTo = validTo;
+        ommRow.deviationCasesLastModified = lastModified;
+        final CancellationRowDecoder.Row row = ommRow.row;
+        row.deviationCaseId = 1;
+        row.dvjId = dvjId;
+        row.affectedDeparturesStatus = status;
+        row.deviationCasesType = "CANCEL_DEPARTURE";
+        row.affectedDeparturesType = "CANCEL_ENTIRE_DEPARTURE";
+        row.title = "title";
+        row.description = "description";
+        row.category = "OTHER_DRIVER_ERROR";
+        row.subCategory = "NO_SUB_CATEGORY";
+        row.affectedDeparturesLastModified = Timestamp.valueOf(lastModified);
+        return ommRow;
+    }
+
+    @Test
+    public void testCurrentConditions() {
+        final LocalDateTime modified = NOW.minusDays(1);
+        assertTrue(ommRow(1, "active", NOW.plusHours(1), modified).matches("20181105", NOW, TODAY, null));
+        assertFalse(ommRow(1, "active", NOW, modified).matches("20181105", NOW, TODAY, null));
+        // Cancellation of cancellation without valid_to is current until the operating day has passed
+        assertTrue(ommRow(1, "deleted", null, modified).matches("20181105", NOW, TODAY, null));
+        assertFalse(ommRow(1, "deleted", null, modified).matches("20181104", NOW, TODAY, null));
+        assertFalse(ommRow(1, "active", null, modified).matches("20181106", NOW, TODAY, null));
+    }
+
+    @Test
+    public void testPastConditions() {
+        final LocalDateTime previousQuery = NOW.minusMinutes(1);
+        assertTrue(ommRow(1, "active", NOW.minusHours(1), NOW).matches("20181105", NOW, TODAY, previousQuery));
+        assertFalse(ommRow(1, "active", NOW.minusHours(1), NOW.minusHours(1)).matches("20181105", NOW, TODAY, previousQuery));
+        assertTrue(ommRow(1, "deleted", null, NOW).matches("20181104", NOW, TODAY, previousQuery));
+        assertFalse(ommRow(1, "active", null, NOW).matches("20181104", NOW, TODAY, previousQuery));
+    }
+
+    @Test
+    public void testJoinAddsTripDataAndDropsUnknownTrips() {
+        final LocalJoinCancellationQuery query = new LocalJoinCancellationQuery("", null, "Europe/Helsinki", CancellationSourceType.FROM_NOW, 30);
+        final Map<Long, TripReferenceCache.TripReference> trips = new HashMap<>();
+        trips.put(10L, new TripReferenceCache.TripReference(10L, Arrays.asList("1055", "1055 1"), 2, "20181105", "14:05:00"));
+
+        final List<OmmCancellationHandler.CancellationData> joined = query.join(
+                Arrays.asList(ommRow(10, "active", NOW.plusHours(2), NOW), ommRow(11, "active", NOW.plusHours(2), NOW)),
+                trips, NOW, null);
+
+        // One cancellation per route name like in the database join, nothing for the trip missing from ptDOI4
+        assertEquals(2, joined.size());
+        final InternalMessages.TripCancellation cancellation = joined.get(0).payload;
+        assertEquals("1055", cancellation.getRouteId());
+        assertEquals("1055 1", joined.get(1).payload.getRouteId());
+        assertEquals(2, cancellation.getDirectionId());
+        assertEquals("20181105", cancellation.getStartDate());
+        assertEquals("14:05:00", cancellation.getStartTime());
+        assertEquals("10", cancellation.getTripId());
+        assertEquals(InternalMessages.TripCancellation.Status.CANCELED, cancellation.getStatus());
+        assertEquals(10L, joined.get(0).dvjId);
+    }
+}
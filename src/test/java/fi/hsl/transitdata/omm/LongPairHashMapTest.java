@@ -0,0 +1,48 @@
+package fi.hsl.transitdata.omm;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongPairHashMapTest {
+    @Test
+    public void testPutGetAndOverwrite() {
+        LongPairHashMap<String> map = new LongPairHashMap<>();
+        assertNull(map.put(1, 2, "a"));
+        assertNull(map.put(2, 1, "b"));
+        assertEquals("a", map.put(1, 2, "c"));
+        assertEquals("c", map.get(1, 2));
+        assertEquals("b", map.get(2, 1));
+        assertNull(map.get(1, 1));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void testMatchesHashMapWithRandomOperations() {
+        LongPairHashMap<Long> map = new LongPairHashMap<>();
+        Map<String, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 100000; i++) {
+            long first = random.nextInt(500);
+            long second = random.nextInt(4);
+            String key = first + "/" + second;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(first, second));
+            } else {
+                long value = random.nextLong();
+                assertEquals(expected.put(key, value), map.put(first, second, value));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (long first = 0; first < 500; first++) {
+            for (long second = 0; second < 4; second++) {
+                assertEquals(expected.get(first + "/" + second), map.get(first, second));
+            }
+        }
+    }
+}
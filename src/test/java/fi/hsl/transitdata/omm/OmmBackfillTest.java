@@ -0,0 +1,58 @@
+package fi.hsl.transitdata.omm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class OmmBackfillTest {
+    private static final LocalDate FROM = LocalDate.of(2019, 3, 1);
+    private static final LocalDate TO = LocalDate.of(2019, 3, 31);
+
+    private Path directory;
+    private Path checkpoint;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("omm-backfill");
+        checkpoint = directory.resolve("checkpoint");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(checkpoint);
+        Files.deleteIfExists(directory);
+    }
+
+    private OmmBackfill backfill(LocalDate from, LocalDate to) {
+        return new OmmBackfill(null, null, null, "", from, to, 7, checkpoint, 1000);
+    }
+
+    @Test
+    public void testCheckpointResumesSameRange() throws IOException {
+        assertEquals(Optional.empty(), backfill(FROM, TO).readCheckpoint());
+
+        backfill(FROM, TO).writeCheckpoint(LocalDate.of(2019, 3, 8));
+        assertEquals(Optional.of(LocalDate.of(2019, 3, 8)), backfill(FROM, TO).readCheckpoint());
+        assertEquals("2019-03-01 2019-03-31 2019-03-08", new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testCheckpointOfAnotherRangeIsIgnored() throws IOException {
+        backfill(FROM, TO).writeCheckpoint(LocalDate.of(2019, 3, 8));
+        assertEquals(Optional.empty(), backfill(FROM, LocalDate.of(2019, 4, 30)).readCheckpoint());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyRangeIsRejected() {
+        backfill(TO, FROM);
+    }
+}
@@ -1,12 +1,17 @@
 package fi.hsl.transitdata.omm;
 
 import fi.hsl.common.transitdata.MockDataUtils;
-import fi.hsl.common.transitdata.PubtransFactory;
 import fi.hsl.common.transitdata.proto.InternalMessages;
 import org.junit.Test;
 
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -39,8 +44,8 @@ public class OmmCancellationHandlerTest {
         long dvjId = MockDataUtils.generateValidJoreId();
         List<OmmCancellationHandler.CancellationData> input = new LinkedList<>();
 
-        input.add(mockCancellation(InternalMessages.TripCancellation.Status.CANCELED, dvjId, 1));
-        input.add(mockCancellation(InternalMessages.TripCancellation.Status.RUNNING, dvjId, 1));
+        input.add(TestHandlers.cancellation(InternalMessages.TripCancellation.Status.CANCELED, dvjId, 1));
+        input.add(TestHandlers.cancellation(InternalMessages.TripCancellation.Status.RUNNING, dvjId, 1));
         List<OmmCancellationHandler.CancellationData> result = OmmCancellationHandler.filterDuplicates(input);
         assertEquals(1, result.size());
         assertEquals(InternalMessages.TripCancellation.Status.CANCELED, result.get(0).getPayload().getStatus());
@@ -51,8 +56,8 @@ public class OmmCancellationHandlerTest {
         long dvjId = MockDataUtils.generateValidJoreId();
         List<OmmCancellationHandler.CancellationData> input = new LinkedList<>();
 
-        input.add(mockCancellation(InternalMessages.TripCancellation.Status.RUNNING, dvjId, 1));
-        input.add(mockCancellation(InternalMessages.TripCancellation.Status.RUNNING, dvjId, 1));
+        input.add(TestHandlers.cancellation(InternalMessages.TripCancellation.Status.RUNNING, dvjId, 1));
+        input.add(TestHandlers.cancellation(InternalMessages.TripCancellation.Status.RUNNING, dvjId, 1));
         List<OmmCancellationHandler.CancellationData> result = OmmCancellationHandler.filterDuplicates(input);
         assertEquals(1, result.size());
         assertEquals(InternalMessages.TripCancellation.Status.RUNNING, result.get(0).getPayload().getStatus());
@@ -64,8 +69,8 @@ public class OmmCancellationHandlerTest {
         long secondDvjId = firstDvjId++;
         List<OmmCancellationHandler.CancellationData> input = new LinkedList<>();
 
-        input.add(mockCancellation(InternalMessages.TripCancellation.Status.RUNNING, firstDvjId, 1));
-        input.add(mockCancellation(InternalMessages.TripCancellation.Status.RUNNING, secondDvjId, 1));
+        input.add(TestHandlers.cancellation(InternalMessages.TripCancellation.Status.RUNNING, firstDvjId, 1));
+        input.add(TestHandlers.cancellation(InternalMessages.TripCancellation.Status.RUNNING, secondDvjId, 1));
         List<OmmCancellationHandler.CancellationData> result = OmmCancellationHandler.filterDuplicates(input);
         assertEquals(2, result.size());
         assertEquals(0, result.stream().filter(data -> data.getPayload().getStatus() == InternalMessages.TripCancellation.Status.CANCELED).count());
@@ -78,28 +83,73 @@ public class OmmCancellationHandlerTest {
         long secondDvjId = firstDvjId++;
         List<OmmCancellationHandler.CancellationData> input = new LinkedList<>();
 
-        input.add(mockCancellation(InternalMessages.TripCancellation.Status.CANCELED, firstDvjId, 1));
-        input.add(mockCancellation(InternalMessages.TripCancellation.Status.RUNNING, secondDvjId, 1));
+        input.add(TestHandlers.cancellation(InternalMessages.TripCancellation.Status.CANCELED, firstDvjId, 1));
+        input.add(TestHandlers.cancellation(InternalMessages.TripCancellation.Status.RUNNING, secondDvjId, 1));
         List<OmmCancellationHandler.CancellationData> result = OmmCancellationHandler.filterDuplicates(input);
         assertEquals(2, result.size());
         assertEquals(1, result.stream().filter(data -> data.getPayload().getStatus() == InternalMessages.TripCancellation.Status.CANCELED).count());
         assertEquals(1, result.stream().filter(data -> data.getPayload().getStatus() == InternalMessages.TripCancellation.Status.RUNNING).count());
     }
 
+    @Test
+    public void testRemovalsArePublishedOnlyForDeparturesNotLeft() throws Exception {
+        List<String> published = new ArrayList<>();
+        OmmCancellationHandler handler = TestHandlers.handler(published);
+        LocalDateTime now = LocalDateTime.now(ZoneId.of(TestHandlers.TIMEZONE));
+
+        handler.handleAndSend(new ArrayList<>(Arrays.asList(
+                TestHandlers.cancellation(1, now.minusHours(2)),
+                TestHandlers.cancellation(2, now.plusHours(2)))));
+        assertEquals(Arrays.asList("1", "2"), published);
+
+        // Both disappear, but the first one has expired because its departure has left
+        published.clear();
+        handler.handleAndSend(new ArrayList<>());
+        assertEquals(Collections.singletonList("2"), published);
+    }
 
-    private OmmCancellationHandler.CancellationData mockCancellation(InternalMessages.TripCancellation.Status status) throws Exception {
-        long dvjId = MockDataUtils.generateValidJoreId();
-        return mockCancellation(status, dvjId, 1);
+    @Test
+    public void testInitialLoadAfterRestartIsNotCountedAsSloBreaches() throws Exception {
+        Map<String, Object> settings = TestHandlers.settings();
+        settings.put("omm.freshness.slo", 60);
+        LocalDateTime departure = LocalDateTime.now(ZoneId.of(TestHandlers.TIMEZONE)).plusHours(2);
+        long now = System.currentTimeMillis();
+        String type = "CANCEL_DEPARTURE";
+        double breachesBefore = OmmMetrics.FRESHNESS_SLO_BREACHES.labels(type).get();
+
+        OmmCancellationHandler handler = TestHandlers.handler(new ArrayList<>(), settings);
+        handler.handleAndSend(new ArrayList<>(Collections.singletonList(modifiedAt(1, departure, now - 86_400_000))));
+        handler.close();
+
+        // After a restart all active cancellations are published again, but they were modified days ago
+        List<String> published = new ArrayList<>();
+        OmmCancellationHandler restarted = TestHandlers.handler(published, settings);
+        restarted.queryStarted(now - 300_000);
+        restarted.handleAndSend(new ArrayList<>(Arrays.asList(
+                modifiedAt(1, departure, now - 86_400_000),
+                modifiedAt(2, departure, now - 3 * 86_400_000))));
+        assertEquals(Arrays.asList("1", "2"), published);
+        assertEquals(breachesBefore, OmmMetrics.FRESHNESS_SLO_BREACHES.labels(type).get(), 0.0);
+
+        // A cancellation modified since the previous query is new and late
+        restarted.handleAndSend(new ArrayList<>(Arrays.asList(
+                modifiedAt(1, departure, now - 86_400_000),
+                modifiedAt(2, departure, now - 3 * 86_400_000),
+                modifiedAt(3, departure, now - 120_000))));
+        assertEquals(breachesBefore + 1, OmmMetrics.FRESHNESS_SLO_BREACHES.labels(type).get(), 0.0);
     }
 
-    private OmmCancellationHandler.CancellationData mockCancellation(InternalMessages.TripCancellation.Status status, long dvjId, long deviationCaseId) throws Exception {
-        InternalMessages.TripCancellation cancellation = MockDataUtils.mockTripCancellation(dvjId,
-                "7575",
-                PubtransFactory.JORE_DIRECTION_ID_INBOUND,
-                "20180101",
-                "11:22:00",
-                status);
-        return new OmmCancellationHandler.CancellationData(cancellation, System.currentTimeMillis(), Long.toString(dvjId), deviationCaseId);
+    private static OmmCancellationHandler.CancellationData modifiedAt(long dvjId, LocalDateTime departure, long lastModified) throws Exception {
+        OmmCancellationHandler.CancellationData data = TestHandlers.cancellation(dvjId, departure);
+        InternalMessages.TripCancellation payload = data.payload.toBuilder()
+                .setDeviationCasesType(InternalMessages.TripCancellation.DeviationCasesType.CANCEL_DEPARTURE)
+                .build();
+        return new OmmCancellationHandler.CancellationData(payload, lastModified, dvjId, data.deviationCaseId);
+    }
+
+    private OmmCancellationHandler.CancellationData mockCancellation(InternalMessages.TripCancellation.Status status) throws Exception {
+        long dvjId = MockDataUtils.generateValidJoreId();
+        return TestHandlers.cancellation(status, dvjId, 1);
     }
 
 }
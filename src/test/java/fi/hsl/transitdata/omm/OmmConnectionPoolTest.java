@@ -0,0 +1,87 @@
+package fi.hsl.transitdata.omm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+
+public class OmmConnectionPoolTest {
+    private static final String H2_CONNECTION_STRING = "jdbc:h2:mem:omm-pool-test;DB_CLOSE_DELAY=-1";
+    private static final String QUERY = "SELECT 1";
+
+    private OmmConnectionPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new OmmConnectionPool(H2_CONNECTION_STRING, 2, 1, 1000, 60000);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void testStatementsAreReusedAcrossBorrows() throws Exception {
+        PreparedStatement first;
+        try (OmmConnectionPool.PooledConnection connection = pool.borrow()) {
+            first = connection.prepare(QUERY);
+            assertEquals(1, queryInt(first));
+        }
+        try (OmmConnectionPool.PooledConnection connection = pool.borrow()) {
+            PreparedStatement second = connection.prepare(QUERY);
+            assertSame(first, second);
+            assertEquals(1, queryInt(second));
+        }
+    }
+
+    @Test
+    public void testBrokenConnectionIsReplaced() throws Exception {
+        try (OmmConnectionPool.PooledConnection connection = pool.borrow()) {
+            connection.getConnection().close();
+        }
+        try (OmmConnectionPool.PooledConnection connection = pool.borrow()) {
+            assertFalse(connection.getConnection().isClosed());
+            assertEquals(1, queryInt(connection.prepare(QUERY)));
+        }
+    }
+
+    @Test
+    public void testReconnectBacksOffAfterFailure() {
+        try (OmmConnectionPool failingPool = new OmmConnectionPool("jdbc:nonexistent:omm", 1, 1, 60000, 60000)) {
+            try {
+                failingPool.borrow();
+                fail("Expected connecting to fail");
+            } catch (SQLException e) {
+                assertFalse(e.getMessage().startsWith("Not reconnecting"));
+            }
+            try {
+                failingPool.borrow();
+                fail("Expected pool to be backing off");
+            } catch (SQLException e) {
+                assertTrue(e.getMessage().startsWith("Not reconnecting"));
+            }
+        }
+    }
+
+    @Test
+    public void testBackoffIsExponentialAndCapped() {
+        assertEquals(1000, OmmConnectionPool.backoffMs(1, 1000, 60000));
+        assertEquals(2000, OmmConnectionPool.backoffMs(2, 1000, 60000));
+        assertEquals(8000, OmmConnectionPool.backoffMs(4, 1000, 60000));
+        assertEquals(60000, OmmConnectionPool.backoffMs(10, 1000, 60000));
+        assertEquals(60000, OmmConnectionPool.backoffMs(1000, 1000, 60000));
+    }
+
+    private static int queryInt(PreparedStatement statement) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) {
+            assertTrue(resultSet.next());
+            return resultSet.getInt(1);
+        }
+    }
+}
@@ -1,10 +1,20 @@
 package fi.hsl.transitdata.omm;
 
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class OmmConnectorTest {
     @Test
@@ -16,4 +26,77 @@ public class OmmConnectorTest {
         assertEquals(OmmConnector.localDatetimeAsString(Instant.ofEpochSecond(1514843999), "Europe/Helsinki"), "2018-01-01 23:59:59");
 
     }
+
+    @Test
+    public void testProbeMaxStalenessIsAtMostThePollInterval() {
+        Map<String, Object> values = new HashMap<>();
+        values.put("omm.interval", 30);
+        values.put("omm.probe.maxStaleness", 60);
+        assertEquals(30, OmmConnector.probeMaxStaleness(ConfigFactory.parseMap(values)));
+        values.put("omm.probe.maxStaleness", 20);
+        assertEquals(20, OmmConnector.probeMaxStaleness(ConfigFactory.parseMap(values)));
+    }
+
+    @Test
+    public void testProbeMinIntervalIsAtMostTheMaxStaleness() {
+        Map<String, Object> values = new HashMap<>();
+        values.put("omm.interval", 30);
+        values.put("omm.probe.maxStaleness", 30);
+        values.put("omm.probe.minInterval", 45);
+        assertEquals(30, OmmConnector.probeMinInterval(ConfigFactory.parseMap(values)));
+        values.put("omm.probe.minInterval", 15);
+        assertEquals(15, OmmConnector.probeMinInterval(ConfigFactory.parseMap(values)));
+    }
+
+    @Test
+    public void testNowAndPastHandlersDontUseThePipeline() {
+        Map<String, Object> values = TestHandlers.settings();
+        values.put("omm.pipeline.enabled", true);
+        values.put("omm.changeTracking.snapshotFile", "/tmp/snapshot");
+        Config config = ConfigFactory.parseMap(values);
+
+        assertFalse(OmmConnector.nowAndPastHandlerConfig(config).getBoolean("omm.pipeline.enabled"));
+        Config pastConfig = OmmConnector.pastHandlerConfig(config);
+        assertFalse(pastConfig.getBoolean("omm.pipeline.enabled"));
+        assertEquals("/tmp/snapshot.past", pastConfig.getString("omm.changeTracking.snapshotFile"));
+    }
+
+    @Test
+    public void testPastCancellationsAreQueriedFromBeforeATakeover() {
+        Instant now = Instant.ofEpochSecond(1_700_000_000);
+        Instant lookback = now.minusSeconds(900);
+        // Standing by or starting up
+        assertEquals(lookback, OmmConnector.queryTimeAfterTakeover(null, now, 900));
+        // The shards owned before were queried recently
+        assertEquals(lookback, OmmConnector.queryTimeAfterTakeover(now.minusSeconds(30), now, 900));
+        // Queries have failed for longer than the lookback, the modifications since the last query are still needed
+        assertEquals(now.minusSeconds(3600), OmmConnector.queryTimeAfterTakeover(now.minusSeconds(3600), now, 900));
+    }
+
+    @Test
+    public void testNowAndPastQueryMatchesSeparateQueries() throws IOException {
+        String now = normalize(readResource("/cancellations_current_future.sql"));
+        String past = normalize(readResource("/cancellations_past_current_future.sql"));
+        String nowAndPast = normalize(readResource("/cancellations_now_and_past.sql"));
+
+        String nowCondition = "(DC.valid_to > ? OR (DC.valid_to IS NULL AND AD.[status] = 'deleted' AND DVJ.OperatingDayDate >= ?))";
+        assertTrue(now.contains("AND " + nowCondition));
+        String isCurrent = " /*1 IF THE ROW IS ALSO RETURNED BY cancellations_current_future.sql*/ ,CASE WHEN " + nowCondition + " THEN 1 ELSE 0 END AS IS_CURRENT";
+        assertTrue(nowAndPast.contains(isCurrent));
+
+        String withoutIsCurrent = nowAndPast.replace(isCurrent, "").replaceFirst("^/\\*[^*]*\\*/ ", "");
+        assertEquals(past, withoutIsCurrent);
+    }
+
+    private static String normalize(String sql) {
+        return sql.trim().replaceAll("\\s+", " ");
+    }
+
+    private static String readResource(String name) throws IOException {
+        try (InputStream stream = OmmConnectorTest.class.getResourceAsStream(name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            stream.transferTo(out);
+            return out.toString(StandardCharsets.UTF_8);
+        }
+    }
 }
@@ -0,0 +1,105 @@
+package fi.hsl.transitdata.omm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs cancellations_omm_only.sql against the OMM tables in H2
+ */
+public class OmmOnlyQueryTest {
+    private static final LocalDateTime NOW = LocalDateTime.of(2024, 3, 5, 13, 0);
+
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        connection = OmmTestDatabase.connect("omm-only-query-test");
+        OmmTestDatabase.createOmmTables(connection);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        OmmTestDatabase.dropTables(connection);
+        connection.close();
+    }
+
+    @Test
+    public void testOldCancellationsOfCancellationsAreNotQueried() throws Exception {
+        insert(1, 101, null, "deleted", NOW.minusYears(3));
+        insert(2, 102, null, "deleted", NOW.minusDays(1));
+        insert(3, 103, NOW.plusHours(1), "active", NOW.minusYears(3));
+        insert(4, 104, NOW.minusHours(1), "active", NOW.minusDays(1));
+
+        assertEquals(List.of(102L, 103L), query(CancellationSourceType.FROM_NOW, null));
+    }
+
+    @Test
+    public void testOldCancellationsOfCancellationsModifiedSinceThePreviousQueryAreQueried() throws Exception {
+        insert(1, 101, null, "deleted", NOW.minusYears(3));
+        insert(2, 102, NOW.minusHours(1), "active", NOW.minusSeconds(10));
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("UPDATE OMM_DBO.deviation_cases SET last_modified = TIMESTAMP '2024-03-05 12:59:50' WHERE deviation_case_id = 1");
+        }
+
+        assertEquals(List.of(101L, 102L), query(CancellationSourceType.FROM_PAST, NOW.minusMinutes(1)));
+    }
+
+    @Test
+    public void testCancellationsOfCancellationsDeletedWithinTheLookbackAreQueried() throws Exception {
+        insert(1, 101, null, "deleted", NOW.minusYears(3));
+        insert(2, 102, null, "deleted", NOW.minusYears(3));
+        insert(3, 103, null, "deleted", NOW.minusYears(3));
+        try (Statement statement = connection.createStatement()) {
+            // Deleting the departure modifies only the affected departure, the lookback starts at midnight 30 days ago
+            statement.execute("UPDATE OMM_DBO.affected_departures SET last_modified = TIMESTAMP '2024-02-04 00:00:00' WHERE deviation_case_id = 1");
+            statement.execute("UPDATE OMM_DBO.affected_departures SET last_modified = TIMESTAMP '2024-02-03 23:59:59' WHERE deviation_case_id = 2");
+            statement.execute("UPDATE OMM_DBO.deviation_cases SET last_modified = TIMESTAMP '2024-02-20 10:00:00' WHERE deviation_case_id = 3");
+        }
+
+        // A modification of the deviation case counts only since the previous query
+        assertEquals(List.of(101L), query(CancellationSourceType.FROM_NOW, null));
+        assertEquals(List.of(101L, 103L), query(CancellationSourceType.FROM_PAST, LocalDateTime.of(2024, 2, 20, 9, 0)));
+    }
+
+    @Test
+    public void testQueryIsRestrictedToOwnedShards() throws Exception {
+        for (int i = 1; i <= 4; i++) {
+            insert(i, 100 + i, NOW.plusHours(1), "active", NOW.minusDays(1));
+        }
+
+        TripShards shards = new TripShards(2, Set.of(1));
+        assertEquals(List.of(101L, 103L), query(CancellationSourceType.FROM_NOW, null, shards));
+    }
+
+    private void insert(long deviationCaseId, long departureId, LocalDateTime validTo, String status, LocalDateTime lastModified) throws SQLException {
+        OmmTestDatabase.insertCancellation(connection, deviationCaseId, departureId, validTo, status, lastModified);
+    }
+
+    private List<Long> query(CancellationSourceType sourceType, LocalDateTime modifiedSince) throws Exception {
+        return query(sourceType, modifiedSince, new TripShards(1, Set.of(0)));
+    }
+
+    private List<Long> query(CancellationSourceType sourceType, LocalDateTime modifiedSince, TripShards shards) throws Exception {
+        LocalJoinCancellationQuery query = new LocalJoinCancellationQuery("", null, "Europe/Helsinki", sourceType, 30);
+        List<Long> dvjIds = new ArrayList<>();
+        String sql = shards.restrict(OmmTestDatabase.readQuery("/cancellations_omm_only.sql"), "AD.departure_id");
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            query.bind(statement, NOW, modifiedSince);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    dvjIds.add(resultSet.getLong("DVJ_ID"));
+                }
+            }
+        }
+        return dvjIds;
+    }
+}
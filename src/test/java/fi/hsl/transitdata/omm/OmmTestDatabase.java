@@ -0,0 +1,130 @@
+package fi.hsl.transitdata.omm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Tables of the OMM and ptDOI4 databases in H2 for running the queries. H2 has a single catalog, so the tables of
+ * each database are in schemas of their own.
+ */
+final class OmmTestDatabase {
+    private OmmTestDatabase() {}
+
+    static Connection connect(String name) throws SQLException {
+        return DriverManager.getConnection("jdbc:h2:mem:" + name + ";MODE=MSSQLServer;CASE_INSENSITIVE_IDENTIFIERS=TRUE;DB_CLOSE_DELAY=-1");
+    }
+
+    static void createOmmTables(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE SCHEMA OMM_DBO");
+            statement.execute("CREATE TABLE OMM_DBO.deviation_cases (deviation_case_id BIGINT PRIMARY KEY, bulletin_id BIGINT, " +
+                    "valid_to DATETIME, type VARCHAR(64), last_modified DATETIME)");
+            statement.execute("CREATE TABLE OMM_DBO.affected_departures (deviation_case_id BIGINT, departure_id BIGINT, " +
+                    "status VARCHAR(16), type VARCHAR(64), last_modified DATETIME)");
+            statement.execute("CREATE TABLE OMM_DBO.bulletins (bulletins_id BIGINT PRIMARY KEY, category VARCHAR(64), sub_category VARCHAR(64))");
+            statement.execute("CREATE TABLE OMM_DBO.bulletin_localized_messages (bulletins_id BIGINT, language_code VARCHAR(8), " +
+                    "title VARCHAR(256), description VARCHAR(4000))");
+        }
+    }
+
+    /**
+     * Creates the trip tables with a single route, whose trips are added with {@link #insertTrip}
+     */
+    static void createTripTables(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE SCHEMA PT_DBO");
+            statement.execute("CREATE SCHEMA PT_T");
+            statement.execute("CREATE TABLE PT_DBO.DatedVehicleJourney (Id BIGINT PRIMARY KEY, IsBasedOnVehicleJourneyId BIGINT, " +
+                    "IsBasedOnVehicleJourneyTemplateId BIGINT, OperatingDayDate DATE, PlannedStartOffsetDateTime DATETIME, IsReplacedById BIGINT)");
+            statement.execute("CREATE TABLE PT_DBO.VehicleJourney (Id BIGINT PRIMARY KEY)");
+            statement.execute("CREATE TABLE PT_DBO.VehicleJourneyTemplate (Id BIGINT PRIMARY KEY, IsWorkedOnDirectionOfLineGid BIGINT)");
+            statement.execute("CREATE TABLE PT_T.KeyVariantValue (IsForObjectId BIGINT, IsOfKeyVariantTypeId BIGINT, StringValue VARCHAR(64))");
+            statement.execute("CREATE TABLE PT_DBO.KeyVariantType (Id BIGINT PRIMARY KEY, IsForKeyTypeId BIGINT)");
+            statement.execute("CREATE TABLE PT_DBO.KeyType (Id BIGINT PRIMARY KEY, Name VARCHAR(64), ExtendsObjectTypeNumber INT)");
+            statement.execute("CREATE TABLE PT_DBO.ObjectType (Number INT PRIMARY KEY, Name VARCHAR(64))");
+            statement.execute("INSERT INTO PT_DBO.VehicleJourney VALUES (1)");
+            statement.execute("INSERT INTO PT_DBO.VehicleJourneyTemplate VALUES (1, 9011201000010001)");
+            statement.execute("INSERT INTO PT_T.KeyVariantValue VALUES (1, 1, '7575')");
+            statement.execute("INSERT INTO PT_DBO.KeyVariantType VALUES (1, 1)");
+            statement.execute("INSERT INTO PT_DBO.KeyType VALUES (1, 'JoreRouteIdentity', 1)");
+            statement.execute("INSERT INTO PT_DBO.ObjectType VALUES (1, 'VehicleJourney')");
+        }
+    }
+
+    static void dropTables(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP SCHEMA IF EXISTS OMM_DBO CASCADE");
+            statement.execute("DROP SCHEMA IF EXISTS PT_DBO CASCADE");
+            statement.execute("DROP SCHEMA IF EXISTS PT_T CASCADE");
+        }
+    }
+
+    /**
+     * Inserts a trip of the route starting at 11:22
+     */
+    static void insertTrip(Connection connection, long dvjId, LocalDate operatingDay) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("INSERT INTO PT_DBO.DatedVehicleJourney " +
+                "VALUES (?, 1, 1, ?, TIMESTAMP '1900-01-01 11:22:00', NULL)")) {
+            statement.setLong(1, dvjId);
+            statement.setDate(2, Date.valueOf(operatingDay));
+            statement.execute();
+        }
+    }
+
+    /**
+     * Inserts a cancellation of a single departure, with a bulletin of its own
+     */
+    static void insertCancellation(Connection connection, long deviationCaseId, long departureId, LocalDateTime validTo,
+                                   String status, LocalDateTime lastModified) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("INSERT INTO OMM_DBO.deviation_cases VALUES (?, ?, ?, 'CANCEL_DEPARTURE', ?)")) {
+            statement.setLong(1, deviationCaseId);
+            statement.setLong(2, deviationCaseId);
+            statement.setTimestamp(3, validTo != null ? Timestamp.valueOf(validTo) : null);
+            statement.setTimestamp(4, Timestamp.valueOf(lastModified));
+            statement.execute();
+        }
+        try (PreparedStatement statement = connection.prepareStatement("INSERT INTO OMM_DBO.affected_departures VALUES (?, ?, ?, 'CANCEL_ENTIRE_DEPARTURE', ?)")) {
+            statement.setLong(1, deviationCaseId);
+            statement.setLong(2, departureId);
+            statement.setString(3, status);
+            statement.setTimestamp(4, Timestamp.valueOf(lastModified));
+            statement.execute();
+        }
+        try (PreparedStatement statement = connection.prepareStatement("INSERT INTO OMM_DBO.bulletins VALUES (?, 'OTHER_DRIVER_ERROR', 'NO_SUB_CATEGORY')")) {
+            statement.setLong(1, deviationCaseId);
+            statement.execute();
+        }
+        try (PreparedStatement statement = connection.prepareStatement("INSERT INTO OMM_DBO.bulletin_localized_messages VALUES (?, 'fi', 'title', 'description')")) {
+            statement.setLong(1, deviationCaseId);
+            statement.execute();
+        }
+    }
+
+    /**
+     * @return Query from the resources with the database names replaced by the schemas in H2
+     */
+    static String readQuery(String name) throws IOException {
+        try (InputStream stream = OmmTestDatabase.class.getResourceAsStream(name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            stream.transferTo(out);
+            return toH2(out.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String toH2(String sql) {
+        String rewritten = sql.trim();
+        if (rewritten.endsWith(";")) {
+            rewritten = rewritten.substring(0, rewritten.length() - 1);
+        }
+        return rewritten
+                .replace("[OMM_Community].[dbo].", "OMM_DBO.")
+                .replace("OMM_Community.dbo.", "OMM_DBO.")
+                .replace("ptDOI4_Community.dbo.", "PT_DBO.")
+                .replace("ptDOI4_Community.T.", "PT_T.");
+    }
+}
@@ -0,0 +1,61 @@
+package fi.hsl.transitdata.omm;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PartitionedQueryTest {
+    private static OmmCancellationHandler.CancellationData data(long dvjId, long deviationCaseId, long timestamp) {
+        InternalMessages.TripCancellation cancellation = InternalMessages.TripCancellation.newBuilder()
+                .setTripId(Long.toString(dvjId))
+                .setDeviationCaseId(deviationCaseId)
+                .build();
+        return new OmmCancellationHandler.CancellationData(cancellation, timestamp, dvjId, deviationCaseId);
+    }
+
+    @Test
+    public void testPartitionConditionIsAddedBeforeOrderBy() {
+        String query = "SELECT * FROM deviation_cases AS DC\n    WHERE DC.valid_to > ?\n    ORDER BY DC.deviation_case_id;";
+        assertEquals("SELECT * FROM deviation_cases AS DC\n    WHERE DC.valid_to > ?\n    AND DC.deviation_case_id % 4 = 3\n    ORDER BY DC.deviation_case_id;",
+                PartitionedQuery.partitionQuery(query, 4, 3));
+    }
+
+    @Test
+    public void testMergeMatchesSingleQuery() {
+        // Rows ordered like the query, including duplicates of the same departure and deviation case
+        List<OmmCancellationHandler.CancellationData> single = new ArrayList<>();
+        Random random = new Random(1);
+        for (long dvjId = 1; dvjId <= 200; dvjId++) {
+            long deviationCaseId = 1 + random.nextInt(5);
+            for (int duplicates = random.nextInt(3); duplicates >= 0; duplicates--) {
+                single.add(data(dvjId, deviationCaseId, random.nextInt(1000)));
+            }
+            if (random.nextBoolean()) {
+                single.add(data(dvjId, deviationCaseId + 5, random.nextInt(1000)));
+            }
+        }
+
+        int partitions = 3;
+        List<List<OmmCancellationHandler.CancellationData>> partitioned = new ArrayList<>();
+        for (int i = 0; i < partitions; i++) {
+            partitioned.add(new ArrayList<>());
+        }
+        for (OmmCancellationHandler.CancellationData data : single) {
+            partitioned.get((int) (data.deviationCaseId % partitions)).add(data);
+        }
+
+        List<OmmCancellationHandler.CancellationData> merged = PartitionedQuery.merge(partitioned);
+        assertEquals(single.size(), merged.size());
+        for (int i = 0; i < single.size(); i++) {
+            assertSame(single.get(i), merged.get(i));
+        }
+    }
+
+    @Test
+    public void testMergeEmptyPartitions() {
+        assertTrue(PartitionedQuery.merge(Arrays.asList(Collections.emptyList(), Collections.emptyList())).isEmpty());
+    }
+}
@@ -0,0 +1,134 @@
+package fi.hsl.transitdata.omm;
+
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static fi.hsl.transitdata.omm.TestHandlers.cancellation;
+import static org.junit.Assert.*;
+
+public class PublishingOrderTest {
+    private static final ZoneId ZONE = ZoneId.of(TestHandlers.TIMEZONE);
+
+    @Test
+    public void testSecondsOfDay() {
+        assertEquals(0, DepartureTimes.secondsOfDay("00:00:00"));
+        assertEquals(11 * 3600 + 22 * 60 + 33, DepartureTimes.secondsOfDay("11:22:33"));
+        assertEquals(25 * 3600 + 10 * 60 + 5, DepartureTimes.secondsOfDay("25:10:05"));
+    }
+
+    @Test
+    public void testSecondsOfDayOfUnparseableTime() {
+        // The queries format start times over 99 hours as 0*
+        assertEquals(-1, DepartureTimes.secondsOfDay("0*:05:00"));
+        assertEquals(-1, DepartureTimes.secondsOfDay("-1:55:00"));
+        assertEquals(-1, DepartureTimes.secondsOfDay("11:22"));
+        assertEquals(-1, DepartureTimes.secondsOfDay(""));
+    }
+
+    @Test
+    public void testDepartureTimePastMidnight() throws Exception {
+        PublishingOrder order = new PublishingOrder(ZONE, 3600, 0);
+        long expected = LocalDateTime.of(2024, 1, 2, 1, 10).atZone(ZONE).toInstant().toEpochMilli();
+        assertEquals(expected, order.departureTime(cancellation(1, "20240101", "25:10:00")));
+    }
+
+    @Test
+    public void testNextDeparturesAreFirstAndDepartedOnesAfterThem() throws Exception {
+        LocalDateTime now = LocalDateTime.of(2024, 1, 1, 12, 0);
+        List<OmmCancellationHandler.CancellationData> cancellations = new ArrayList<>(Arrays.asList(
+                cancellation(1, "20240108", "12:00:00"),
+                cancellation(2, "20240101", "12:30:00"),
+                cancellation(3, "20240101", "11:50:00"),
+                cancellation(4, "20240101", "12:02:00"),
+                cancellation(2, "20240101", "12:30:00")));
+
+        new PublishingOrder(ZONE, 3600, 0).sort(cancellations, epochMs(now));
+
+        assertEquals(Arrays.asList(4L, 2L, 2L, 3L, 1L), dvjIds(cancellations));
+    }
+
+    @Test
+    public void testUnknownDepartureTimeIsFirstAndWithinHorizon() throws Exception {
+        LocalDateTime now = LocalDateTime.of(2024, 1, 1, 12, 0);
+        List<OmmCancellationHandler.CancellationData> cancellations = new ArrayList<>(Arrays.asList(
+                cancellation(1, "20240101", "12:10:00"),
+                cancellation(2, "20240101", "0*:05:00"),
+                cancellation(3, "20240108", "12:00:00")));
+        PublishingOrder order = new PublishingOrder(ZONE, 3600, 1);
+        order.sort(cancellations, epochMs(now));
+
+        assertEquals(Arrays.asList(2L, 1L, 3L), dvjIds(cancellations));
+        assertEquals(DepartureTimes.UNKNOWN, order.departureTime(cancellations.get(0)));
+        assertTrue(order.isWithinHorizon(cancellations.get(0), epochMs(now)));
+    }
+
+    @Test
+    public void testCancellationWithUnknownDepartureTimeIsPublishedAndRemoved() throws Exception {
+        List<String> published = new ArrayList<>();
+        Map<String, Object> settings = TestHandlers.settings();
+        settings.put("omm.priority.enabled", true);
+        settings.put("omm.priority.horizon", 3600);
+        settings.put("omm.priority.maxBeyondHorizon", 1);
+        OmmCancellationHandler handler = TestHandlers.handler(published, settings);
+
+        handler.handleAndSend(new ArrayList<>(Collections.singletonList(cancellation(1, "20240101", "0*:05:00"))));
+        // Not departed, so the disappeared cancellation is sent as running
+        handler.handleAndSend(new ArrayList<>());
+
+        assertEquals(Arrays.asList("1", "1"), published);
+    }
+
+    @Test
+    public void testOnlyClosestDeparturesBeyondHorizonAreSelected() throws Exception {
+        LocalDateTime now = LocalDateTime.of(2024, 1, 1, 12, 0);
+        List<OmmCancellationHandler.CancellationData> cancellations = new ArrayList<>(Arrays.asList(
+                cancellation(1, "20240101", "12:10:00"),
+                cancellation(2, "20240101", "15:00:00"),
+                cancellation(2, "20240101", "15:00:00"),
+                cancellation(3, "20240101", "16:00:00"),
+                cancellation(4, "20231231", "10:00:00")));
+        PublishingOrder order = new PublishingOrder(ZONE, 3600, 1);
+        order.sort(cancellations, epochMs(now));
+
+        // Departed trips are before those beyond the horizon, and both messages of the first trip beyond it are selected
+        assertEquals(Arrays.asList(1L, 4L, 2L, 2L), dvjIds(order.select(cancellations, epochMs(now))));
+    }
+
+    @Test
+    public void testDeferredCancellationsArePublishedOnLaterPolls() throws Exception {
+        List<String> published = new ArrayList<>();
+        Map<String, Object> settings = TestHandlers.settings();
+        settings.put("omm.priority.enabled", true);
+        settings.put("omm.priority.horizon", 3600);
+        settings.put("omm.priority.maxBeyondHorizon", 1);
+        OmmCancellationHandler handler = TestHandlers.handler(published, settings);
+        LocalDateTime now = LocalDateTime.now(ZONE);
+        List<OmmCancellationHandler.CancellationData> cancellations = Arrays.asList(
+                cancellation(1, now.plusDays(2)),
+                cancellation(2, now.plusDays(3)),
+                cancellation(3, now.plusMinutes(5)));
+
+        handler.handleAndSend(new ArrayList<>(cancellations));
+        assertEquals(Arrays.asList("3", "1"), published);
+
+        published.clear();
+        handler.handleAndSend(new ArrayList<>(cancellations));
+        assertEquals(Collections.singletonList("2"), published);
+
+        published.clear();
+        handler.handleAndSend(new ArrayList<>(cancellations));
+        assertTrue(published.isEmpty());
+    }
+
+    private static long epochMs(LocalDateTime time) {
+        return time.atZone(ZONE).toInstant().toEpochMilli();
+    }
+
+    private static List<Long> dvjIds(List<OmmCancellationHandler.CancellationData> cancellations) {
+        return cancellations.stream().map(data -> data.dvjId).collect(Collectors.toList());
+    }
+}
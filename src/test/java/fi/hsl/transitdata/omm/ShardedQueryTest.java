@@ -0,0 +1,105 @@
+package fi.hsl.transitdata.omm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the cancellation queries restricted to the owned shards against the OMM and trip tables in H2
+ */
+public class ShardedQueryTest {
+    private static final String TIMEZONE = TestHandlers.TIMEZONE;
+    private static final LocalDateTime NOW = LocalDateTime.of(2024, 3, 5, 13, 0);
+    private static final Instant NOW_INSTANT = NOW.atZone(ZoneId.of(TIMEZONE)).toInstant();
+    private static final TripShards ALL_SHARDS = new TripShards(1, Set.of(0));
+    private static final TripShards ODD_SHARD = new TripShards(2, Set.of(1));
+
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        connection = OmmTestDatabase.connect("sharded-query-test");
+        OmmTestDatabase.createOmmTables(connection);
+        OmmTestDatabase.createTripTables(connection);
+        for (int dvjId = 1; dvjId <= 6; dvjId++) {
+            OmmTestDatabase.insertTrip(connection, dvjId, NOW.toLocalDate());
+        }
+        // Trips 1-4 are cancelled, the cancellations of trips 5 and 6 have expired after the previous query
+        for (int dvjId = 1; dvjId <= 4; dvjId++) {
+            OmmTestDatabase.insertCancellation(connection, 10 + dvjId, dvjId, NOW.plusHours(1), "active", NOW.minusDays(1));
+        }
+        OmmTestDatabase.insertCancellation(connection, 15, 5, NOW.minusHours(1), "active", NOW.minusMinutes(1));
+        OmmTestDatabase.insertCancellation(connection, 16, 6, NOW.minusHours(1), "active", NOW.minusMinutes(1));
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        OmmTestDatabase.dropTables(connection);
+        connection.close();
+    }
+
+    @Test
+    public void testFullQueriesAreRestrictedToOwnedShards() throws Exception {
+        assertEquals(List.of(1L, 2L, 3L, 4L), query("/cancellations_current_future.sql", CancellationSourceType.FROM_NOW, ALL_SHARDS));
+        assertEquals(List.of(1L, 3L), query("/cancellations_current_future.sql", CancellationSourceType.FROM_NOW, ODD_SHARD));
+        assertEquals(List.of(1L, 3L, 5L), query("/cancellations_past_current_future.sql", CancellationSourceType.FROM_PAST, ODD_SHARD));
+        assertEquals(List.of(1L, 3L, 5L), query("/cancellations_now_and_past.sql", CancellationSourceType.FROM_NOW_AND_PAST, ODD_SHARD));
+    }
+
+    @Test
+    public void testPartitionsAreRestrictedToOwnedShards() throws Exception {
+        String sql = ODD_SHARD.restrict(OmmTestDatabase.readQuery("/cancellations_now_and_past.sql"), "DVJ.Id");
+
+        // The deviation case IDs 11, 13 and 15 of the owned trips are each in a partition of their own
+        assertEquals(List.of(5L), run(PartitionedQuery.partitionQuery(sql, 3, 0), CancellationSourceType.FROM_NOW_AND_PAST));
+        assertEquals(List.of(3L), run(PartitionedQuery.partitionQuery(sql, 3, 1), CancellationSourceType.FROM_NOW_AND_PAST));
+        assertEquals(List.of(1L), run(PartitionedQuery.partitionQuery(sql, 3, 2), CancellationSourceType.FROM_NOW_AND_PAST));
+    }
+
+    @Test
+    public void testIncrementalQueryIsRestrictedToOwnedShards() throws Exception {
+        String sql = ODD_SHARD.restrict(OmmTestDatabase.readQuery("/cancellations_modified_since.sql"), "DVJ.Id");
+        IncrementalCancellationState state = new IncrementalCancellationState(TIMEZONE, 3600, 0);
+        OmmCancellationHandler handler = TestHandlers.handler(new ArrayList<>());
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            List<Long> dvjIds = state.poll(statement, handler, NOW_INSTANT).stream()
+                    .map(data -> data.dvjId)
+                    .sorted()
+                    .collect(Collectors.toList());
+            assertEquals(List.of(1L, 3L), dvjIds);
+        } finally {
+            handler.close();
+        }
+    }
+
+    private List<Long> query(String resource, CancellationSourceType sourceType, TripShards shards) throws Exception {
+        return run(shards.restrict(OmmTestDatabase.readQuery(resource), "DVJ.Id"), sourceType);
+    }
+
+    private List<Long> run(String sql, CancellationSourceType sourceType) throws SQLException {
+        List<Long> dvjIds = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            OmmConnector.bindParameters(statement, sourceType,
+                    OmmConnector.localDatetimeAsString(NOW_INSTANT, TIMEZONE),
+                    OmmConnector.localDateAsString(NOW_INSTANT, TIMEZONE),
+                    OmmConnector.localDatetimeAsString(NOW_INSTANT.minusSeconds(300), TIMEZONE));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    dvjIds.add(resultSet.getLong("DVJ_ID"));
+                }
+            }
+        }
+        return dvjIds;
+    }
+}
@@ -0,0 +1,97 @@
+package fi.hsl.transitdata.omm;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import fi.hsl.common.transitdata.MockDataUtils;
+import fi.hsl.common.transitdata.PubtransFactory;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
+
+import java.lang.reflect.Proxy;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Handlers publishing to a producer that records the keys (dvjIds) of the messages sent
+ */
+final class TestHandlers {
+    static final String TIMEZONE = "Europe/Helsinki";
+
+    private TestHandlers() {}
+
+    /**
+     * @return Settings of a handler with change tracking and synchronous sends, without keyframes, pipeline or outbox
+     */
+    static Map<String, Object> settings() {
+        Map<String, Object> values = new HashMap<>();
+        values.put("omm.publish.async", false);
+        values.put("omm.publish.maxInFlight", 1);
+        values.put("omm.publish.rateLimit", 0);
+        values.put("omm.freshness.slo", 0);
+        values.put("omm.timezone", TIMEZONE);
+        values.put("omm.changeTracking.enabled", true);
+        values.put("omm.changeTracking.keyframeInterval", 0);
+        values.put("omm.changeTracking.publishRemovals", true);
+        values.put("omm.changeTracking.snapshotFile", "");
+        values.put("omm.priority.enabled", false);
+        values.put("omm.outbox.file", "");
+        values.put("omm.pipeline.enabled", false);
+        return values;
+    }
+
+    static OmmCancellationHandler handler(List<String> keys) {
+        return handler(keys, settings());
+    }
+
+    static OmmCancellationHandler handler(List<String> keys, Map<String, Object> settings) {
+        Config config = ConfigFactory.parseMap(settings);
+        return new OmmCancellationHandler(recordingProducer(keys), config, CancellationSourceType.FROM_NOW);
+    }
+
+    static OmmCancellationHandler.CancellationData cancellation(long dvjId, LocalDateTime departure) throws Exception {
+        return cancellation(dvjId, departure.format(DateTimeFormatter.BASIC_ISO_DATE), departure.format(DateTimeFormatter.ofPattern("HH:mm:ss")));
+    }
+
+    static OmmCancellationHandler.CancellationData cancellation(long dvjId, String startDate, String startTime) throws Exception {
+        return cancellation(InternalMessages.TripCancellation.Status.CANCELED, dvjId, 1, startDate, startTime);
+    }
+
+    /**
+     * @return Cancellation of the departure at 11:22 on 1.1.2018
+     */
+    static OmmCancellationHandler.CancellationData cancellation(InternalMessages.TripCancellation.Status status, long dvjId, long deviationCaseId) throws Exception {
+        return cancellation(status, dvjId, deviationCaseId, "20180101", "11:22:00");
+    }
+
+    static OmmCancellationHandler.CancellationData cancellation(InternalMessages.TripCancellation.Status status, long dvjId, long deviationCaseId,
+                                                                String startDate, String startTime) throws Exception {
+        InternalMessages.TripCancellation cancellation = MockDataUtils.mockTripCancellation(dvjId,
+                "7575",
+                PubtransFactory.JORE_DIRECTION_ID_INBOUND,
+                startDate,
+                startTime,
+                status);
+        return new OmmCancellationHandler.CancellationData(cancellation, System.currentTimeMillis(), dvjId, deviationCaseId);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Producer<byte[]> recordingProducer(List<String> keys) {
+        TypedMessageBuilder<byte[]> builder = (TypedMessageBuilder<byte[]>) Proxy.newProxyInstance(
+                TestHandlers.class.getClassLoader(),
+                new Class[] { TypedMessageBuilder.class },
+                (proxy, method, args) -> {
+                    if ("key".equals(method.getName())) {
+                        keys.add((String) args[0]);
+                    }
+                    return "send".equals(method.getName()) ? null : proxy;
+                });
+        return (Producer<byte[]>) Proxy.newProxyInstance(
+                TestHandlers.class.getClassLoader(),
+                new Class[] { Producer.class },
+                (proxy, method, args) -> "newMessage".equals(method.getName()) ? builder : null);
+    }
+}